@@ -21,13 +21,60 @@ public class Constants {
   public static final int GENERATED_MELODY_MIN_LEN = 10;
   public static final int GENERATED_MELODY_MAX_LEN = 1000;
   public static final int PLAYBACK_TEMPO = 100;
+  /**
+   * Number of melodies generated at a time, of which the first one that
+   * reaches the requested length is kept.
+   */
+  public static final int GENERATION_CANDIDATES = 32;
   public static final int NOTE_ARRAY_SIZE = (OCTAVE_UPPER_BOUND - OCTAVE_LOWER_BOUND + 1) * 12;
   public static final double EPSILON = 1e-10;
   public static final String TRAINING_DATA_PATH = System.getProperty("test") != null
       && System.getProperty("test").equals("true")
           ? "melodify/src/test/resources"
           : "data/musicxml";
+  /**
+   * Archive to read the training data from when it has not been unpacked to
+   * the training data folder, chosen with the system property
+   * <code>dataset</code>.
+   */
+  public static final String TRAINING_DATA_ARCHIVE =
+      "data/" + System.getProperty("dataset", "irish") + ".zip";
   public static final String OUTPUT_DATA_PATH = "data/output";
+  public static final String MODEL_DATA_PATH = "data/models";
+  public static final String PARSED_DATA_PATH = "data/parsed";
+  /**
+   * Read every key signature of the training data files and leave out files
+   * that change key. With the system property <code>fullkeyscan=false</code>
+   * a file belongs to the key it starts in, which reads less only when the
+   * keys are resolved without the notes.
+   */
+  public static final boolean FULL_KEY_SCAN =
+      Boolean.parseBoolean(System.getProperty("fullkeyscan", "true"));
+  /**
+   * Continue generation from a shorter context when the context has no
+   * continuation instead of stopping the melody, turned on with the system
+   * property <code>backoff=true</code>. Off by default so that the melodies
+   * come from the full context only.
+   */
+  public static final boolean GENERATION_BACKOFF =
+      Boolean.parseBoolean(System.getProperty("backoff", "false"));
+  /**
+   * Leave out notes that lead towards a context without continuation when
+   * there are other notes to select, turned on with the system property
+   * <code>avoiddeadends=true</code>. Off by default so that the notes follow
+   * the probabilities of the model.
+   */
+  public static final boolean GENERATION_AVOID_DEAD_ENDS =
+      Boolean.parseBoolean(System.getProperty("avoiddeadends", "false"));
+  /**
+   * Number of notes a selected note must leave room for when dead ends are
+   * avoided, set with the system property <code>deadendhorizon</code>. At
+   * most 63, <code>FrozenTrie.DEAD_END_HORIZON</code>, as far as the reach of
+   * the contexts is counted.
+   */
+  public static final int GENERATION_DEAD_END_HORIZON =
+      Integer.getInteger("deadendhorizon", 16);
+  public static final long MODEL_CACHE_BUDGET_BYTES = Runtime.getRuntime().maxMemory() / 4;
 
   /**
    * <p>
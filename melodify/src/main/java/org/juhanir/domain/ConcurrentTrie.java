@@ -0,0 +1,164 @@
+package org.juhanir.domain;
+
+import java.util.Arrays;
+import org.juhanir.Constants;
+
+/**
+ * <p>
+ * Trie that can be written and read from several threads at the same time
+ * without a global lock. Counts are exact once all inserts have returned.
+ * </p>
+ * <p>
+ * Reads made while inserts are in progress see some of the ongoing inserts
+ * but not necessarily all of them.
+ * </p>
+ */
+public class ConcurrentTrie {
+
+  private volatile ConcurrentTrieNode root;
+
+  public ConcurrentTrie() {
+    this.root = new ConcurrentTrieNode(Integer.MIN_VALUE);
+  }
+
+  /**
+   * <p>
+   * Inserts a note sequence to the Trie. Sequence length follows the degree of
+   * the Markov Chain.
+   * Increments the <code>childCount</code> property of the parent and the
+   * <code>count</code>
+   * property of the added child.
+   * </p>
+   *
+   * @param key sequence of notes to save
+   */
+  public void insert(int[] key) {
+    ConcurrentTrieNode node = this.root;
+    for (int i = 0; i < key.length; i++) {
+      node = node.addChild(key[i]);
+    }
+  }
+
+  /**
+   * <p>
+   * Searches the Trie for the note sequence.
+   * </p>
+   *
+   * @param key sequence of notes to search
+   * @return ConcurrentTrieNode or null if sequence not found
+   */
+  public ConcurrentTrieNode lookup(int[] key) {
+    ConcurrentTrieNode node = this.root;
+    for (int i = 0; i < key.length && node != null; i++) {
+      node = node.getChild(key[i]);
+    }
+    return node;
+  }
+
+  /**
+   * Calculate the probabilities of the children of a node. The probabilities
+   * are relative to the child counts read here, so they add up to one even if
+   * inserts are in progress.
+   *
+   * @param note node whose children are used, may be null
+   * @return Array of probabilities indexed by note value
+   */
+  public double[] getProbabilities(ConcurrentTrieNode note) {
+    double[] probabilities = new double[Constants.NOTE_ARRAY_SIZE];
+    if (note == null || !note.hasChildren()) {
+      return probabilities;
+    }
+    ConcurrentTrieNode[] children = note.getChildren();
+    double sum = 0.0;
+    for (int i = 0; i < children.length; i++) {
+      if (children[i] != null) {
+        probabilities[i] = children[i].getCount();
+        sum += probabilities[i];
+      }
+    }
+    // a child that was just created may not be counted yet
+    for (int i = 0; i < probabilities.length && sum > 0.0; i++) {
+      probabilities[i] /= sum;
+    }
+    return probabilities;
+  }
+
+  /**
+   * Get the size of the whole trie.
+   *
+   * @return trie size
+   */
+  public int size() {
+    return this.countNodes(this.root);
+  }
+
+  /**
+   * Clear the existing trie by resetting the root node. Inserts in progress
+   * may end up in the old trie.
+   */
+  public void clear() {
+    this.root = new ConcurrentTrieNode(Integer.MIN_VALUE);
+  }
+
+  /**
+   * <p>
+   * Take a read-only snapshot of the trie for generation, see
+   * <code>Trie.freeze()</code>.
+   * </p>
+   * <p>
+   * Inserts may continue while the snapshot is taken. The count of every node
+   * is read once and the child count of its parent is the sum of those, so the
+   * snapshot is a valid trie.
+   * </p>
+   *
+   * @return frozen copy of the trie
+   */
+  public FrozenTrie freeze() {
+    ConcurrentTrieNode[] queue = new ConcurrentTrieNode[Constants.NOTE_ARRAY_SIZE];
+    int[] firstChild = new int[queue.length + 1];
+    byte[] values = new byte[queue.length];
+    int[] counts = new int[queue.length];
+    int[] childCounts = new int[queue.length];
+    queue[0] = this.root;
+    int tail = 1;
+    int head = 0;
+    for (; head < tail; head++) {
+      ConcurrentTrieNode node = queue[head];
+      queue[head] = null;
+      firstChild[head] = tail;
+      ConcurrentTrieNode[] children = node.getChildren();
+      for (ConcurrentTrieNode child : children) {
+        if (child == null) {
+          continue;
+        }
+        if (tail == queue.length) {
+          int capacity = queue.length * 2;
+          queue = Arrays.copyOf(queue, capacity);
+          firstChild = Arrays.copyOf(firstChild, capacity + 1);
+          values = Arrays.copyOf(values, capacity);
+          counts = Arrays.copyOf(counts, capacity);
+          childCounts = Arrays.copyOf(childCounts, capacity);
+        }
+        queue[tail] = child;
+        values[tail] = (byte) child.getValue();
+        counts[tail] = child.getCount();
+        childCounts[head] += counts[tail];
+        tail++;
+      }
+    }
+    firstChild[head] = tail;
+    return new FrozenTrie(Arrays.copyOf(firstChild, tail + 1), Arrays.copyOf(values, tail),
+        Arrays.copyOf(counts, tail), Arrays.copyOf(childCounts, tail));
+  }
+
+  private int countNodes(ConcurrentTrieNode node) {
+    int c = 1;
+    for (ConcurrentTrieNode child : node.getChildren()) {
+      if (child != null) {
+        c += this.countNodes(child);
+      }
+    }
+    return c;
+  }
+
+}
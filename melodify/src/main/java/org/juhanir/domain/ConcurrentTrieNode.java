@@ -0,0 +1,138 @@
+package org.juhanir.domain;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import org.juhanir.Constants;
+
+/**
+ * <p>
+ * A node in the concurrent trie. Represents a note.
+ * </p>
+ * <p>
+ * Children and counts are updated without locks: a child is created with a
+ * compare-and-set on its slot and counts are atomic increments. The child
+ * array is created on the first insert so leaves do not reserve it.
+ * </p>
+ */
+public class ConcurrentTrieNode {
+
+  private static final AtomicIntegerFieldUpdater<ConcurrentTrieNode> COUNT =
+      AtomicIntegerFieldUpdater.newUpdater(ConcurrentTrieNode.class, "count");
+  private static final AtomicIntegerFieldUpdater<ConcurrentTrieNode> CHILD_COUNT =
+      AtomicIntegerFieldUpdater.newUpdater(ConcurrentTrieNode.class, "childCount");
+  private static final AtomicIntegerFieldUpdater<ConcurrentTrieNode> NUMBER_OF_CHILDREN =
+      AtomicIntegerFieldUpdater.newUpdater(ConcurrentTrieNode.class, "numberOfChildren");
+  @SuppressWarnings("rawtypes")
+  private static final AtomicReferenceFieldUpdater<ConcurrentTrieNode, AtomicReferenceArray>
+      CHILDREN = AtomicReferenceFieldUpdater.newUpdater(ConcurrentTrieNode.class,
+          AtomicReferenceArray.class, "children");
+
+  private final int value;
+  private volatile AtomicReferenceArray<ConcurrentTrieNode> children;
+  private volatile int count;
+  private volatile int childCount;
+  private volatile int numberOfChildren;
+
+  /**
+   * Constructor for ConcurrentTrieNode.
+   *
+   * @param value the integer value of the note.
+   */
+  public ConcurrentTrieNode(int value) {
+    this.value = value;
+  }
+
+  public int getValue() {
+    return this.value;
+  }
+
+  public int getCount() {
+    return this.count;
+  }
+
+  public int getChildCount() {
+    return this.childCount;
+  }
+
+  public int getNumberOfChildren() {
+    return this.numberOfChildren;
+  }
+
+  public void incrementCount() {
+    COUNT.incrementAndGet(this);
+  }
+
+  public boolean hasChild(int value) {
+    return this.getChild(value) != null;
+  }
+
+  public boolean hasChildren() {
+    return this.childCount > 0;
+  }
+
+  /**
+   * Get the child with the given note value.
+   *
+   * @param value the numerical value of the child
+   * @return child node or null if not found
+   */
+  public ConcurrentTrieNode getChild(int value) {
+    AtomicReferenceArray<ConcurrentTrieNode> kids = this.children;
+    return kids != null ? kids.get(value) : null;
+  }
+
+  /**
+   * Adds a child to the node. Increments the count property of
+   * the child if already exists. Also increment the childCount
+   * property of the node for probability distribution calculation.
+   * Safe to call from several threads at the same time.
+   *
+   * @param value the numerical value of the child
+   * @return the child
+   */
+  public ConcurrentTrieNode addChild(int value) {
+    AtomicReferenceArray<ConcurrentTrieNode> kids = this.getOrCreateChildren();
+    ConcurrentTrieNode child = kids.get(value);
+    if (child == null) {
+      ConcurrentTrieNode created = new ConcurrentTrieNode(value);
+      if (kids.compareAndSet(value, null, created)) {
+        NUMBER_OF_CHILDREN.incrementAndGet(this);
+        child = created;
+      } else {
+        child = kids.get(value);
+      }
+    }
+    child.incrementCount();
+    CHILD_COUNT.incrementAndGet(this);
+    return child;
+  }
+
+  /**
+   * Get the children as an array indexed by note value, where missing children
+   * are null. The array is a snapshot, children added later are not in it.
+   *
+   * @return children indexed by note value
+   */
+  public ConcurrentTrieNode[] getChildren() {
+    ConcurrentTrieNode[] snapshot = new ConcurrentTrieNode[Constants.NOTE_ARRAY_SIZE];
+    AtomicReferenceArray<ConcurrentTrieNode> kids = this.children;
+    if (kids != null) {
+      for (int i = 0; i < snapshot.length; i++) {
+        snapshot[i] = kids.get(i);
+      }
+    }
+    return snapshot;
+  }
+
+  @SuppressWarnings("unchecked")
+  private AtomicReferenceArray<ConcurrentTrieNode> getOrCreateChildren() {
+    AtomicReferenceArray<ConcurrentTrieNode> kids = this.children;
+    if (kids == null) {
+      CHILDREN.compareAndSet(this, null,
+          new AtomicReferenceArray<ConcurrentTrieNode>(Constants.NOTE_ARRAY_SIZE));
+      kids = this.children;
+    }
+    return kids;
+  }
+}
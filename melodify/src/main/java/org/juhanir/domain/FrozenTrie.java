@@ -0,0 +1,632 @@
+package org.juhanir.domain;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import org.juhanir.Constants;
+
+/**
+ * <p>
+ * Read-only trie compacted into parallel primitive arrays. Created with
+ * <code>Trie.freeze()</code> once training is done.
+ * </p>
+ * <p>
+ * Nodes are numbered in breadth-first order starting from the root at 0, so
+ * the children of a node are stored next to each other, ordered by note value.
+ * The children of node <code>i</code> are the nodes from
+ * <code>firstChild[i]</code> to <code>firstChild[i + 1] - 1</code>.
+ * </p>
+ * <p>
+ * For weighted random selection of children every node also has an entry in
+ * a Walker alias table built over the children of its parent. Selecting a
+ * child takes constant time and allocates nothing.
+ * </p>
+ * <p>
+ * Every node also has a suffix link to the node of its sequence without the
+ * first note, so a generation context can be moved forward by one note
+ * without searching from the root again, see <code>MelodyCursor</code>.
+ * </p>
+ * <p>
+ * After the links every node gets its reach, how many notes can still be
+ * generated from it as a context before running into a context without
+ * continuation, up to <code>DEAD_END_HORIZON</code>. A child whose next
+ * context reaches less than the horizon asked for leads towards a dead end,
+ * and <code>sampleLiveChild</code> leaves such children out.
+ * </p>
+ * <p>
+ * The arrays are kept in buffers so that a saved model can be used straight
+ * from a memory-mapped file, see <code>ModelSnapshot</code>.
+ * </p>
+ */
+public class FrozenTrie {
+
+  public static final int NOT_FOUND = -1;
+  public static final int ROOT = 0;
+  /**
+   * Longest distance to a dead end that is looked for, in notes, and so the
+   * largest horizon <code>sampleLiveChild</code> accepts. The reach is kept in
+   * the low 6 bits of a byte per node, which limits it to 63.
+   */
+  public static final int DEAD_END_HORIZON = 63;
+
+  static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+  private static final int REACH_MASK = 0x3f;
+  private static final int HAS_DEAD_END_CHILD = 0x80;
+
+  private final IntBuffer firstChild;
+  private final ByteBuffer values;
+  private final IntBuffer counts;
+  private final IntBuffer childCounts;
+  private final IntBuffer aliasCut;
+  private final IntBuffer alias;
+  private final IntBuffer suffixLink;
+  private final ByteBuffer reach;
+  private final int size;
+
+  /**
+   * Constructor. Arrays are indexed by node number in breadth-first order.
+   *
+   * @param firstChild  index of the first child of each node, one extra element
+   *                    at the end marks the end of the last child range
+   * @param values      note value of each node
+   * @param counts      count of each node
+   * @param childCounts child count of each node
+   */
+  FrozenTrie(int[] firstChild, byte[] values, int[] counts, int[] childCounts) {
+    this.size = values.length;
+    this.firstChild = IntBuffer.wrap(firstChild);
+    this.values = ByteBuffer.wrap(values);
+    this.counts = IntBuffer.wrap(counts);
+    this.childCounts = IntBuffer.wrap(childCounts);
+    this.aliasCut = IntBuffer.allocate(this.size);
+    this.alias = IntBuffer.allocate(this.size);
+    this.suffixLink = IntBuffer.allocate(this.size);
+    this.reach = ByteBuffer.allocate(this.size);
+    this.buildAliasTables();
+    this.buildSuffixLinks();
+    this.buildReach();
+  }
+
+  /**
+   * Constructor for a trie laid out in a buffer by <code>writeTo</code>. The
+   * buffer is used as is, nothing is copied.
+   *
+   * @param data buffer positioned at the start of the node data
+   * @param size number of nodes
+   */
+  private FrozenTrie(ByteBuffer data, int size) {
+    this.size = size;
+    this.firstChild = slice(data, (size + 1) * Integer.BYTES).asIntBuffer();
+    this.counts = slice(data, size * Integer.BYTES).asIntBuffer();
+    this.childCounts = slice(data, size * Integer.BYTES).asIntBuffer();
+    this.aliasCut = slice(data, size * Integer.BYTES).asIntBuffer();
+    this.alias = slice(data, size * Integer.BYTES).asIntBuffer();
+    this.suffixLink = slice(data, size * Integer.BYTES).asIntBuffer();
+    this.values = slice(data, size);
+    this.reach = slice(data, size);
+  }
+
+  /**
+   * Use the node data written by <code>writeTo</code> in place.
+   *
+   * @param data buffer positioned at the start of the node data, e.g. a
+   *             memory-mapped file. Position is moved past the node data.
+   * @param size number of nodes
+   * @return trie backed by the buffer
+   * @throws IllegalArgumentException if the buffer is too small
+   */
+  static FrozenTrie readFrom(ByteBuffer data, int size) {
+    if (size < 1 || data.remaining() < byteSize(size)) {
+      throw new IllegalArgumentException(
+          String.format("Not enough data for %s nodes: %s bytes", size, data.remaining()));
+    }
+    return new FrozenTrie(data, size);
+  }
+
+  /**
+   * Number of bytes <code>writeTo</code> needs for the node data.
+   *
+   * @param size number of nodes
+   * @return size of the node data in bytes
+   */
+  static long byteSize(int size) {
+    return (size * 6L + 1) * Integer.BYTES + size * 2L;
+  }
+
+  /**
+   * Write the node data including the alias tables, the suffix links and the
+   * reach to the buffer, int arrays first, then note values and reach.
+   *
+   * @param data buffer with at least <code>byteSize(size())</code> bytes
+   *             remaining. Position is moved past the node data.
+   */
+  void writeTo(ByteBuffer data) {
+    for (IntBuffer array : new IntBuffer[] { this.firstChild, this.counts, this.childCounts,
+        this.aliasCut, this.alias, this.suffixLink }) {
+      slice(data, array.limit() * Integer.BYTES).asIntBuffer().put(array.duplicate().clear());
+    }
+    slice(data, this.size).put(this.values.duplicate().clear());
+    slice(data, this.size).put(this.reach.duplicate().clear());
+  }
+
+  private static ByteBuffer slice(ByteBuffer data, int length) {
+    ByteBuffer region = data.slice();
+    region.limit(length);
+    data.position(data.position() + length);
+    return region.order(BYTE_ORDER);
+  }
+
+  /**
+   * <p>
+   * Searches the trie for the note sequence.
+   * </p>
+   *
+   * @param key sequence of notes to search
+   * @return node number or <code>NOT_FOUND</code> if sequence not found
+   */
+  public int lookup(int[] key) {
+    int node = ROOT;
+    for (int i = 0; i < key.length && node != NOT_FOUND; i++) {
+      node = this.getChild(node, key[i]);
+    }
+    return node;
+  }
+
+  /**
+   * Find the child of a node with a binary search over its children.
+   *
+   * @param node  node number
+   * @param value note value of the child
+   * @return node number of the child or <code>NOT_FOUND</code>
+   */
+  public int getChild(int node, int value) {
+    int low = this.firstChild.get(node);
+    int high = this.firstChild.get(node + 1) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midValue = this.values.get(mid);
+      if (midValue < value) {
+        low = mid + 1;
+      } else if (midValue > value) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * <p>
+   * Node of the same sequence without its first note. Following the link from
+   * a child of a context node gives the context that continues from the
+   * child.
+   * </p>
+   * <p>
+   * A trie trained with <code>Trie.insertAllWindows</code> has every suffix
+   * of its sequences, so every link except the one of the root is found.
+   * </p>
+   *
+   * @param node node number
+   * @return node number, <code>ROOT</code> for the children of the root and
+   *         <code>NOT_FOUND</code> for the root or when the suffix is not in
+   *         the trie
+   */
+  public int getSuffixLink(int node) {
+    return this.suffixLink.get(node);
+  }
+
+  /**
+   * Note value of the node. Root has no value.
+   *
+   * @param node node number
+   * @return note value, <code>Integer.MIN_VALUE</code> for root
+   */
+  public int getValue(int node) {
+    return node == ROOT ? Integer.MIN_VALUE : this.values.get(node);
+  }
+
+  public int getCount(int node) {
+    return this.counts.get(node);
+  }
+
+  public int getChildCount(int node) {
+    return this.childCounts.get(node);
+  }
+
+  public int getNumberOfChildren(int node) {
+    return this.firstChild.get(node + 1) - this.firstChild.get(node);
+  }
+
+  /**
+   * Node number of the first child. The rest of the children follow it in
+   * order of their note value.
+   *
+   * @param node node number
+   * @return node number of the first child
+   */
+  public int getFirstChild(int node) {
+    return this.firstChild.get(node);
+  }
+
+  /**
+   * Calculate the probabilities of the children of a node.
+   *
+   * @param node node number or <code>NOT_FOUND</code>
+   * @return Array of probabilities indexed by note value
+   */
+  public double[] getProbabilities(int node) {
+    double[] probabilities = new double[Constants.NOTE_ARRAY_SIZE];
+    if (node == NOT_FOUND || this.childCounts.get(node) == 0) {
+      return probabilities;
+    }
+    double childCount = this.childCounts.get(node);
+    for (int child = this.firstChild.get(node); child < this.firstChild.get(node + 1); child++) {
+      probabilities[this.values.get(child)] = this.counts.get(child) / childCount;
+    }
+    return probabilities;
+  }
+
+  /**
+   * <p>
+   * Weighted random selection of a child of the node using the alias table.
+   * The uniform random number picks one of the children and the fraction
+   * left over decides between the child and its alias.
+   * </p>
+   *
+   * @param node    node number or <code>NOT_FOUND</code>
+   * @param uniform random number from 0 (inclusive) to 1 (exclusive)
+   * @return note value of the selected child, -1 if no children
+   */
+  public int sample(int node, double uniform) {
+    int selected = this.sampleChild(node, uniform);
+    return selected == NOT_FOUND ? -1 : this.values.get(selected);
+  }
+
+  /**
+   * Weighted random selection of a child of the node like <code>sample</code>,
+   * giving the node of the child instead of its note value.
+   *
+   * @param node    node number or <code>NOT_FOUND</code>
+   * @param uniform random number from 0 (inclusive) to 1 (exclusive)
+   * @return node number of the selected child, <code>NOT_FOUND</code> if no
+   *         children
+   */
+  public int sampleChild(int node, double uniform) {
+    if (node == NOT_FOUND || this.childCounts.get(node) == 0) {
+      return NOT_FOUND;
+    }
+    int first = this.firstChild.get(node);
+    int numberOfChildren = this.firstChild.get(node + 1) - first;
+    double scaled = uniform * numberOfChildren;
+    int index = Math.min((int) scaled, numberOfChildren - 1);
+    int slot = first + index;
+    double fraction = scaled - index;
+    return fraction * this.childCounts.get(node) < this.aliasCut.get(slot) ? slot
+        : this.alias.get(slot);
+  }
+
+  /**
+   * <p>
+   * Weighted random selection of a child of the node that leaves out the
+   * children leading towards a dead end, the probabilities of the rest scaled
+   * up to add up to 1. The children left out are those whose next context
+   * reaches less than <code>horizon</code> notes, see <code>getReach</code>.
+   * If no child reaches that far, only the children that reach as far as the
+   * best one are kept, so there is always a child to select when the node has
+   * children.
+   * </p>
+   * <p>
+   * A node with no children to leave out is sampled with the alias table like
+   * <code>sampleChild</code>, giving the same child for the same random
+   * number. Otherwise the children are summed up one by one.
+   * </p>
+   *
+   * @param node    node number or <code>NOT_FOUND</code>
+   * @param horizon number of notes the next context must reach, from 0 to
+   *                <code>DEAD_END_HORIZON</code>. With 0 nothing is left out.
+   * @param uniform random number from 0 (inclusive) to 1 (exclusive)
+   * @return node number of the selected child, <code>NOT_FOUND</code> if no
+   *         children
+   * @throws IllegalArgumentException if the horizon is out of range
+   */
+  public int sampleLiveChild(int node, int horizon, double uniform) {
+    if (horizon < 0 || horizon > DEAD_END_HORIZON) {
+      throw new IllegalArgumentException(
+          String.format("Horizon %s not between 0 and %s", horizon, DEAD_END_HORIZON));
+    }
+    if (node == NOT_FOUND || (this.reach.get(node) & HAS_DEAD_END_CHILD) == 0) {
+      return this.sampleChild(node, uniform);
+    }
+    int cutoff = Math.min(horizon, this.bestNextReach(node));
+    long total = 0;
+    for (int child = this.firstChild.get(node); child < this.firstChild.get(node + 1); child++) {
+      if (this.getNextReach(child) >= cutoff) {
+        total += this.counts.get(child);
+      }
+    }
+    if (total == this.childCounts.get(node)) {
+      return this.sampleChild(node, uniform);
+    }
+    long target = (long) (uniform * total);
+    int selected = NOT_FOUND;
+    for (int child = this.firstChild.get(node); child < this.firstChild.get(node + 1); child++) {
+      if (this.getNextReach(child) >= cutoff) {
+        selected = child;
+        target -= this.counts.get(child);
+        if (target < 0) {
+          break;
+        }
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * <p>
+   * Number of notes that can be generated from the node as a context without
+   * backing off, along the longest way forward. A context that is part of a
+   * loop reaches <code>DEAD_END_HORIZON</code>, which is as far as the reach
+   * is counted.
+   * </p>
+   *
+   * @param node node number or <code>NOT_FOUND</code>
+   * @return reach from 0 to <code>DEAD_END_HORIZON</code>, 0 for
+   *         <code>NOT_FOUND</code>
+   */
+  public int getReach(int node) {
+    return node == NOT_FOUND ? 0 : this.reach.get(node) & REACH_MASK;
+  }
+
+  /**
+   * Reach of the context after selecting the child, the one its suffix link
+   * points to.
+   */
+  private int getNextReach(int child) {
+    return this.getReach(this.suffixLink.get(child));
+  }
+
+  /**
+   * Get a sequence of notes starting with the note given as argument and
+   * the next note in the sequence is always the most common child.
+   *
+   * @param startingNote note that starts the sequence.
+   * @param length       length of the sequence.
+   * @return sequence
+   */
+  public int[] getMostCommonSequenceStartingWith(int startingNote, int length) {
+    if (length < 2) {
+      return new int[] { startingNote };
+    }
+    int[] sequence = new int[length];
+    sequence[0] = startingNote;
+    int node = this.getChild(ROOT, startingNote);
+    if (node == NOT_FOUND) {
+      return new int[] { startingNote };
+    }
+    for (int i = 1; i < length; i++) {
+      int selected = NOT_FOUND;
+      for (int child = this.firstChild.get(node); child < this.firstChild.get(node + 1); child++) {
+        if (selected == NOT_FOUND || this.counts.get(child) > this.counts.get(selected)) {
+          selected = child;
+        }
+      }
+      if (selected == NOT_FOUND) {
+        return Arrays.copyOfRange(sequence, 0, i);
+      }
+      sequence[i] = this.values.get(selected);
+      node = selected;
+    }
+    return sequence;
+  }
+
+  /**
+   * Get the size of the whole trie.
+   *
+   * @return trie size
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * <p>
+   * The highest degree of Markov Chain the trie can be used with, one less
+   * than the length of the longest sequence in it.
+   * </p>
+   * <p>
+   * When the trie is trained with every shorter sequence at the end of the
+   * training melodies too, it can be used with every lower degree as well.
+   * </p>
+   *
+   * @return degree, 0 for an empty trie
+   */
+  public int getMaxDegree() {
+    // Nodes are in breadth-first order so the levels are consecutive ranges
+    int depth = 0;
+    int levelStart = ROOT;
+    int levelEnd = ROOT + 1;
+    while (this.firstChild.get(levelStart) < this.firstChild.get(levelEnd)) {
+      int nextStart = this.firstChild.get(levelStart);
+      levelEnd = this.firstChild.get(levelEnd);
+      levelStart = nextStart;
+      depth++;
+    }
+    return Math.max(0, depth - 1);
+  }
+
+  /**
+   * Memory taken by the node data including the alias tables, the suffix
+   * links and the reach, on the heap or in a memory-mapped file.
+   *
+   * @return size in bytes
+   */
+  public long getByteSize() {
+    return byteSize(this.size);
+  }
+
+  /**
+   * <p>
+   * Vose's alias method with integer arithmetic. For a node with k children
+   * and child count C each child slot gets the probability mass C/k. Slot j
+   * keeps its own child with weight <code>aliasCut[j]</code> out of C and
+   * gives the rest to the child <code>alias[j]</code>.
+   * </p>
+   */
+  private void buildAliasTables() {
+    long[] weights = new long[Constants.NOTE_ARRAY_SIZE];
+    int[] small = new int[Constants.NOTE_ARRAY_SIZE];
+    int[] large = new int[Constants.NOTE_ARRAY_SIZE];
+    for (int node = 0; node < this.size; node++) {
+      int first = this.firstChild.get(node);
+      int k = this.firstChild.get(node + 1) - first;
+      long total = this.childCounts.get(node);
+      int smallCount = 0;
+      int largeCount = 0;
+      for (int i = 0; i < k; i++) {
+        weights[i] = (long) this.counts.get(first + i) * k;
+        if (weights[i] < total) {
+          small[smallCount++] = i;
+        } else {
+          large[largeCount++] = i;
+        }
+      }
+      while (smallCount > 0 && largeCount > 0) {
+        int less = small[--smallCount];
+        int more = large[--largeCount];
+        this.aliasCut.put(first + less, (int) weights[less]);
+        this.alias.put(first + less, first + more);
+        weights[more] -= total - weights[less];
+        if (weights[more] < total) {
+          small[smallCount++] = more;
+        } else {
+          large[largeCount++] = more;
+        }
+      }
+      // Left over slots have exactly the mass C/k, rounding aside
+      while (largeCount > 0) {
+        int slot = first + large[--largeCount];
+        this.aliasCut.put(slot, (int) total);
+        this.alias.put(slot, slot);
+      }
+      while (smallCount > 0) {
+        int slot = first + small[--smallCount];
+        this.aliasCut.put(slot, (int) total);
+        this.alias.put(slot, slot);
+      }
+    }
+  }
+
+  /**
+   * The link of a child is the child with the same note under the link of its
+   * parent. Links point to shallower nodes, which come first in breadth-first
+   * order, so one pass over the nodes finds them all.
+   */
+  private void buildSuffixLinks() {
+    this.suffixLink.put(ROOT, NOT_FOUND);
+    for (int node = 0; node < this.size; node++) {
+      int parentLink = this.suffixLink.get(node);
+      for (int child = this.firstChild.get(node); child < this.firstChild.get(node + 1); child++) {
+        int link = ROOT;
+        if (node != ROOT) {
+          link = parentLink == NOT_FOUND ? NOT_FOUND
+              : this.getChild(parentLink, this.values.get(child));
+        }
+        this.suffixLink.put(child, link);
+      }
+    }
+  }
+
+  /**
+   * <p>
+   * The reach of a context with children is one more than the best reach of
+   * the contexts after its children, and 0 without children. A context is
+   * settled once every context after it is, starting from the dead ends and
+   * going backwards along the suffix links of the children, so every node is
+   * visited once. Contexts that are never settled can loop forever and get
+   * the horizon.
+   * </p>
+   * <p>
+   * A node is then flagged if some of its children lead to a shorter reach
+   * than the best child, so that sampling only looks at the reach of the
+   * children of the nodes where a horizon can leave some of them out.
+   * </p>
+   */
+  private void buildReach() {
+    // unsettled counts the contexts each node leads to, incomingStart the
+    // nodes with a child leading to each context, one entry per child
+    int[] unsettled = new int[this.size];
+    int[] incomingStart = new int[this.size + 1];
+    for (int node = 0; node < this.size; node++) {
+      for (int child = this.firstChild.get(node); child < this.firstChild.get(node + 1); child++) {
+        int link = this.suffixLink.get(child);
+        if (link != NOT_FOUND) {
+          unsettled[node]++;
+          incomingStart[link]++;
+        }
+      }
+    }
+    for (int node = 1; node <= this.size; node++) {
+      incomingStart[node] += incomingStart[node - 1];
+    }
+    // filled backwards from the end of each range, so that incomingStart ends
+    // up at the start of the range
+    int[] incoming = new int[incomingStart[this.size]];
+    for (int node = 0; node < this.size; node++) {
+      for (int child = this.firstChild.get(node); child < this.firstChild.get(node + 1); child++) {
+        int link = this.suffixLink.get(child);
+        if (link != NOT_FOUND) {
+          incoming[--incomingStart[link]] = node;
+        }
+      }
+    }
+    int[] settled = new int[this.size];
+    int tail = 0;
+    for (int node = 0; node < this.size; node++) {
+      if (unsettled[node] == 0) {
+        this.reach.put(node, (byte) (this.getNumberOfChildren(node) > 0 ? 1 : 0));
+        settled[tail++] = node;
+      } else {
+        this.reach.put(node, (byte) 1);
+      }
+    }
+    for (int head = 0; head < tail; head++) {
+      int context = settled[head];
+      int next = Math.min(DEAD_END_HORIZON, this.reach.get(context) + 1);
+      for (int i = incomingStart[context]; i < incomingStart[context + 1]; i++) {
+        int node = incoming[i];
+        if (this.reach.get(node) < next) {
+          this.reach.put(node, (byte) next);
+        }
+        if (--unsettled[node] == 0) {
+          settled[tail++] = node;
+        }
+      }
+    }
+    for (int node = 0; node < this.size; node++) {
+      if (unsettled[node] > 0) {
+        this.reach.put(node, (byte) DEAD_END_HORIZON);
+      }
+    }
+    // the reach of the nodes is final, flags only go to the high bit
+    for (int node = 0; node < this.size; node++) {
+      int best = this.bestNextReach(node);
+      for (int child = this.firstChild.get(node); child < this.firstChild.get(node + 1); child++) {
+        if (this.getReach(this.suffixLink.get(child)) < best) {
+          this.reach.put(node, (byte) (this.reach.get(node) | HAS_DEAD_END_CHILD));
+          break;
+        }
+      }
+    }
+  }
+
+  private int bestNextReach(int node) {
+    int best = 0;
+    for (int child = this.firstChild.get(node); child < this.firstChild.get(node + 1); child++) {
+      best = Math.max(best, this.getReach(this.suffixLink.get(child)));
+    }
+    return best;
+  }
+
+}
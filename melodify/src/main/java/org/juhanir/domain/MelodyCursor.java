@@ -0,0 +1,195 @@
+package org.juhanir.domain;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Position of a melody being generated from a <code>FrozenTrie</code>. The
+ * cursor keeps the node of the current context, the last notes of the melody,
+ * and moves it forward one note at a time.
+ * </p>
+ * <p>
+ * Sampling a note selects a child of the context node. The suffix link of that
+ * child is the node of the next context, the old one without its first note
+ * and with the new note at the end, so a note takes constant time whatever
+ * the degree and allocates nothing. Searching the context from the root for
+ * every note took time proportional to the degree and a copy of the context.
+ * </p>
+ * <p>
+ * The notes are the same as with <code>FrozenTrie.lookup</code> of the
+ * context followed by <code>FrozenTrie.sample</code> for the same random
+ * numbers. A cursor is used by one thread at a time.
+ * </p>
+ * <p>
+ * A cursor with backoff does not stop at a context without continuation. It
+ * drops the first notes of the context by following suffix links until a
+ * context has children, at worst down to the root, and the context grows back
+ * to the full degree with the next notes. It stops only if the model is
+ * empty.
+ * </p>
+ * <p>
+ * A cursor that avoids dead ends leaves out the children whose next context
+ * reaches less than the dead end horizon, see
+ * <code>FrozenTrie.sampleLiveChild</code>, so it stops or backs off only when
+ * every way forward ends soon. The reach assumes the context stays at its
+ * length, so while the context grows back after a backoff it is only an
+ * estimate.
+ * </p>
+ */
+public final class MelodyCursor {
+
+  private final FrozenTrie model;
+  private final int degree;
+  private final boolean backoff;
+  private final int deadEndHorizon;
+  private int node;
+  private int depth;
+  private long backoffs;
+
+  /**
+   * Constructor for a cursor that stops at a context without continuation.
+   *
+   * @param model   trained model
+   * @param context starting notes, its length is the degree of Markov Chain
+   *                used
+   */
+  public MelodyCursor(FrozenTrie model, int[] context) {
+    this(model, context, false);
+  }
+
+  /**
+   * Constructor for a cursor that does not avoid dead ends.
+   *
+   * @param model   trained model
+   * @param context starting notes, its length is the degree of Markov Chain
+   *                used
+   * @param backoff true to continue from shorter contexts at a context
+   *                without continuation, false to stop there
+   */
+  public MelodyCursor(FrozenTrie model, int[] context, boolean backoff) {
+    this(model, context, backoff, 0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param model          trained model
+   * @param context        starting notes, its length is the degree of Markov
+   *                       Chain used
+   * @param backoff        true to continue from shorter contexts at a context
+   *                       without continuation, false to stop there
+   * @param deadEndHorizon number of notes the context after a note must still
+   *                       reach for the note to be selected when there are
+   *                       others, up to <code>FrozenTrie.DEAD_END_HORIZON</code>,
+   *                       0 to not avoid dead ends
+   * @throws IllegalArgumentException if the horizon is out of range
+   */
+  public MelodyCursor(FrozenTrie model, int[] context, boolean backoff, int deadEndHorizon) {
+    if (deadEndHorizon < 0 || deadEndHorizon > FrozenTrie.DEAD_END_HORIZON) {
+      throw new IllegalArgumentException(String.format("Dead end horizon %s not between 0 and %s",
+          deadEndHorizon, FrozenTrie.DEAD_END_HORIZON));
+    }
+    this.model = model;
+    this.degree = context.length;
+    this.backoff = backoff;
+    this.deadEndHorizon = deadEndHorizon;
+    this.node = model.lookup(context);
+    this.depth = context.length;
+    // a context that is not in the model at all starts from its longest known suffix
+    for (int start = 1; backoff && this.node == FrozenTrie.NOT_FOUND; start++) {
+      this.node = model.lookup(Arrays.copyOfRange(context, start, context.length));
+      this.depth = context.length - start;
+    }
+  }
+
+  /**
+   * Select the next note and move the context forward to end with it.
+   *
+   * @param uniform random number from 0 (inclusive) to 1 (exclusive)
+   * @return value of the note, -1 if the context has no continuation
+   */
+  public int next(double uniform) {
+    if (this.backoff) {
+      this.backOff();
+    }
+    int child = this.deadEndHorizon > 0
+        ? this.model.sampleLiveChild(this.node, this.deadEndHorizon, uniform)
+        : this.model.sampleChild(this.node, uniform);
+    if (child == FrozenTrie.NOT_FOUND) {
+      this.node = FrozenTrie.NOT_FOUND;
+      return -1;
+    }
+    if (this.depth < this.degree) {
+      this.node = child;
+      this.depth++;
+    } else {
+      this.node = this.model.getSuffixLink(child);
+    }
+    return this.model.getValue(child);
+  }
+
+  /**
+   * Drop notes from the start of the context until it has children. A
+   * missing suffix link, only possible in a model that is not trained with
+   * every suffix, drops the whole context.
+   */
+  private void backOff() {
+    if (this.node != FrozenTrie.NOT_FOUND && this.model.getChildCount(this.node) > 0) {
+      return;
+    }
+    this.backoffs++;
+    while (this.node != FrozenTrie.ROOT
+        && (this.node == FrozenTrie.NOT_FOUND || this.model.getChildCount(this.node) == 0)) {
+      int link = this.node == FrozenTrie.NOT_FOUND ? FrozenTrie.NOT_FOUND
+          : this.model.getSuffixLink(this.node);
+      this.node = link == FrozenTrie.NOT_FOUND ? FrozenTrie.ROOT : link;
+      this.depth = link == FrozenTrie.NOT_FOUND ? 0 : this.depth - 1;
+    }
+  }
+
+  /**
+   * Check if a next note can be selected.
+   *
+   * @return true if the context is in the model and has children
+   */
+  public boolean hasNext() {
+    if (this.backoff) {
+      return this.model.getChildCount(FrozenTrie.ROOT) > 0;
+    }
+    return this.node != FrozenTrie.NOT_FOUND && this.model.getChildCount(this.node) > 0;
+  }
+
+  /**
+   * Node of the current context in the model.
+   *
+   * @return node number or <code>FrozenTrie.NOT_FOUND</code> if the context is
+   *         not in the model
+   */
+  public int getNode() {
+    return this.node;
+  }
+
+  public int getDegree() {
+    return this.degree;
+  }
+
+  /**
+   * Number of notes of the current context, less than the degree after a
+   * backoff until the context has grown back.
+   *
+   * @return context length
+   */
+  public int getDepth() {
+    return this.depth;
+  }
+
+  /**
+   * Number of times the context had no continuation and was shortened.
+   *
+   * @return backoffs
+   */
+  public long getBackoffs() {
+    return this.backoffs;
+  }
+
+}
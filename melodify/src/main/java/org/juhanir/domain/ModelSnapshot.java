@@ -0,0 +1,168 @@
+package org.juhanir.domain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>
+ * A trained model with the parameters it was trained with, saved to and
+ * loaded from a binary file.
+ * </p>
+ * <p>
+ * The file starts with a header (magic number, format version, degree, key
+ * and the fingerprint of the training data) followed by the node data of the
+ * <code>FrozenTrie</code> including the alias tables, the suffix links and the
+ * reach, all little-endian. Loading maps the file to memory and the model reads the node
+ * data straight from the mapping, so nothing is deserialized and the operating
+ * system pages in only the parts that generation touches.
+ * </p>
+ */
+public class ModelSnapshot {
+
+  public static final int VERSION = 4;
+  private static final int MAGIC = 0x5944_4C4D; // "MLDY" in little-endian
+  private static final int HEADER_BYTES = 32;
+  private static final int ALIGNMENT = 8;
+
+  private final String key;
+  private final int degree;
+  private final long corpusFingerprint;
+  private final FrozenTrie model;
+
+  /**
+   * Constructor.
+   *
+   * @param key               musical key of the training data
+   * @param degree            degree of Markov Chain the model was trained with
+   * @param corpusFingerprint fingerprint of the training data files
+   * @param model             the trained model
+   */
+  public ModelSnapshot(String key, int degree, long corpusFingerprint, FrozenTrie model) {
+    this.key = key;
+    this.degree = degree;
+    this.corpusFingerprint = corpusFingerprint;
+    this.model = model;
+  }
+
+  public String getKey() {
+    return this.key;
+  }
+
+  public int getDegree() {
+    return this.degree;
+  }
+
+  public long getCorpusFingerprint() {
+    return this.corpusFingerprint;
+  }
+
+  public FrozenTrie getModel() {
+    return this.model;
+  }
+
+  /**
+   * Check whether the snapshot was trained with the given parameters.
+   *
+   * @param key               musical key
+   * @param degree            degree of Markov Chain
+   * @param corpusFingerprint fingerprint of the training data files
+   * @return true if all parameters match
+   */
+  public boolean matches(String key, int degree, long corpusFingerprint) {
+    return this.key.equals(key) && this.degree == degree
+        && this.corpusFingerprint == corpusFingerprint;
+  }
+
+  /**
+   * Save the snapshot to a file. The file is written next to the target and
+   * then moved in place, so a reader never sees a partially written file.
+   *
+   * @param path target file
+   * @throws IOException if writing fails
+   */
+  public void save(Path path) throws IOException {
+    byte[] keyBytes = this.key.getBytes(StandardCharsets.UTF_8);
+    int size = this.model.size();
+    long length = headerSize(keyBytes.length) + FrozenTrie.byteSize(size);
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException(String.format("Model of %s nodes is too large to save", size));
+    }
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+      data.order(FrozenTrie.BYTE_ORDER);
+      data.putInt(MAGIC)
+          .putInt(VERSION)
+          .putInt(this.degree)
+          .putInt(size)
+          .putLong(this.corpusFingerprint)
+          .putInt(keyBytes.length)
+          .putInt(0)
+          .put(keyBytes);
+      data.position(headerSize(keyBytes.length));
+      this.model.writeTo(data);
+      data.force();
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Load a snapshot by mapping the file to memory. The model stays valid after
+   * the file is closed.
+   *
+   * @param path snapshot file
+   * @return the snapshot
+   * @throws IOException if the file cannot be read or is not a valid snapshot
+   */
+  public static ModelSnapshot load(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long length = channel.size();
+      if (length < HEADER_BYTES || length > Integer.MAX_VALUE) {
+        throw new IOException(String.format("Invalid model file %s: %s bytes", path, length));
+      }
+      ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+          .order(FrozenTrie.BYTE_ORDER);
+      int magic = data.getInt();
+      int version = data.getInt();
+      if (magic != MAGIC || version != VERSION) {
+        throw new IOException(
+            String.format("Invalid model file %s: format %x version %s", path, magic, version));
+      }
+      int degree = data.getInt();
+      int size = data.getInt();
+      long corpusFingerprint = data.getLong();
+      int keyLength = data.getInt();
+      data.getInt();
+      if (keyLength < 0 || keyLength > length - HEADER_BYTES) {
+        throw new IOException(String.format("Invalid model file %s: key length %s", path,
+            keyLength));
+      }
+      byte[] keyBytes = new byte[keyLength];
+      data.get(keyBytes);
+      try {
+        data.position(headerSize(keyLength));
+        FrozenTrie model = FrozenTrie.readFrom(data, size);
+        return new ModelSnapshot(new String(keyBytes, StandardCharsets.UTF_8), degree,
+            corpusFingerprint, model);
+      } catch (IllegalArgumentException e) {
+        throw new IOException(String.format("Invalid model file %s", path), e);
+      }
+    }
+  }
+
+  private static int headerSize(int keyLength) {
+    int unaligned = HEADER_BYTES + keyLength;
+    return (unaligned + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+
+}
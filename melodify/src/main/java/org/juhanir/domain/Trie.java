@@ -1,8 +1,6 @@
 package org.juhanir.domain;
 
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Objects;
 import org.juhanir.Constants;
 
 /**
@@ -11,6 +9,7 @@ import org.juhanir.Constants;
 public class Trie {
 
   private TrieNode root;
+  private FrozenTrie frozen;
 
   public Trie() {
     this.root = new TrieNode(Integer.MIN_VALUE);
@@ -28,11 +27,36 @@ public class Trie {
    * @param key sequence of note strings to save
    */
   public void insert(int[] key) {
+    this.frozen = null;
     TrieNode node = this.root;
     for (int i = 0; i < key.length; i++) {
-      int numericNote = key[i];
-      node.addChild(numericNote);
-      node = node.getChild(numericNote);
+      node = node.addChild(key[i]);
+    }
+  }
+
+  /**
+   * <p>
+   * Inserts every note sequence of length <code>degree + 1</code> in the
+   * melody, i.e. a sequence starting from every note. The sequences starting
+   * from the last notes are cut short at the end of the melody, so every
+   * shorter sequence is counted once per occurrence in the melody.
+   * </p>
+   * <p>
+   * Same as calling <code>insert</code> for each sequence but without creating
+   * the sequence arrays.
+   * </p>
+   *
+   * @param melody note sequence
+   * @param degree degree of the Markov Chain
+   */
+  public void insertAllWindows(int[] melody, int degree) {
+    this.frozen = null;
+    for (int start = 0; start < melody.length; start++) {
+      int end = Math.min(start + degree + 1, melody.length);
+      TrieNode node = this.root;
+      for (int i = start; i < end; i++) {
+        node = node.addChild(melody[i]);
+      }
     }
   }
 
@@ -66,14 +90,13 @@ public class Trie {
    */
   public double[] getProbabilities(TrieNode note) {
     int childCount = note != null ? note.getChildCount() : 0;
-    TrieNode[] children = childCount > 0 ? note.getChildren() : new TrieNode[0];
+    int numberOfChildren = childCount > 0 ? note.getNumberOfChildren() : 0;
     double[] probabilities = new double[Constants.NOTE_ARRAY_SIZE];
     double sum = 0.0;
-    for (int j = 0; j < children.length; j++) {
-      if (children[j] != null) {
-        probabilities[j] = children[j].getCount() / (double) childCount;
-        sum += probabilities[j];
-      }
+    for (int j = 0; j < numberOfChildren; j++) {
+      TrieNode child = note.getChildAt(j);
+      probabilities[child.getValue()] = child.getCount() / (double) childCount;
+      sum += probabilities[child.getValue()];
     }
     // 0.0 for no children, otherwise check that probabilities sum up to one
     if (sum != 0.0 && Math.abs(1.0 - sum) > Constants.EPSILON) {
@@ -106,12 +129,15 @@ public class Trie {
     }
     int[] sequence = new int[length];
     sequence[0] = startingNote;
-    TrieNode node = this.root.getChildren()[startingNote];
+    TrieNode node = this.root.getChild(startingNote);
     for (int i = 1; i < length; i++) {
-      TrieNode[] children = Arrays.stream(node.getChildren()).filter(Objects::nonNull)
-          .toArray(TrieNode[]::new);
-      TrieNode selected = Arrays.stream(children).max(Comparator.comparingInt(TrieNode::getCount))
-          .orElse(null);
+      TrieNode selected = null;
+      for (int j = 0; j < node.getNumberOfChildren(); j++) {
+        TrieNode child = node.getChildAt(j);
+        if (selected == null || child.getCount() > selected.getCount()) {
+          selected = child;
+        }
+      }
       if (selected == null) {
         return Arrays.copyOfRange(sequence, 0, i);
       }
@@ -121,11 +147,70 @@ public class Trie {
     return sequence;
   }
 
+  /**
+   * <p>
+   * Add all sequences of the other trie to this one. The result is the same
+   * as if the sequences of both tries had been inserted to this trie, so
+   * tries trained separately, e.g. from different data sets or in different
+   * threads, can be combined without training again.
+   * </p>
+   * <p>
+   * Both tries should be trained with the same degree. The other trie is not
+   * modified.
+   * </p>
+   *
+   * @param other trie to merge into this one
+   */
+  public void merge(Trie other) {
+    this.frozen = null;
+    this.root.merge(other.root);
+  }
+
   /**
    * Clear the existing trie by resetting the root node.
    */
   public void clear() {
     this.root = new TrieNode(Integer.MIN_VALUE);
+    this.frozen = null;
+  }
+
+  /**
+   * <p>
+   * Compact the trie into a read-only form for generation. Nodes are laid
+   * out in breadth-first order into primitive arrays.
+   * </p>
+   * <p>
+   * The result is reused until the trie is modified.
+   * </p>
+   *
+   * @return frozen copy of the trie
+   */
+  public FrozenTrie freeze() {
+    if (this.frozen != null) {
+      return this.frozen;
+    }
+    int size = this.size();
+    TrieNode[] queue = new TrieNode[size];
+    int[] firstChild = new int[size + 1];
+    byte[] values = new byte[size];
+    int[] counts = new int[size];
+    int[] childCounts = new int[size];
+    queue[0] = this.root;
+    int tail = 1;
+    for (int head = 0; head < size; head++) {
+      TrieNode node = queue[head];
+      queue[head] = null;
+      values[head] = (byte) (head == 0 ? 0 : node.getValue());
+      counts[head] = node.getCount();
+      childCounts[head] = node.getChildCount();
+      firstChild[head] = tail;
+      for (int i = 0; i < node.getNumberOfChildren(); i++) {
+        queue[tail++] = node.getChildAt(i);
+      }
+    }
+    firstChild[size] = tail;
+    this.frozen = new FrozenTrie(firstChild, values, counts, childCounts);
+    return this.frozen;
   }
 
   private int countNodes(TrieNode node) {
@@ -133,10 +218,8 @@ public class Trie {
     if (!node.hasChildren()) {
       return c;
     }
-    for (TrieNode child : node.getChildren()) {
-      if (child != null) {
-        c += this.countNodes(child);
-      }
+    for (int i = 0; i < node.getNumberOfChildren(); i++) {
+      c += this.countNodes(node.getChildAt(i));
     }
     return c;
   }
@@ -1,12 +1,27 @@
 package org.juhanir.domain;
 
+import java.util.Arrays;
 import org.juhanir.Constants;
 
 /**
+ * <p>
  * A node in the trie. Represents a note.
+ * </p>
+ * <p>
+ * Children are kept in a compact array sorted by note value which grows
+ * as needed. Most nodes of a trained trie are leaves or have only a few
+ * children, so this saves a lot of memory compared to reserving a slot for
+ * every possible note. Once a node gets more than
+ * <code>DENSE_THRESHOLD</code> children, an additional index array with a
+ * slot for every note is created for constant time lookup.
+ * </p>
  */
 public class TrieNode {
+  private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+  private static final int DENSE_THRESHOLD = 16;
   private TrieNode[] children;
+  private TrieNode[] childIndex;
+  private int numberOfChildren;
   private int value;
   private int count;
   private int childCount;
@@ -18,7 +33,9 @@ public class TrieNode {
    */
   public TrieNode(int value) {
     this.value = value;
-    this.children = new TrieNode[Constants.NOTE_ARRAY_SIZE];
+    this.children = NO_CHILDREN;
+    this.childIndex = null;
+    this.numberOfChildren = 0;
     this.count = 0;
     this.childCount = 0;
   }
@@ -35,20 +52,56 @@ public class TrieNode {
     return this.childCount;
   }
 
+  /**
+   * Get the number of distinct children of the node.
+   *
+   * @return number of children
+   */
+  public int getNumberOfChildren() {
+    return this.numberOfChildren;
+  }
+
   public void incrementCount() {
     this.count++;
   }
 
   public boolean hasChild(int value) {
-    return this.children[value] != null;
+    return this.getChild(value) != null;
   }
 
   public boolean hasChildren() {
     return this.childCount > 0;
   }
 
+  /**
+   * Get the child with the given note value.
+   *
+   * @param value the numerical value of the child
+   * @return child node or null if not found, also for a value that is not a
+   *         note
+   */
   public TrieNode getChild(int value) {
-    return this.children[value];
+    if (this.childIndex != null) {
+      return value >= 0 && value < this.childIndex.length ? this.childIndex[value] : null;
+    }
+    int position = this.indexOf(value);
+    return position >= 0 ? this.children[position] : null;
+  }
+
+  /**
+   * Get a child by its position among the children. Children are ordered by
+   * their note value.
+   *
+   * @param position position between 0 and <code>getNumberOfChildren() - 1</code>
+   * @return child node
+   */
+  public TrieNode getChildAt(int position) {
+    if (position < 0 || position >= this.numberOfChildren) {
+      throw new IndexOutOfBoundsException(
+          String.format("Position %s out of bounds for %s children", position,
+              this.numberOfChildren));
+    }
+    return this.children[position];
   }
 
   /**
@@ -57,16 +110,103 @@ public class TrieNode {
    * property of the node for probability distribution calculation.
    *
    * @param value the numerical value of the child
+   * @return the child
    */
-  public void addChild(int value) {
-    if (this.children[value] == null) {
-      this.children[value] = new TrieNode(value);
+  public TrieNode addChild(int value) {
+    TrieNode child = this.getChild(value);
+    if (child == null) {
+      child = this.insertChild(value);
     }
-    this.children[value].incrementCount();
+    child.incrementCount();
     this.childCount++;
+    return child;
+  }
+
+  /**
+   * Adds the counts of the other node and all its descendants to this node,
+   * creating the children that are missing. The other node is not modified
+   * and no nodes are shared between the two.
+   *
+   * @param other node with the same position in another trie
+   */
+  public void merge(TrieNode other) {
+    this.count += other.count;
+    this.childCount += other.childCount;
+    for (int i = 0; i < other.numberOfChildren; i++) {
+      TrieNode otherChild = other.children[i];
+      TrieNode child = this.getChild(otherChild.value);
+      if (child == null) {
+        child = this.insertChild(otherChild.value);
+      }
+      child.merge(otherChild);
+    }
   }
 
+  /**
+   * <p>
+   * Get the children as an array indexed by note value, where missing children
+   * are null.
+   * </p>
+   * <p>
+   * For nodes with few children the array is created on demand, so prefer
+   * <code>getChild</code> and <code>getChildAt</code> in hot paths.
+   * </p>
+   *
+   * @return children indexed by note value
+   */
   public TrieNode[] getChildren() {
-    return this.children;
+    if (this.childIndex != null) {
+      return this.childIndex;
+    }
+    TrieNode[] indexed = new TrieNode[Constants.NOTE_ARRAY_SIZE];
+    for (int i = 0; i < this.numberOfChildren; i++) {
+      indexed[this.children[i].getValue()] = this.children[i];
+    }
+    return indexed;
+  }
+
+  private TrieNode insertChild(int value) {
+    if (value < 0 || value >= Constants.NOTE_ARRAY_SIZE) {
+      throw new IndexOutOfBoundsException(
+          String.format("Note value %s out of bounds", value));
+    }
+    int position = -(this.indexOf(value) + 1);
+    if (this.numberOfChildren == this.children.length) {
+      int capacity = Math.min(Math.max(2, this.children.length * 2), Constants.NOTE_ARRAY_SIZE);
+      this.children = Arrays.copyOf(this.children, capacity);
+    }
+    System.arraycopy(this.children, position, this.children, position + 1,
+        this.numberOfChildren - position);
+    TrieNode child = new TrieNode(value);
+    this.children[position] = child;
+    this.numberOfChildren++;
+    if (this.childIndex != null) {
+      this.childIndex[value] = child;
+    } else if (this.numberOfChildren > DENSE_THRESHOLD) {
+      this.childIndex = this.getChildren();
+    }
+    return child;
+  }
+
+  /**
+   * Binary search for the child value among the sorted children.
+   *
+   * @return position of the child or <code>-(insertion point) - 1</code>
+   */
+  private int indexOf(int value) {
+    int low = 0;
+    int high = this.numberOfChildren - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midValue = this.children[mid].getValue();
+      if (midValue < value) {
+        low = mid + 1;
+      } else if (midValue > value) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
   }
 }
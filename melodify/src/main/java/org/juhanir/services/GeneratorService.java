@@ -2,26 +2,81 @@ package org.juhanir.services;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.DoubleSupplier;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.juhanir.Constants;
+import org.juhanir.domain.FrozenTrie;
+import org.juhanir.domain.MelodyCursor;
 import org.juhanir.domain.Trie;
-import org.juhanir.domain.TrieNode;
 
 /**
  * Contains methods to generate a melody sequence.
  */
 public class GeneratorService {
 
-  private final Trie trie;
+  private final FrozenTrie model;
   private final Random random;
+  private final boolean backoff;
+  private final int deadEndHorizon;
   private static final Logger generatorLogger = LogManager.getLogger();
 
   public GeneratorService(Trie trie, Random rand) {
-    this.trie = trie;
+    this(trie.freeze(), rand);
+  }
+
+  public GeneratorService(FrozenTrie model, Random rand) {
+    this(model, rand, false);
+  }
+
+  /**
+   * Constructor for a service that does not avoid dead ends.
+   *
+   * @param model   trained model
+   * @param rand    source of the random numbers
+   * @param backoff true to continue from a shorter context when the context
+   *                has no continuation, see <code>MelodyCursor</code>, false
+   *                to stop the melody there
+   */
+  public GeneratorService(FrozenTrie model, Random rand, boolean backoff) {
+    this(model, rand, backoff, 0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param model          trained model
+   * @param rand           source of the random numbers
+   * @param backoff        true to continue from a shorter context when the
+   *                       context has no continuation, false to stop the
+   *                       melody there
+   * @param deadEndHorizon number of notes the context after a note must still
+   *                       reach, with the reach the model computed when it was
+   *                       frozen, for the note to be selected when there are
+   *                       others, up to <code>FrozenTrie.DEAD_END_HORIZON</code>,
+   *                       0 to not avoid dead ends
+   */
+  public GeneratorService(FrozenTrie model, Random rand, boolean backoff,
+      int deadEndHorizon) {
+    this.model = model;
     this.random = rand;
+    this.backoff = backoff;
+    this.deadEndHorizon = deadEndHorizon;
   }
 
   /**
@@ -56,27 +111,48 @@ public class GeneratorService {
    * probability distribution of the child notes of the last note in the input
    * sequence.
    * </p>
+   * <p>
+   * Selection is done in constant time with the alias tables of the model.
+   * </p>
    *
    * @param prefix sequence whose next note we are predicting
    * @return value of the note, -1 if no children
-   * @throws IllegalArgumentException if prefix has children whose probabilities
-   *                                  do not add up to
-   *                                  one.
    */
   public int predictNextNote(int[] prefix) {
-    TrieNode note = this.trie.lookup(prefix);
-    double[] probabilities = this.trie.getProbabilities(note);
-    return this.getIndexOfSelectedNote(probabilities);
+    int note = this.model.lookup(prefix);
+    return this.model.sample(note, this.random.nextDouble());
+  }
+
+  /**
+   * Start generating from the context. Each note of the cursor takes the next
+   * random number of this generator, like <code>predictNextNote</code>.
+   *
+   * @param context starting notes, its length is the degree of Markov Chain
+   * @return cursor positioned after the context, backing off and avoiding
+   *         dead ends if this service does
+   */
+  public MelodyCursor cursor(int[] context) {
+    return new MelodyCursor(this.model, context, this.backoff, this.deadEndHorizon);
   }
 
   /**
    * <p>
    * Predicts a melody sequence. Once minimum length is passed will
    * stop at the next note that is the same as first note of initial
-   * prefix. Will produce a shorter sequence if a next note cannot be predicted.
-   * If the initial note is not found after minimum length, will
+   * prefix. Will produce a shorter sequence if a next note cannot be predicted,
+   * unless the service backs off to shorter contexts, which always reaches the
+   * minimum length. If the initial note is not found after minimum length, will
    * produce at maximum minimumLength * 2 melody and then stop.
    * </p>
+   * <p>
+   * The length of the initial prefix is the degree of Markov Chain used, which
+   * can be any degree up to the one the model was trained with, see
+   * <code>FrozenTrie.getMaxDegree()</code>.
+   * </p>
+   * <p>
+   * The notes are generated with a <code>MelodyCursor</code>, so the context
+   * is not searched from the root for every note.
+   * </p>
    *
    * @param initialPrefix starting notes of the sequence
    * @param minimumLength minimum length of the sequence
@@ -85,14 +161,30 @@ public class GeneratorService {
   public int[] predictSequence(int[] initialPrefix, int minimumLength) {
     generatorLogger.info(
         String.format("Generating melody from common prefix %s", Arrays.toString(initialPrefix)));
+    return this.predictSequence(initialPrefix, minimumLength, this.random::nextDouble);
+  }
+
+  /**
+   * Predicts a melody sequence like <code>predictSequence</code> with the
+   * random numbers taken from the given generator instead of the one of this
+   * service.
+   *
+   * @param initialPrefix starting notes of the sequence
+   * @param minimumLength minimum length of the sequence
+   * @param random        random numbers from 0 (inclusive) to 1 (exclusive),
+   *                      e.g. <code>nextDouble</code> of a generator used by
+   *                      one thread
+   * @return sequence of notes in integer representation
+   */
+  public int[] predictSequence(int[] initialPrefix, int minimumLength, DoubleSupplier random) {
     int[] result = Arrays.copyOf(initialPrefix, minimumLength * 2);
+    MelodyCursor cursor = this.cursor(initialPrefix);
     int finalIndex = 0;
     for (int i = initialPrefix.length; i < result.length; i++) {
-      int[] generationPrefix = Arrays.copyOfRange(result, i - initialPrefix.length, i);
-      int nextNote = this.predictNextNote(generationPrefix);
+      int nextNote = cursor.next(random.getAsDouble());
       if (nextNote == -1) {
-        generatorLogger.info(String.format("Could not continue generation of %s",
-            Arrays.toString(generationPrefix)));
+        generatorLogger.debug(String.format("Could not continue generation of %s",
+            Arrays.toString(Arrays.copyOfRange(result, i - initialPrefix.length, i))));
         return Arrays.copyOfRange(result, 0, i);
       }
       finalIndex = i;
@@ -104,6 +196,139 @@ public class GeneratorService {
     return Arrays.copyOfRange(result, 0, finalIndex + 1);
   }
 
+  /**
+   * <p>
+   * Lazy stream of the notes of a melody, starting with the initial prefix.
+   * Notes are generated one at a time when the stream asks for them, so the
+   * stream takes the same memory however long it runs.
+   * </p>
+   * <p>
+   * The stream ends only if a note cannot be predicted. Otherwise the
+   * consumer decides when to stop, e.g. with <code>limit</code> or
+   * <code>takeWhile</code>. The random numbers are taken from this service,
+   * so the stream is used by one thread at a time.
+   * </p>
+   *
+   * @param initialPrefix starting notes of the melody
+   * @return sequential stream of notes in integer representation
+   */
+  public IntStream streamNotes(int[] initialPrefix) {
+    return this.streamNotes(initialPrefix, this.random::nextDouble);
+  }
+
+  /**
+   * Lazy stream of the notes of a melody like <code>streamNotes</code> with
+   * the random numbers taken from the given generator.
+   *
+   * @param initialPrefix starting notes of the melody
+   * @param random        random numbers from 0 (inclusive) to 1 (exclusive)
+   * @return sequential stream of notes in integer representation
+   */
+  public IntStream streamNotes(int[] initialPrefix, DoubleSupplier random) {
+    return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(
+        new NoteIterator(this.cursor(initialPrefix), initialPrefix.clone(), random),
+        Spliterator.ORDERED | Spliterator.NONNULL), false);
+  }
+
+  /**
+   * <p>
+   * Predicts many melody sequences from the same prefix concurrently with the
+   * given executor.
+   * </p>
+   * <p>
+   * Every melody has a random generator of its own, the one split from a
+   * <code>SplittableRandom</code> created with the seed in the order of the
+   * melodies. The melodies are the same for a seed however many threads the
+   * executor has, and melody <code>i</code> can be generated again alone with
+   * <code>predictSequence</code> and the <code>i</code>th split generator.
+   * </p>
+   *
+   * @param initialPrefix starting notes of the sequences
+   * @param count         number of melodies
+   * @param minimumLength minimum length of each sequence
+   * @param seed          seed for the random generators
+   * @param executor      executor for the generation, not shut down by this
+   *                      method
+   * @return melodies in the order of their random generators
+   * @throws InterruptedException if interrupted while waiting for the melodies
+   */
+  public List<int[]> generateBatch(int[] initialPrefix, int count, int minimumLength, long seed,
+      ExecutorService executor) throws InterruptedException {
+    SplittableRandom seeds = new SplittableRandom(seed);
+    List<Callable<int[]>> melodies = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      SplittableRandom random = seeds.split();
+      melodies.add(() -> this.predictSequence(initialPrefix, minimumLength, random::nextDouble));
+    }
+    List<int[]> result = new ArrayList<>(count);
+    for (Future<int[]> melody : executor.invokeAll(melodies)) {
+      try {
+        result.add(melody.get());
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Failed to generate melody", e.getCause());
+      }
+    }
+    generatorLogger.info(String.format("Generated %s melodies from common prefix %s with seed %s",
+        count, Arrays.toString(initialPrefix), seed));
+    return result;
+  }
+
+  /**
+   * <p>
+   * Select the melody to keep from a batch. Of the melodies that reached the
+   * minimum length, the one with the fewest notes that do not follow their
+   * full context in the model, i.e. notes generated after a backoff, is kept,
+   * and of those the most likely one, with the highest average log
+   * probability of its notes after the prefix. The first one is kept of
+   * equally good melodies.
+   * </p>
+   * <p>
+   * If no melody reached the minimum length, the longest one is kept.
+   * </p>
+   *
+   * @param melodies      generated melodies
+   * @param minimumLength minimum length the melodies were generated with
+   * @param degree        degree of Markov Chain the melodies were generated
+   *                      with, the length of their prefix
+   * @return selected melody, empty if there are no melodies
+   */
+  public int[] selectMelody(List<int[]> melodies, int minimumLength, int degree) {
+    int[] selected = new int[0];
+    boolean reached = false;
+    int fewestUnfollowed = Integer.MAX_VALUE;
+    double bestLikelihood = Double.NEGATIVE_INFINITY;
+    for (int[] melody : melodies) {
+      if (melody.length < minimumLength) {
+        if (!reached && melody.length > selected.length) {
+          selected = melody;
+        }
+        continue;
+      }
+      int unfollowed = 0;
+      double logLikelihood = 0;
+      for (int i = degree; i < melody.length; i++) {
+        int context = this.model.lookup(Arrays.copyOfRange(melody, i - degree, i));
+        int child = context == FrozenTrie.NOT_FOUND ? FrozenTrie.NOT_FOUND
+            : this.model.getChild(context, melody[i]);
+        if (child == FrozenTrie.NOT_FOUND) {
+          unfollowed++;
+        } else {
+          logLikelihood += Math.log(this.model.getCount(child)
+              / (double) this.model.getChildCount(context));
+        }
+      }
+      double likelihood = logLikelihood / Math.max(1, melody.length - degree - unfollowed);
+      if (!reached || unfollowed < fewestUnfollowed
+          || (unfollowed == fewestUnfollowed && likelihood > bestLikelihood)) {
+        selected = melody;
+        reached = true;
+        fewestUnfollowed = unfollowed;
+        bestLikelihood = likelihood;
+      }
+    }
+    return selected;
+  }
+
   /**
    * <p>
    * Get the base note of the given key from the most popular octave in the
@@ -115,15 +340,13 @@ public class GeneratorService {
    */
   public int getBaseNoteOfKey(String musicalKey) {
     int baseNote = Constants.musicalKeyBaseNotes.get(musicalKey);
-    TrieNode root = trie.lookup(new int[0]); // empty prefix gets root
-    TrieNode[] firstNotes = root.getChildren();
     int popularity = 0;
     int startingNote = -1;
-    for (int i = baseNote; i < firstNotes.length; i += 12) {
-      TrieNode note = firstNotes[i];
-      if (note != null && note.getCount() > popularity) {
+    for (int i = baseNote; i < Constants.NOTE_ARRAY_SIZE; i += 12) {
+      int note = this.model.getChild(FrozenTrie.ROOT, i);
+      if (note != FrozenTrie.NOT_FOUND && this.model.getCount(note) > popularity) {
         startingNote = i;
-        popularity = note.getCount();
+        popularity = this.model.getCount(note);
       }
     }
     return startingNote;
@@ -173,4 +396,47 @@ public class GeneratorService {
     };
   }
 
+  /**
+   * Gives the notes of the prefix and then predicts a note whenever one is
+   * asked for, until the cursor has no continuation.
+   */
+  private static final class NoteIterator implements PrimitiveIterator.OfInt {
+    private final MelodyCursor cursor;
+    private final int[] prefix;
+    private final DoubleSupplier random;
+    private int position;
+    private int next = -1;
+
+    NoteIterator(MelodyCursor cursor, int[] prefix, DoubleSupplier random) {
+      this.cursor = cursor;
+      this.prefix = prefix;
+      this.random = random;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (this.position < this.prefix.length || this.next != -1) {
+        return true;
+      }
+      if (!this.cursor.hasNext()) {
+        return false;
+      }
+      this.next = this.cursor.next(this.random.getAsDouble());
+      return true;
+    }
+
+    @Override
+    public int nextInt() {
+      if (this.position < this.prefix.length) {
+        return this.prefix[this.position++];
+      }
+      if (!this.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int note = this.next;
+      this.next = -1;
+      return note;
+    }
+  }
+
 }
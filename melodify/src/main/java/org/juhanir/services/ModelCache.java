@@ -0,0 +1,188 @@
+package org.juhanir.services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.juhanir.domain.FrozenTrie;
+
+/**
+ * <p>
+ * Keeps trained models in memory so that switching back to a key and degree
+ * that was already trained does not need training or loading again.
+ * </p>
+ * <p>
+ * Models are identified by the key, the degree and the fingerprint of the
+ * training data. The total size of the cached models is kept under a memory
+ * budget by evicting the least recently used models first. A model larger
+ * than the whole budget is not cached.
+ * </p>
+ */
+public class ModelCache {
+
+  private static Logger cacheLogger = LogManager.getLogger();
+
+  private final long budgetBytes;
+  private final LinkedHashMap<Entry, FrozenTrie> models;
+  private long usedBytes;
+  private int hits;
+  private int misses;
+
+  /**
+   * Constructor.
+   *
+   * @param budgetBytes maximum total size of the cached models in bytes
+   */
+  public ModelCache(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+    this.models = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * Get a cached model and mark it as the most recently used.
+   *
+   * @param key               musical key
+   * @param degree            degree of Markov Chain
+   * @param corpusFingerprint fingerprint of the training data files
+   * @return the model or null if not cached
+   */
+  public synchronized FrozenTrie get(String key, int degree, long corpusFingerprint) {
+    FrozenTrie model = this.models.get(new Entry(key, degree, corpusFingerprint));
+    if (model != null) {
+      this.hits++;
+    } else {
+      this.misses++;
+    }
+    cacheLogger.info(String.format("Model cache %s for %s degree %s: %s", model != null
+        ? "hit" : "miss", key, degree, this.getStatistics()));
+    return model;
+  }
+
+  /**
+   * Get the cached model with the lowest degree that is at least the given
+   * degree and mark it as the most recently used. A model trained with some
+   * degree serves every lower degree too.
+   *
+   * @param key               musical key
+   * @param degree            lowest degree of Markov Chain the model must have
+   * @param corpusFingerprint fingerprint of the training data files
+   * @return the model or null if none is cached
+   */
+  public synchronized FrozenTrie getAtLeast(String key, int degree, long corpusFingerprint) {
+    Entry best = null;
+    for (Entry entry : this.models.keySet()) {
+      if (entry.key.equals(key) && entry.corpusFingerprint == corpusFingerprint
+          && entry.degree >= degree && (best == null || entry.degree < best.degree)) {
+        best = entry;
+      }
+    }
+    FrozenTrie model = best != null ? this.models.get(best) : null;
+    if (model != null) {
+      this.hits++;
+    } else {
+      this.misses++;
+    }
+    cacheLogger.info(String.format("Model cache %s for %s degree %s: %s", model != null
+        ? "hit with degree " + best.degree : "miss", key, degree, this.getStatistics()));
+    return model;
+  }
+
+  /**
+   * Add a model to the cache, evicting the least recently used models until
+   * it fits into the budget.
+   *
+   * @param key               musical key
+   * @param degree            degree of Markov Chain
+   * @param corpusFingerprint fingerprint of the training data files
+   * @param model             the model
+   */
+  public synchronized void put(String key, int degree, long corpusFingerprint,
+      FrozenTrie model) {
+    long bytes = model.getByteSize();
+    if (bytes > this.budgetBytes) {
+      cacheLogger.info(String.format("Model for %s degree %s is too large to cache: %s bytes",
+          key, degree, bytes));
+      return;
+    }
+    FrozenTrie previous = this.models.remove(new Entry(key, degree, corpusFingerprint));
+    if (previous != null) {
+      this.usedBytes -= previous.getByteSize();
+    }
+    Iterator<Map.Entry<Entry, FrozenTrie>> leastRecentlyUsed =
+        this.models.entrySet().iterator();
+    while (this.usedBytes + bytes > this.budgetBytes) {
+      Map.Entry<Entry, FrozenTrie> evicted = leastRecentlyUsed.next();
+      this.usedBytes -= evicted.getValue().getByteSize();
+      leastRecentlyUsed.remove();
+      cacheLogger.info(String.format("Evicted model for %s degree %s from cache",
+          evicted.getKey().key, evicted.getKey().degree));
+    }
+    this.models.put(new Entry(key, degree, corpusFingerprint), model);
+    this.usedBytes += bytes;
+    cacheLogger.info(String.format("Cached model for %s degree %s: %s", key, degree,
+        this.getStatistics()));
+  }
+
+  /**
+   * Remove all models from the cache.
+   */
+  public synchronized void clear() {
+    this.models.clear();
+    this.usedBytes = 0;
+  }
+
+  public synchronized int size() {
+    return this.models.size();
+  }
+
+  public synchronized long getUsedBytes() {
+    return this.usedBytes;
+  }
+
+  public long getBudgetBytes() {
+    return this.budgetBytes;
+  }
+
+  public synchronized int getHits() {
+    return this.hits;
+  }
+
+  public synchronized int getMisses() {
+    return this.misses;
+  }
+
+  private String getStatistics() {
+    return String.format("%s models, %s/%s KB, %s hits, %s misses", this.models.size(),
+        this.usedBytes >> 10, this.budgetBytes >> 10, this.hits, this.misses);
+  }
+
+  private static final class Entry {
+    private final String key;
+    private final int degree;
+    private final long corpusFingerprint;
+
+    Entry(String key, int degree, long corpusFingerprint) {
+      this.key = key;
+      this.degree = degree;
+      this.corpusFingerprint = corpusFingerprint;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Entry)) {
+        return false;
+      }
+      Entry entry = (Entry) other;
+      return this.key.equals(entry.key) && this.degree == entry.degree
+          && this.corpusFingerprint == entry.corpusFingerprint;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.key, this.degree, this.corpusFingerprint);
+    }
+  }
+
+}
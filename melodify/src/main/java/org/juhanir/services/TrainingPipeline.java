@@ -0,0 +1,409 @@
+package org.juhanir.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.audiveris.proxymusic.util.Marshalling.UnmarshallingException;
+import org.juhanir.domain.Trie;
+import org.juhanir.utils.FileIo;
+import org.juhanir.utils.ScoreParser;
+
+/**
+ * <p>
+ * Trains a trie from files in three stages that run at the same time: one
+ * thread reads the files, parser threads parse them to melodies and the calling
+ * thread inserts the melodies to the trie, so the trie is never accessed
+ * concurrently.
+ * </p>
+ * <p>
+ * The stages are connected by bounded queues. A stage that gets ahead waits
+ * for room in the next queue, so no more than twice the queue capacity of
+ * files are held in memory at a time however large the corpus is.
+ * </p>
+ * <p>
+ * Every stage records the time it worked and the time it waited for input and
+ * for room in the next queue, and the queues record how full they were. The
+ * slowest stage is the one that keeps working while the others wait for it.
+ * </p>
+ */
+public class TrainingPipeline {
+
+  private static Logger pipelineLogger = LogManager.getLogger();
+  private static final SourceFile END_OF_FILES = new SourceFile(null, null);
+  private static final int[] END_OF_MELODIES = new int[0];
+
+  private final FileIo fileIo;
+  private final ScoreParser scoreParser;
+  private final int parserCount;
+  private final int queueCapacity;
+  private final Stage readStage = new Stage("read");
+  private final Stage parseStage = new Stage("parse");
+  private final Stage insertStage = new Stage("insert");
+  private final QueueDepth readQueue = new QueueDepth("read files");
+  private final QueueDepth parsedQueue = new QueueDepth("parsed melodies");
+  private long wallNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param fileIo        file utility
+   * @param scoreParser   score parser
+   * @param parserCount   number of parser threads
+   * @param queueCapacity number of files each queue between the stages holds
+   */
+  public TrainingPipeline(FileIo fileIo, ScoreParser scoreParser, int parserCount,
+      int queueCapacity) {
+    if (parserCount < 1 || queueCapacity < 1) {
+      throw new IllegalArgumentException("Pipeline needs a parser and room in the queues");
+    }
+    this.fileIo = fileIo;
+    this.scoreParser = scoreParser;
+    this.parserCount = parserCount;
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Train the trie with the files. Files in quarantine are skipped and files
+   * that cannot be read or parsed are logged and left out. Any other error in
+   * the reading or parsing stage stops the training.
+   *
+   * @param filePaths list of paths to musicxml files
+   * @param trie      the trie to insert the melodies to
+   * @param degree    degree of Markov Chain to use
+   * @param executor  executor for the reading and parsing stages with at least
+   *                  two threads, not shut down by this method
+   * @throws InterruptedException     if interrupted while waiting for the
+   *                                  stages
+   * @throws IllegalArgumentException if the executor has only one thread, on
+   *                                  which the reader would wait forever for
+   *                                  a parser
+   * @throws IllegalStateException    if the reading or parsing stage failed,
+   *                                  with the error of the stage as the cause
+   */
+  public void run(List<String> filePaths, Trie trie, int degree, ExecutorService executor)
+      throws InterruptedException {
+    if (getMaximumThreads(executor) < 2) {
+      throw new IllegalArgumentException("Pipeline needs an executor with at least two threads");
+    }
+    BlockingQueue<SourceFile> files = new ArrayBlockingQueue<>(this.queueCapacity);
+    BlockingQueue<int[]> melodies = new ArrayBlockingQueue<>(this.queueCapacity);
+    List<Future<?>> stages = new ArrayList<>();
+    long start = System.nanoTime();
+    try {
+      stages.add(executor.submit(() -> {
+        this.read(filePaths, files);
+        return null;
+      }));
+      for (int i = 0; i < this.parserCount; i++) {
+        stages.add(executor.submit(() -> {
+          this.parse(files, melodies);
+          return null;
+        }));
+      }
+      this.insert(melodies, trie, degree);
+      // the parsers first, a reader left without parsers may still be waiting
+      // for room in the queue
+      for (Future<?> parser : stages.subList(1, stages.size())) {
+        awaitStage(parser);
+      }
+      awaitStage(stages.get(0));
+    } finally {
+      for (Future<?> stage : stages) {
+        stage.cancel(true);
+      }
+      this.wallNanos = System.nanoTime() - start;
+    }
+  }
+
+  private static void awaitStage(Future<?> stage) throws InterruptedException {
+    try {
+      stage.get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Training pipeline stage failed", e.getCause());
+    }
+  }
+
+  /**
+   * Number of threads the executor can run at a time, if it is known.
+   */
+  private static int getMaximumThreads(ExecutorService executor) {
+    if (executor instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+    }
+    if (executor instanceof ForkJoinPool) {
+      return ((ForkJoinPool) executor).getParallelism();
+    }
+    return Integer.MAX_VALUE;
+  }
+
+  public Stage getReadStage() {
+    return this.readStage;
+  }
+
+  public Stage getParseStage() {
+    return this.parseStage;
+  }
+
+  public Stage getInsertStage() {
+    return this.insertStage;
+  }
+
+  public QueueDepth getReadQueue() {
+    return this.readQueue;
+  }
+
+  public QueueDepth getParsedQueue() {
+    return this.parsedQueue;
+  }
+
+  public long getWallNanos() {
+    return this.wallNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("pipeline with %s parsers in %.0f ms%n  %s%n  %s%n  %s%n  %s%n  %s",
+        this.parserCount, this.wallNanos / 1e6, this.readStage, this.parseStage,
+        this.insertStage, this.readQueue, this.parsedQueue);
+  }
+
+  /**
+   * Reads the files to the queue and ends it with an end marker for every
+   * parser, also when reading fails, so the parsers always stop. A cancelled
+   * reader puts no end markers, since no parser is left to take them.
+   */
+  private void read(List<String> filePaths, BlockingQueue<SourceFile> files)
+      throws InterruptedException {
+    boolean cancelled = false;
+    try {
+      for (String filePath : filePaths) {
+        if (this.scoreParser.isQuarantined(filePath)) {
+          continue;
+        }
+        long started = System.nanoTime();
+        byte[] content;
+        try {
+          content = this.fileIo.readAllBytes(filePath);
+        } catch (IOException e) {
+          pipelineLogger.error("Failed to read file " + filePath);
+          pipelineLogger.error(e);
+          this.readStage.failed.increment();
+          continue;
+        }
+        long read = System.nanoTime();
+        files.put(new SourceFile(filePath, content));
+        this.readStage.record(content.length, 0, read - started, System.nanoTime() - read);
+      }
+    } catch (InterruptedException e) {
+      cancelled = true;
+      throw e;
+    } finally {
+      for (int i = 0; !cancelled && i < this.parserCount; i++) {
+        files.put(END_OF_FILES);
+      }
+    }
+  }
+
+  /**
+   * Parses files from the queue until an end marker and then puts an end
+   * marker for the inserter, also when parsing fails, unless cancelled.
+   */
+  private void parse(BlockingQueue<SourceFile> files, BlockingQueue<int[]> melodies)
+      throws InterruptedException {
+    boolean cancelled = false;
+    try {
+      while (true) {
+        long started = System.nanoTime();
+        this.readQueue.sample(files.size());
+        SourceFile file = files.take();
+        if (file == END_OF_FILES) {
+          return;
+        }
+        long taken = System.nanoTime();
+        int[] melody;
+        try {
+          melody = this.scoreParser.parse(new ByteArrayInputStream(file.content));
+        } catch (UnmarshallingException | IllegalArgumentException e) {
+          pipelineLogger.error("Failed to parse file " + file.path);
+          pipelineLogger.error(e);
+          this.parseStage.failed.increment();
+          this.scoreParser.quarantineIfUnparseable(file.path, e);
+          continue;
+        }
+        long parsed = System.nanoTime();
+        melodies.put(melody);
+        this.parseStage.record(file.content.length, taken - started, parsed - taken,
+            System.nanoTime() - parsed);
+      }
+    } catch (InterruptedException e) {
+      cancelled = true;
+      throw e;
+    } finally {
+      if (!cancelled) {
+        melodies.put(END_OF_MELODIES);
+      }
+    }
+  }
+
+  private void insert(BlockingQueue<int[]> melodies, Trie trie, int degree)
+      throws InterruptedException {
+    int running = this.parserCount;
+    while (running > 0) {
+      long started = System.nanoTime();
+      this.parsedQueue.sample(melodies.size());
+      int[] melody = melodies.take();
+      if (melody == END_OF_MELODIES) {
+        running--;
+        continue;
+      }
+      long taken = System.nanoTime();
+      trie.insertAllWindows(melody, degree);
+      this.insertStage.record(melody.length, taken - started, System.nanoTime() - taken, 0);
+    }
+  }
+
+  private static final class SourceFile {
+    private final String path;
+    private final byte[] content;
+
+    SourceFile(String path, byte[] content) {
+      this.path = path;
+      this.content = content;
+    }
+  }
+
+  /**
+   * Work done by a stage and the time it spent working and waiting, summed
+   * over the threads of the stage.
+   */
+  public static final class Stage {
+    private final String name;
+    private final LongAdder items = new LongAdder();
+    private final LongAdder units = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder starvedNanos = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+
+    Stage(String name) {
+      this.name = name;
+    }
+
+    void record(long itemUnits, long starved, long busy, long blocked) {
+      this.items.increment();
+      this.units.add(itemUnits);
+      this.starvedNanos.add(starved);
+      this.busyNanos.add(busy);
+      this.blockedNanos.add(blocked);
+    }
+
+    /**
+     * Number of files that went through the stage.
+     *
+     * @return files
+     */
+    public long getItems() {
+      return this.items.sum();
+    }
+
+    /**
+     * Bytes for the reading and parsing stages, notes for the inserting stage.
+     *
+     * @return bytes or notes
+     */
+    public long getUnits() {
+      return this.units.sum();
+    }
+
+    public long getFailed() {
+      return this.failed.sum();
+    }
+
+    public long getBusyNanos() {
+      return this.busyNanos.sum();
+    }
+
+    /**
+     * Time spent waiting for the previous stage.
+     *
+     * @return nanoseconds
+     */
+    public long getStarvedNanos() {
+      return this.starvedNanos.sum();
+    }
+
+    /**
+     * Time spent waiting for room in the queue to the next stage.
+     *
+     * @return nanoseconds
+     */
+    public long getBlockedNanos() {
+      return this.blockedNanos.sum();
+    }
+
+    /**
+     * Files per second of working time of one thread.
+     *
+     * @return throughput
+     */
+    public double getThroughput() {
+      long busy = this.getBusyNanos();
+      return busy > 0 ? this.getItems() / (busy / 1e9) : 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %s files (%s failed), %.0f files/s, busy %.0f ms, "
+          + "waiting for input %.0f ms, for output %.0f ms", this.name, this.getItems(),
+          this.getFailed(), this.getThroughput(), this.getBusyNanos() / 1e6,
+          this.getStarvedNanos() / 1e6, this.getBlockedNanos() / 1e6);
+    }
+  }
+
+  /**
+   * Depth of a queue between two stages, sampled every time a file is taken
+   * from it.
+   */
+  public static final class QueueDepth {
+    private final String name;
+    private long samples;
+    private long total;
+    private int max;
+
+    QueueDepth(String name) {
+      this.name = name;
+    }
+
+    synchronized void sample(int depth) {
+      this.samples++;
+      this.total += depth;
+      this.max = Math.max(this.max, depth);
+    }
+
+    public synchronized double getAverage() {
+      return this.samples > 0 ? this.total / (double) this.samples : 0;
+    }
+
+    public synchronized int getMax() {
+      return this.max;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s queue: average depth %.1f, max %s", this.name,
+          this.getAverage(), this.getMax());
+    }
+  }
+
+}
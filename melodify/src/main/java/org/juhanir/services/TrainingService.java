@@ -2,23 +2,44 @@ package org.juhanir.services;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.audiveris.proxymusic.util.Marshalling.UnmarshallingException;
+import org.juhanir.Constants;
+import org.juhanir.domain.FrozenTrie;
+import org.juhanir.domain.ModelSnapshot;
 import org.juhanir.domain.Trie;
+import org.juhanir.utils.CorpusIndex;
 import org.juhanir.utils.FileIo;
+import org.juhanir.utils.ParsedTune;
 import org.juhanir.utils.ScoreParser;
 
 /**
+ * <p>
  * Contains methods to train the model.
+ * </p>
+ * <p>
+ * If a corpus index is given, the notes of the files in it are taken from the
+ * index and only the files missing from it are parsed.
+ * </p>
  */
 public class TrainingService {
 
   private static Logger trainingLogger = LogManager.getLogger();
+  private static final int PIPELINE_QUEUE_CAPACITY = 16;
 
   private final FileIo fileIo;
   private final ScoreParser scoreParser;
+  private final ModelCache modelCache;
+  private final CorpusIndex corpusIndex;
   private Trie trie;
 
   /**
@@ -29,9 +50,38 @@ public class TrainingService {
    * @param trie        the data structure for the model
    */
   public TrainingService(FileIo fileIo, ScoreParser scoreParser, Trie trie) {
+    this(fileIo, scoreParser, trie, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param fileIo      file utility
+   * @param scoreParser score parser
+   * @param trie        the data structure for the model
+   * @param modelCache  cache for trained models, may be null
+   */
+  public TrainingService(FileIo fileIo, ScoreParser scoreParser, Trie trie,
+      ModelCache modelCache) {
+    this(fileIo, scoreParser, trie, modelCache, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param fileIo      file utility
+   * @param scoreParser score parser
+   * @param trie        the data structure for the model
+   * @param modelCache  cache for trained models, may be null
+   * @param corpusIndex parsed training data files, may be null
+   */
+  public TrainingService(FileIo fileIo, ScoreParser scoreParser, Trie trie,
+      ModelCache modelCache, CorpusIndex corpusIndex) {
     this.fileIo = fileIo;
     this.scoreParser = scoreParser;
     this.trie = trie;
+    this.modelCache = modelCache;
+    this.corpusIndex = corpusIndex;
   }
 
   /**
@@ -45,20 +95,211 @@ public class TrainingService {
         String.format(
             "Training model with degree %s and %s source data files", degree, filePaths.size()));
     for (final String filePath : filePaths) {
-      try (InputStream is = this.fileIo.readFile(filePath)) {
-        List<Integer> melodies = this.scoreParser.parse(is);
-        for (int i = 0; i < melodies.size() - degree; i++) {
-          int[] trainingTuple = melodies
-              .subList(i, i + degree + 1)
-              .stream()
-              .mapToInt(Integer::intValue)
-              .toArray();
-          this.trie.insert(trainingTuple);
-        }
-      } catch (UnmarshallingException | IOException | IllegalArgumentException e) {
-        trainingLogger.error("Failed to parse file " + filePath);
-        trainingLogger.error(e);
+      int[] melody = this.getIndexedMelody(filePath);
+      this.trie.insertAllWindows(melody != null ? melody : this.parseFile(filePath), degree);
+    }
+  }
+
+  /**
+   * <p>
+   * Train the model with the specified data, parsing the files concurrently
+   * with the given executor.
+   * </p>
+   * <p>
+   * Parsed melodies are inserted to the trie from the calling thread as they
+   * become ready, so the trie is never accessed concurrently and the result is
+   * the same as with <code>trainWith</code>. Melodies found in the corpus index
+   * are inserted directly without using the executor.
+   * </p>
+   *
+   * @param filePaths list of paths to musicxml files
+   * @param degree    degree of Markov Chain to use
+   * @param executor  executor for parsing the files, not shut down by this method
+   * @throws InterruptedException if interrupted while waiting for the parsing
+   */
+  public void trainInParallel(List<String> filePaths, int degree, ExecutorService executor)
+      throws InterruptedException {
+    trainingLogger.info(
+        String.format(
+            "Training model in parallel with degree %s and %s source data files", degree,
+            filePaths.size()));
+    CompletionService<int[]> parsedFiles = new ExecutorCompletionService<>(executor);
+    int submitted = 0;
+    for (final String filePath : filePaths) {
+      int[] melody = this.getIndexedMelody(filePath);
+      if (melody != null) {
+        this.trie.insertAllWindows(melody, degree);
+      } else {
+        parsedFiles.submit(() -> this.parseFile(filePath));
+        submitted++;
+      }
+    }
+    for (int i = 0; i < submitted; i++) {
+      try {
+        this.trie.insertAllWindows(parsedFiles.take().get(), degree);
+      } catch (ExecutionException e) {
+        trainingLogger.error("Failed to parse file");
+        trainingLogger.error(e.getCause());
       }
     }
   }
+
+  /**
+   * <p>
+   * Train the model with the specified data in a pipeline where reading,
+   * parsing and inserting the files run at the same time, see
+   * <code>TrainingPipeline</code>. Melodies found in the corpus index are
+   * inserted directly and only the other files go through the pipeline.
+   * </p>
+   * <p>
+   * Gives the same result as <code>trainWith</code>. The returned pipeline
+   * tells how busy each stage was, which shows whether reading, parsing or
+   * inserting limits the training.
+   * </p>
+   *
+   * @param filePaths   list of paths to musicxml files
+   * @param degree      degree of Markov Chain to use
+   * @param executor    executor with at least two threads for reading and
+   *                    parsing the files, not shut down by this method
+   * @param parserCount number of parser threads
+   * @return the pipeline with its statistics
+   * @throws InterruptedException     if interrupted while waiting for the
+   *                                  pipeline
+   * @throws IllegalArgumentException if the executor has only one thread
+   * @throws IllegalStateException    if reading or parsing failed other than
+   *                                  for a broken file
+   */
+  public TrainingPipeline trainPipelined(List<String> filePaths, int degree,
+      ExecutorService executor, int parserCount) throws InterruptedException {
+    trainingLogger.info(
+        String.format(
+            "Training model in a pipeline with degree %s and %s source data files", degree,
+            filePaths.size()));
+    List<String> missing = new ArrayList<>();
+    for (final String filePath : filePaths) {
+      int[] melody = this.getIndexedMelody(filePath);
+      if (melody != null) {
+        this.trie.insertAllWindows(melody, degree);
+      } else {
+        missing.add(filePath);
+      }
+    }
+    TrainingPipeline pipeline = new TrainingPipeline(this.fileIo, this.scoreParser,
+        parserCount, PIPELINE_QUEUE_CAPACITY);
+    pipeline.run(missing, this.trie, degree, executor);
+    trainingLogger.info(pipeline.toString());
+    return pipeline;
+  }
+
+  /**
+   * <p>
+   * Get a model for the key and degree. A model trained from the same files
+   * is taken from the model cache if there is one. Otherwise if a snapshot
+   * trained from the same files is saved in the folder it is loaded, or the
+   * trie is cleared and trained in parallel and a snapshot of the result is
+   * saved. The model is then added to the cache.
+   * </p>
+   * <p>
+   * A model trained with a higher degree serves every lower degree, so the
+   * cached model or the snapshot with the lowest degree at least the given
+   * one is used, and switching to a lower degree never trains again.
+   * </p>
+   * <p>
+   * A snapshot that cannot be read or saved is logged and ignored.
+   * </p>
+   *
+   * @param key            musical key of the files
+   * @param filePaths      list of paths to musicxml files
+   * @param degree         degree of Markov Chain to use
+   * @param executor       executor for parsing the files, not shut down by this
+   *                       method
+   * @param snapshotFolder folder for the snapshots
+   * @return the model for generation
+   * @throws IOException          if the training data files cannot be read
+   * @throws InterruptedException if interrupted while waiting for the parsing
+   */
+  public FrozenTrie loadOrTrain(String key, List<String> filePaths, int degree,
+      ExecutorService executor, Path snapshotFolder) throws IOException, InterruptedException {
+    long fingerprint = this.fileIo.fingerprint(filePaths);
+    if (this.modelCache == null) {
+      return this.loadOrTrain(key, filePaths, degree, executor, snapshotFolder, fingerprint)
+          .getModel();
+    }
+    FrozenTrie model = this.modelCache.getAtLeast(key, degree, fingerprint);
+    if (model == null) {
+      ModelSnapshot snapshot =
+          this.loadOrTrain(key, filePaths, degree, executor, snapshotFolder, fingerprint);
+      model = snapshot.getModel();
+      this.modelCache.put(key, snapshot.getDegree(), fingerprint, model);
+    }
+    return model;
+  }
+
+  private ModelSnapshot loadOrTrain(String key, List<String> filePaths, int degree,
+      ExecutorService executor, Path snapshotFolder, long fingerprint)
+      throws InterruptedException {
+    for (int saved = degree; saved <= Constants.MARKOV_CHAIN_DEGREE_MAX; saved++) {
+      ModelSnapshot snapshot = loadSnapshot(key, saved, fingerprint, snapshotFolder);
+      if (snapshot != null) {
+        return snapshot;
+      }
+    }
+    this.trie.clear();
+    this.trainInParallel(filePaths, degree, executor);
+    ModelSnapshot snapshot = new ModelSnapshot(key, degree, fingerprint, this.trie.freeze());
+    Path snapshotPath = getSnapshotPath(key, degree, snapshotFolder);
+    try {
+      snapshot.save(snapshotPath);
+    } catch (IOException e) {
+      trainingLogger.error("Failed to save model to " + snapshotPath);
+      trainingLogger.error(e);
+    }
+    return snapshot;
+  }
+
+  private static ModelSnapshot loadSnapshot(String key, int degree, long fingerprint,
+      Path snapshotFolder) {
+    Path snapshotPath = getSnapshotPath(key, degree, snapshotFolder);
+    if (!Files.exists(snapshotPath)) {
+      return null;
+    }
+    try {
+      ModelSnapshot snapshot = ModelSnapshot.load(snapshotPath);
+      if (snapshot.matches(key, degree, fingerprint)) {
+        trainingLogger.info("Loaded model from " + snapshotPath);
+        return snapshot;
+      }
+      trainingLogger.info("Training data has changed since " + snapshotPath + " was saved");
+    } catch (IOException e) {
+      trainingLogger.error("Failed to load model from " + snapshotPath);
+      trainingLogger.error(e);
+    }
+    return null;
+  }
+
+  private static Path getSnapshotPath(String key, int degree, Path snapshotFolder) {
+    return snapshotFolder.resolve(String.format("%s-%s.model", key, degree));
+  }
+
+  private int[] getIndexedMelody(String filePath) {
+    if (this.corpusIndex == null) {
+      return null;
+    }
+    ParsedTune tune = this.corpusIndex.get(filePath);
+    return tune != null ? tune.getNotes() : null;
+  }
+
+  private int[] parseFile(String filePath) {
+    if (this.scoreParser.isQuarantined(filePath)) {
+      return new int[0];
+    }
+    try (InputStream is = this.fileIo.readFile(filePath)) {
+      return this.scoreParser.parse(is);
+    } catch (UnmarshallingException | IOException | IllegalArgumentException e) {
+      trainingLogger.error("Failed to parse file " + filePath);
+      trainingLogger.error(e);
+      this.scoreParser.quarantineIfUnparseable(filePath, e);
+      return new int[0];
+    }
+  }
 }
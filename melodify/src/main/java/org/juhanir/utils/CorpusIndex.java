@@ -0,0 +1,73 @@
+package org.juhanir.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * The parsed training data files by file path, grouped by musical key.
+ * </p>
+ * <p>
+ * Built once when the application starts. Training takes the notes from the
+ * index instead of parsing the files again. Safe to use from several threads.
+ * </p>
+ */
+public class CorpusIndex {
+
+  private final Map<String, ParsedTune> tunes = new HashMap<>();
+  private final Map<String, List<String>> filesPerKey = new HashMap<>();
+  private long noteCount;
+
+  /**
+   * Add a parsed file to the index, replacing an earlier parse of the same
+   * file.
+   *
+   * @param filePath path to the file
+   * @param tune     the parsed file
+   */
+  public synchronized void add(String filePath, ParsedTune tune) {
+    ParsedTune previous = this.tunes.put(filePath, tune);
+    if (previous != null) {
+      this.filesPerKey.get(previous.getKey()).remove(filePath);
+      if (this.filesPerKey.get(previous.getKey()).isEmpty()) {
+        this.filesPerKey.remove(previous.getKey());
+      }
+      this.noteCount -= previous.getNotes().length;
+    }
+    this.filesPerKey.computeIfAbsent(tune.getKey(), key -> new ArrayList<>()).add(filePath);
+    this.noteCount += tune.getNotes().length;
+  }
+
+  /**
+   * Get a parsed file.
+   *
+   * @param filePath path to the file
+   * @return the parsed file or null if it is not in the index
+   */
+  public synchronized ParsedTune get(String filePath) {
+    return this.tunes.get(filePath);
+  }
+
+  /**
+   * Get the files in the index grouped by musical key, in the order they were
+   * added. The returned map is a copy.
+   *
+   * @return Map of filenames per key
+   */
+  public synchronized Map<String, List<String>> getFilesPerKey() {
+    Map<String, List<String>> copy = new HashMap<>();
+    this.filesPerKey.forEach((key, files) -> copy.put(key, new ArrayList<>(files)));
+    return copy;
+  }
+
+  public synchronized int size() {
+    return this.tunes.size();
+  }
+
+  public synchronized long getNoteCount() {
+    return this.noteCount;
+  }
+
+}
@@ -10,24 +10,100 @@ import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jfugue.midi.MidiFileManager;
 import org.jfugue.pattern.Pattern;
 
 /**
+ * <p>
  * Utility class for filesystem operations.
+ * </p>
+ * <p>
+ * Files inside zip archives can be read without unpacking them. The path of
+ * such a file is the path of the archive and the name of the file joined with
+ * <code>ARCHIVE_SEPARATOR</code>, e.g.
+ * <code>/app/data/irish.zip!/Across the Road.xml</code>. Archives are opened
+ * once and kept open, and their files can be read from several threads at the
+ * same time. An archive whose size or modification time has changed on disk
+ * is opened again and the old handle closed, which ends the reads still
+ * going on from the old archive with an <code>IOException</code>.
+ * </p>
  */
 public class FileIo {
 
+  public static final String ARCHIVE_SEPARATOR = "!/";
   private static final Logger fileLogger = LogManager.getLogger();
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final Map<String, OpenArchive> openArchives = new ConcurrentHashMap<>();
 
-  public InputStream readFile(String filePath) throws FileNotFoundException {
-    return new FileInputStream(new File(filePath));
+  /**
+   * Open a file or a file inside a zip archive for reading.
+   *
+   * @param filePath path to the file
+   * @return the content as inputstream
+   * @throws FileNotFoundException if there is no such file
+   * @throws IOException           if the archive cannot be opened
+   */
+  public InputStream readFile(String filePath) throws IOException {
+    int separator = filePath.indexOf(ARCHIVE_SEPARATOR);
+    if (separator < 0) {
+      return new FileInputStream(new File(filePath));
+    }
+    ZipFile archive = this.getArchive(filePath.substring(0, separator));
+    return archive.getInputStream(this.getArchiveEntry(archive, filePath, separator));
+  }
+
+  public byte[] readAllBytes(String filePath) throws IOException {
+    if (!filePath.contains(ARCHIVE_SEPARATOR)) {
+      return Files.readAllBytes(Paths.get(filePath));
+    }
+    try (InputStream is = this.readFile(filePath)) {
+      return is.readAllBytes();
+    }
+  }
+
+  /**
+   * Get the size of a file or a file inside a zip archive.
+   *
+   * @param filePath path to the file
+   * @return size in bytes, uncompressed for a file inside an archive
+   * @throws IOException if the file cannot be found
+   */
+  public long getSize(String filePath) throws IOException {
+    int separator = filePath.indexOf(ARCHIVE_SEPARATOR);
+    if (separator < 0) {
+      return Files.size(Paths.get(filePath));
+    }
+    ZipFile archive = this.getArchive(filePath.substring(0, separator));
+    return this.getArchiveEntry(archive, filePath, separator).getSize();
+  }
+
+  /**
+   * Get the modification time of a file or a file inside a zip archive.
+   *
+   * @param filePath path to the file
+   * @return modification time in milliseconds since the epoch
+   * @throws IOException if the file cannot be found
+   */
+  public long getLastModified(String filePath) throws IOException {
+    int separator = filePath.indexOf(ARCHIVE_SEPARATOR);
+    if (separator < 0) {
+      return Files.getLastModifiedTime(Paths.get(filePath)).toMillis();
+    }
+    ZipFile archive = this.getArchive(filePath.substring(0, separator));
+    return this.getArchiveEntry(archive, filePath, separator).getTime();
   }
 
   public FileInputStream readFile(String folderPath, String fileName) throws FileNotFoundException {
@@ -79,6 +155,27 @@ public class FileIo {
     }
   }
 
+  /**
+   * Collect all files with certain extension in a zip archive, as paths that
+   * can be read with <code>readFile</code>.
+   *
+   * @param archivePath path to the zip archive
+   * @param extension   file extension
+   * @return list of filepaths as string
+   */
+  public List<String> getAllFilePathsInArchive(String archivePath, String extension) {
+    try {
+      String path = this.getArchivePath(archivePath);
+      return this.getArchive(path).stream()
+          .filter(entry -> !entry.isDirectory() && entry.getName().endsWith(extension))
+          .map(entry -> path + ARCHIVE_SEPARATOR + entry.getName())
+          .collect(Collectors.toList());
+    } catch (Exception e) {
+      fileLogger.error(e);
+      return Collections.emptyList();
+    }
+  }
+
   /**
    * Write string content to a file.
    *
@@ -110,6 +207,117 @@ public class FileIo {
     MidiFileManager.savePatternToMidi(melodyPattern, file);
   }
 
+  /**
+   * <p>
+   * Calculate a fingerprint of a set of files from their paths, sizes and
+   * modification times. The contents are not read, so this is fast even for
+   * large data sets.
+   * </p>
+   * <p>
+   * The fingerprint does not depend on the order of the paths.
+   * </p>
+   *
+   * @param filePaths paths to the files
+   * @return fingerprint that changes when files are added, removed or modified
+   * @throws IOException if the attributes of a file cannot be read
+   */
+  public long fingerprint(List<String> filePaths) throws IOException {
+    List<String> sorted = new ArrayList<>(filePaths);
+    Collections.sort(sorted);
+    long hash = FNV_OFFSET_BASIS;
+    for (String filePath : sorted) {
+      hash = fnv(hash, filePath.hashCode());
+      hash = fnv(hash, this.getSize(filePath));
+      hash = fnv(hash, this.getLastModified(filePath));
+    }
+    return hash;
+  }
+
+  /**
+   * Get the path to a folder, creating it under the data folder if it does not
+   * exist yet.
+   *
+   * @param folderPath path to the folder, e.g. <code>data/models</code>
+   * @return absolute path to the folder
+   * @throws IOException if the folder cannot be created
+   */
+  public Path getOrCreateFolder(String folderPath) throws IOException {
+    try {
+      return Paths.get(this.getFolderPath(folderPath));
+    } catch (FileNotFoundException e) {
+      Path folder = Paths.get(folderPath);
+      Path parent = folder.getParent();
+      Path base = parent != null
+          ? Paths.get(this.getFolderPath(parent.toString()))
+          : Paths.get("").toAbsolutePath();
+      return Files.createDirectories(base.resolve(folder.getFileName()));
+    }
+  }
+
+  private static long fnv(long hash, long value) {
+    for (int i = 0; i < Long.BYTES; i++) {
+      hash ^= (value >>> (i * 8)) & 0xff;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * Close every open archive, e.g. before the archives are deleted. Archives
+   * are opened again when their files are read.
+   */
+  public static void closeArchives() {
+    synchronized (openArchives) {
+      openArchives.values().forEach(OpenArchive::close);
+      openArchives.clear();
+    }
+  }
+
+  private ZipFile getArchive(String archivePath) throws IOException {
+    BasicFileAttributes attributes =
+        Files.readAttributes(Paths.get(archivePath), BasicFileAttributes.class);
+    long size = attributes.size();
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    OpenArchive archive = openArchives.get(archivePath);
+    if (archive == null || !archive.isSame(size, lastModified)) {
+      synchronized (openArchives) {
+        archive = openArchives.get(archivePath);
+        if (archive == null || !archive.isSame(size, lastModified)) {
+          OpenArchive stale = archive;
+          archive = new OpenArchive(new ZipFile(archivePath), size, lastModified);
+          openArchives.put(archivePath, archive);
+          if (stale != null) {
+            fileLogger.info("Archive changed, opening it again: " + archivePath);
+            stale.close();
+          }
+        }
+      }
+    }
+    return archive.zip;
+  }
+
+  private ZipEntry getArchiveEntry(ZipFile archive, String filePath, int separator)
+      throws FileNotFoundException {
+    ZipEntry entry = archive.getEntry(filePath.substring(separator + ARCHIVE_SEPARATOR.length()));
+    if (entry == null) {
+      throw new FileNotFoundException(filePath);
+    }
+    return entry;
+  }
+
+  private String getArchivePath(String archivePath) throws FileNotFoundException {
+    Path path = Paths.get(archivePath).toAbsolutePath();
+    if (Files.isRegularFile(path)) {
+      return path.toString();
+    }
+    // This is for mvn javafx launcher, see getFolderPath
+    Path mvnPath = Paths.get("").toAbsolutePath().getParent().resolve(archivePath);
+    if (Files.isRegularFile(mvnPath)) {
+      return mvnPath.toString();
+    }
+    throw new FileNotFoundException(archivePath);
+  }
+
   private String getFolderPath(String folderPath) throws FileNotFoundException {
 
     // This will work with the intended source data folder
@@ -132,4 +340,32 @@ public class FileIo {
     throw new FileNotFoundException();
   }
 
+  /**
+   * An open archive with the size and modification time it had when it was
+   * opened.
+   */
+  private static final class OpenArchive {
+    private final ZipFile zip;
+    private final long size;
+    private final long lastModified;
+
+    OpenArchive(ZipFile zip, long size, long lastModified) {
+      this.zip = zip;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+
+    boolean isSame(long size, long lastModified) {
+      return this.size == size && this.lastModified == lastModified;
+    }
+
+    void close() {
+      try {
+        this.zip.close();
+      } catch (IOException e) {
+        fileLogger.error(e);
+      }
+    }
+  }
+
 }
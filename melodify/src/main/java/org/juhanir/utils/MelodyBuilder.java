@@ -0,0 +1,58 @@
+package org.juhanir.utils;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Growable array of notes for building a melody of unknown length without
+ * boxing the notes.
+ * </p>
+ * <p>
+ * Melodies are passed around as <code>int[]</code>, which the trie, the
+ * generator and the corpus index take as such.
+ * </p>
+ */
+public final class MelodyBuilder {
+
+  private int[] notes;
+  private int size;
+
+  public MelodyBuilder() {
+    this(256);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param capacity number of notes to make room for at first
+   */
+  public MelodyBuilder(int capacity) {
+    this.notes = new int[Math.max(capacity, 1)];
+  }
+
+  /**
+   * Add a note to the end of the melody.
+   *
+   * @param note the note in integer representation
+   */
+  public void add(int note) {
+    if (this.size == this.notes.length) {
+      this.notes = Arrays.copyOf(this.notes, this.size * 2);
+    }
+    this.notes[this.size++] = note;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Get the melody built so far.
+   *
+   * @return the notes, a copy of the exact length
+   */
+  public int[] toArray() {
+    return Arrays.copyOf(this.notes, this.size);
+  }
+
+}
@@ -0,0 +1,187 @@
+package org.juhanir.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>
+ * Keeps track of the training data files that could not be parsed, so that
+ * they are not read and parsed again every time the application starts or a
+ * model is trained.
+ * </p>
+ * <p>
+ * A file is recorded with the reason it failed and a fingerprint of its path,
+ * size and modification time. It stays in quarantine until the fingerprint
+ * changes, i.e. until the file is modified. Files that fail to be read are not
+ * recorded, since that can be temporary.
+ * </p>
+ * <p>
+ * Once loaded from a manifest file, every change is saved to it, one line per
+ * file with the fingerprint, the path and the reason separated by tabs.
+ * </p>
+ */
+public class ParseQuarantine {
+
+  public static final String FILE_NAME = "quarantine.tsv";
+  public static final String FULL_KEY_SCAN_FILE_NAME = "quarantine-fullkeyscan.tsv";
+  private static Logger quarantineLogger = LogManager.getLogger();
+
+  private final FileIo fileIo;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private Path manifest;
+
+  /**
+   * Constructor for a quarantine that is kept in memory until it is loaded
+   * from a manifest file.
+   *
+   * @param fileIo file utility for the fingerprints of the files
+   */
+  public ParseQuarantine(FileIo fileIo) {
+    this.fileIo = fileIo;
+  }
+
+  /**
+   * Name of the manifest file for a key scan mode. A full key scan rejects
+   * files that change key, which the first key scan accepts, so the modes keep
+   * separate manifests.
+   *
+   * @param fullKeyScan true if the parser reads every key signature
+   * @return file name
+   */
+  public static String fileName(boolean fullKeyScan) {
+    return fullKeyScan ? FULL_KEY_SCAN_FILE_NAME : FILE_NAME;
+  }
+
+  /**
+   * Read the quarantined files from the manifest, if it exists, and save all
+   * changes to it from now on. Lines that cannot be read are left out.
+   *
+   * @param manifestPath path to the manifest file
+   */
+  public synchronized void load(Path manifestPath) {
+    this.manifest = manifestPath;
+    if (!Files.exists(manifestPath)) {
+      return;
+    }
+    try {
+      for (String line : Files.readAllLines(manifestPath, StandardCharsets.UTF_8)) {
+        String[] fields = line.split("\t", 3);
+        if (fields.length < 3) {
+          continue;
+        }
+        try {
+          this.entries.putIfAbsent(fields[1],
+              new Entry(Long.parseUnsignedLong(fields[0], 16), fields[2]));
+        } catch (NumberFormatException e) {
+          quarantineLogger.error("Skipping unreadable quarantine line " + line);
+        }
+      }
+      quarantineLogger.info(String.format("%s files in quarantine", this.entries.size()));
+    } catch (IOException e) {
+      quarantineLogger.error("Failed to read quarantine manifest " + manifestPath);
+      quarantineLogger.error(e);
+    }
+  }
+
+  /**
+   * Check if the file is in quarantine. A file that has changed since it
+   * failed is released from quarantine.
+   *
+   * @param filePath path to the file
+   * @return true if the file failed to parse and has not changed since
+   */
+  public boolean contains(String filePath) {
+    Entry entry = this.entries.get(filePath);
+    if (entry == null) {
+      return false;
+    }
+    try {
+      if (entry.fingerprint == this.fileIo.fingerprint(List.of(filePath))) {
+        return true;
+      }
+    } catch (IOException e) {
+      // the file is gone, release it and let the reading fail as usual
+    }
+    if (this.entries.remove(filePath, entry)) {
+      quarantineLogger.info("Releasing changed file from quarantine " + filePath);
+      this.save();
+    }
+    return false;
+  }
+
+  /**
+   * Put a file that failed to parse in quarantine.
+   *
+   * @param filePath path to the file
+   * @param reason   the error the parsing failed with
+   */
+  public void add(String filePath, Exception reason) {
+    try {
+      long fingerprint = this.fileIo.fingerprint(List.of(filePath));
+      String message = reason.getMessage() != null ? reason.getMessage()
+          : reason.getClass().getSimpleName();
+      this.entries.put(filePath, new Entry(fingerprint, message.replaceAll("\\s+", " ")));
+      this.save();
+    } catch (IOException e) {
+      quarantineLogger.error("Failed to quarantine " + filePath);
+      quarantineLogger.error(e);
+    }
+  }
+
+  /**
+   * Get the reason a file is in quarantine.
+   *
+   * @param filePath path to the file
+   * @return the error message or null if the file is not in quarantine
+   */
+  public String getReason(String filePath) {
+    Entry entry = this.entries.get(filePath);
+    return entry != null ? entry.reason : null;
+  }
+
+  public int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * Write to a temporary file first so that the manifest is never left half
+   * written.
+   */
+  private synchronized void save() {
+    if (this.manifest == null) {
+      return;
+    }
+    List<String> lines = new ArrayList<>();
+    this.entries.forEach((filePath, entry) -> lines.add(
+        String.format("%016x\t%s\t%s", entry.fingerprint, filePath, entry.reason)));
+    Path tmp = this.manifest.resolveSibling(this.manifest.getFileName() + ".tmp");
+    try {
+      Files.write(tmp, lines, StandardCharsets.UTF_8);
+      Files.move(tmp, this.manifest, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      quarantineLogger.error("Failed to save quarantine manifest " + this.manifest);
+      quarantineLogger.error(e);
+    }
+  }
+
+  private static final class Entry {
+    private final long fingerprint;
+    private final String reason;
+
+    Entry(long fingerprint, String reason) {
+      this.fingerprint = fingerprint;
+      this.reason = reason;
+    }
+  }
+
+}
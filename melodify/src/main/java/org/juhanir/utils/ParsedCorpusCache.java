@@ -0,0 +1,253 @@
+package org.juhanir.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.juhanir.Constants;
+
+/**
+ * <p>
+ * Keeps the parsed training data files on disk so that they are parsed only
+ * once and not again every time the application starts.
+ * </p>
+ * <p>
+ * Every source file has an entry file in the cache folder with the size, the
+ * modification time and a CRC-32C checksum of the source and the key scan
+ * mode of the parser, followed by the key,
+ * the mode and the notes one byte per note, and a checksum of the entry
+ * itself, all little-endian. An entry is used if the source has the same size
+ * and modification time. If only the modification time has changed, the
+ * source is read and its checksum compared, so that a touched but unchanged
+ * file does not need parsing. Entries that cannot be read or do not pass the
+ * checksum are deleted, and the source is parsed again.
+ * </p>
+ * <p>
+ * A full key scan rejects files that change key, which the first key scan
+ * accepts, so an entry saved in the other mode is not used. The source is
+ * parsed again and its entry replaced.
+ * </p>
+ */
+public class ParsedCorpusCache {
+
+  public static final int VERSION = 2;
+  private static final int MAGIC = 0x454E_5554; // "TUNE" in little-endian
+  private static final int HEADER_BYTES = 29;
+  private static final String ENTRY_EXTENSION = ".tune";
+
+  private static Logger cacheLogger = LogManager.getLogger();
+
+  private final Path folder;
+  private final FileIo fileIo;
+  private final boolean fullKeyScan;
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  /**
+   * Constructor for a cache of files parsed with the full key scan.
+   *
+   * @param folder folder for the entries, must exist
+   * @param fileIo file utility for reading the source files
+   */
+  public ParsedCorpusCache(Path folder, FileIo fileIo) {
+    this(folder, fileIo, true);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param folder      folder for the entries, must exist
+   * @param fileIo      file utility for reading the source files
+   * @param fullKeyScan key scan mode of the parser whose files are cached,
+   *                    see <code>ScoreParser</code>
+   */
+  public ParsedCorpusCache(Path folder, FileIo fileIo, boolean fullKeyScan) {
+    this.folder = folder;
+    this.fileIo = fileIo;
+    this.fullKeyScan = fullKeyScan;
+  }
+
+  /**
+   * Get the parsed source file if it has not changed since the entry was
+   * saved and the entry was saved with the same key scan mode.
+   *
+   * @param filePath path to the source file
+   * @return the parsed file or null if there is no valid entry for it
+   */
+  public ParsedTune get(String filePath) {
+    Path entry = this.getEntryPath(filePath);
+    ParsedTune tune = null;
+    if (Files.exists(entry)) {
+      try {
+        tune = this.read(filePath, entry);
+      } catch (IOException | RuntimeException e) {
+        cacheLogger.error("Discarding unreadable cache entry " + entry);
+        cacheLogger.error(e);
+        this.delete(entry);
+      }
+    }
+    (tune != null ? this.hits : this.misses).incrementAndGet();
+    return tune;
+  }
+
+  /**
+   * Save the parsed source file. Failing to save is logged and ignored.
+   *
+   * @param filePath     path to the source file
+   * @param content      the content of the source file that was parsed
+   * @param lastModified modification time of the source file before it was read
+   * @param tune         the parsed file
+   */
+  public void put(String filePath, byte[] content, long lastModified, ParsedTune tune) {
+    Path entry = this.getEntryPath(filePath);
+    try {
+      this.write(entry, this.encode(content.length, lastModified, checksum(content), tune));
+    } catch (IOException e) {
+      cacheLogger.error("Failed to save cache entry " + entry);
+      cacheLogger.error(e);
+    }
+  }
+
+  public int getHits() {
+    return this.hits.get();
+  }
+
+  public int getMisses() {
+    return this.misses.get();
+  }
+
+  /**
+   * The entry file of a source file, named after the source file and a hash of
+   * its path so that files with the same name in different folders or archives
+   * do not share an entry.
+   *
+   * @param filePath path to the source file
+   * @return path to the entry file
+   */
+  Path getEntryPath(String filePath) {
+    String name = filePath.substring(Math.max(filePath.lastIndexOf('/'),
+        filePath.lastIndexOf(File.separatorChar)) + 1);
+    return this.folder.resolve(String.format("%s-%08x%s", name, filePath.hashCode(),
+        ENTRY_EXTENSION));
+  }
+
+  private ParsedTune read(String filePath, Path entry) throws IOException {
+    long sourceSize = this.fileIo.getSize(filePath);
+    long sourceModified = this.fileIo.getLastModified(filePath);
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(entry))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.remaining() < HEADER_BYTES + Integer.BYTES
+        || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      throw new IOException("Not a cache entry or unsupported version");
+    }
+    int end = buffer.limit() - Integer.BYTES;
+    if (buffer.getInt(end) != checksum(buffer.array(), 0, end)) {
+      throw new IOException("Checksum of the entry does not match");
+    }
+    long size = buffer.getLong();
+    long lastModified = buffer.getLong();
+    int sourceChecksum = buffer.getInt();
+    boolean entryFullKeyScan = buffer.get() != 0;
+    if (size != sourceSize || entryFullKeyScan != this.fullKeyScan) {
+      return null;
+    }
+    boolean touched = lastModified != sourceModified;
+    if (touched && sourceChecksum != checksum(this.fileIo.readAllBytes(filePath))) {
+      return null;
+    }
+    ParsedTune tune = this.decode(buffer.limit(end));
+    if (touched) {
+      // same content, save the new modification time to skip the check next time
+      this.write(entry, this.encode(size, sourceModified, sourceChecksum, tune));
+    }
+    return tune;
+  }
+
+  private byte[] encode(long size, long lastModified, int sourceChecksum, ParsedTune tune) {
+    byte[] key = tune.getKey().getBytes(StandardCharsets.UTF_8);
+    byte[] mode = tune.getMode().getBytes(StandardCharsets.UTF_8);
+    int[] notes = tune.getNotes();
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 2 + key.length + 2 + mode.length
+        + Integer.BYTES + notes.length + Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(VERSION).putLong(size).putLong(lastModified)
+        .putInt(sourceChecksum).put((byte) (this.fullKeyScan ? 1 : 0));
+    buffer.putShort((short) key.length).put(key);
+    buffer.putShort((short) mode.length).put(mode);
+    buffer.putInt(notes.length);
+    for (int note : notes) {
+      // notes are between 0 and Constants.NOTE_ARRAY_SIZE so they fit in a byte
+      buffer.put((byte) note);
+    }
+    buffer.putInt(checksum(buffer.array(), 0, buffer.position()));
+    return buffer.array();
+  }
+
+  private ParsedTune decode(ByteBuffer buffer) throws IOException {
+    try {
+      String key = this.decodeString(buffer);
+      String mode = this.decodeString(buffer);
+      int[] notes = new int[buffer.getInt()];
+      for (int i = 0; i < notes.length; i++) {
+        notes[i] = buffer.get();
+        if (notes[i] < 0 || notes[i] >= Constants.NOTE_ARRAY_SIZE) {
+          throw new IOException("Note out of range in cache entry");
+        }
+      }
+      if (buffer.hasRemaining()) {
+        throw new IOException("Extra bytes at the end of cache entry");
+      }
+      return new ParsedTune(key, mode, notes);
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      throw new IOException("Truncated cache entry", e);
+    }
+  }
+
+  private String decodeString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write to a temporary file first so that an entry is never left half
+   * written.
+   */
+  private void write(Path entry, byte[] bytes) throws IOException {
+    Path tmp = entry.resolveSibling(entry.getFileName() + ".tmp");
+    try {
+      Files.write(tmp, bytes);
+      Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      this.delete(tmp);
+    }
+  }
+
+  private void delete(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      cacheLogger.error(e);
+    }
+  }
+
+  private static int checksum(byte[] bytes) {
+    return checksum(bytes, 0, bytes.length);
+  }
+
+  private static int checksum(byte[] bytes, int offset, int length) {
+    CRC32C crc = new CRC32C();
+    crc.update(bytes, offset, length);
+    return (int) crc.getValue();
+  }
+
+}
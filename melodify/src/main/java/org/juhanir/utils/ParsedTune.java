@@ -0,0 +1,49 @@
+package org.juhanir.utils;
+
+/**
+ * <p>
+ * Everything the application needs from one training data file: the musical
+ * key, the mode and the notes of the melody.
+ * </p>
+ * <p>
+ * Produced by parsing the file once, so that grouping the files by key and
+ * training do not need to read the file again.
+ * </p>
+ */
+public final class ParsedTune {
+
+  private final String key;
+  private final String mode;
+  private final int[] notes;
+
+  /**
+   * Constructor.
+   *
+   * @param key   musical key, e.g. D or Em
+   * @param mode  mode of the key, e.g. major or dorian
+   * @param notes the melody as integer notes, not copied
+   */
+  public ParsedTune(String key, String mode, int[] notes) {
+    this.key = key;
+    this.mode = mode;
+    this.notes = notes;
+  }
+
+  public String getKey() {
+    return this.key;
+  }
+
+  public String getMode() {
+    return this.mode;
+  }
+
+  /**
+   * The melody of the tune. The array is shared, it must not be modified.
+   *
+   * @return notes
+   */
+  public int[] getNotes() {
+    return this.notes;
+  }
+
+}
@@ -1,31 +1,49 @@
 package org.juhanir.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Queue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.audiveris.proxymusic.Attributes;
-import org.audiveris.proxymusic.Key;
-import org.audiveris.proxymusic.Note;
-import org.audiveris.proxymusic.Pitch;
-import org.audiveris.proxymusic.ScorePartwise;
-import org.audiveris.proxymusic.ScorePartwise.Part;
-import org.audiveris.proxymusic.ScorePartwise.Part.Measure;
-import org.audiveris.proxymusic.Step;
-import org.audiveris.proxymusic.util.Marshalling;
 import org.audiveris.proxymusic.util.Marshalling.UnmarshallingException;
 import org.juhanir.Constants;
 
 /**
+ * <p>
  * Contains logic for parsing MusicXML files.
+ * </p>
+ * <p>
+ * Files are read with a streaming XML parser that picks up only the keys and
+ * the pitches and staffs of the notes, instead of unmarshalling the whole
+ * score into objects. Files can be parsed from several threads at the same
+ * time without waiting for each other.
+ * </p>
+ * <p>
+ * By default every key signature of a file is read and a file that changes
+ * key is not supported. Without the full key scan only the first key
+ * signature is used, which is usually in the first measure, so resolving the
+ * key stops reading the file there.
+ * </p>
  */
 public class ScoreParser {
 
@@ -34,6 +52,47 @@ public class ScoreParser {
       "Bb", "F", "C", "G", "D", "A", "E", "B", "F#", "C#" };
   private static final String[] cicleOfFifthsMinor = new String[] { "Abm", "Ebm", "Bbm", "Fm", "Cm",
       "Gm", "Dm", "Am", "Em", "Bm", "F#m", "C#m", "G#m", "D#m", "A#m" };
+  /**
+   * Factories that are not in use. Creating readers from one factory is not
+   * thread-safe, so a factory is taken for one file at a time and put back
+   * after the reader is closed. There are only as many of them as files have
+   * been read at the same time.
+   */
+  private static final Queue<XMLInputFactory> xmlInputFactories =
+      new ConcurrentLinkedQueue<>(List.of(createInputFactory()));
+
+  private final boolean fullKeyScan;
+  private final ParseQuarantine quarantine;
+
+  /**
+   * Constructor for a parser that reads every key signature.
+   */
+  public ScoreParser() {
+    this(true);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param fullKeyScan true to read every key signature and reject files that
+   *                    change key, false to use the first key signature
+   */
+  public ScoreParser(boolean fullKeyScan) {
+    this(fullKeyScan, null);
+  }
+
+  /**
+   * Constructor for a parser that skips the files in quarantine and puts the
+   * files it cannot parse there.
+   *
+   * @param fullKeyScan true to read every key signature and reject files that
+   *                    change key, false to use the first key signature
+   * @param quarantine  files that failed to parse, may be null
+   */
+  public ScoreParser(boolean fullKeyScan, ParseQuarantine quarantine) {
+    this.fullKeyScan = fullKeyScan;
+    this.quarantine = quarantine;
+  }
 
   /**
    * <p>
@@ -65,7 +124,8 @@ public class ScoreParser {
   }
 
   /**
-   * Goes through a list of files and groups them per key.
+   * Goes through a list of files and groups them per key. Files in
+   * quarantine are skipped.
    *
    * @param reader file reader
    * @param files list of file names
@@ -74,6 +134,9 @@ public class ScoreParser {
   public Map<String, List<String>> collectFilesPerKey(FileIo reader, List<String> files) {
     Map<String, List<String>> filesPerKey = new HashMap<>();
     for (String filePath : files) {
+      if (this.isQuarantined(filePath)) {
+        continue;
+      }
       try (InputStream is = reader.readFile(filePath)) {
         String tuneKey = this.getKeyForTune(is);
         if (!filesPerKey.containsKey(tuneKey)) {
@@ -83,93 +146,397 @@ public class ScoreParser {
       } catch (Exception e) {
         parserLogger.error("Failed to collect from " + filePath);
         parserLogger.error(e);
+        this.quarantineIfUnparseable(filePath, e);
       }
     }
     return filesPerKey;
   }
 
   /**
-   * Resolves the musical key for a song.
+   * Parses the files and adds them to the corpus index. Files that cannot be
+   * parsed are logged, put in quarantine and left out.
+   *
+   * @param reader file reader
+   * @param files  list of file names
+   * @param index  the index to add the files to
+   */
+  public void indexCorpus(FileIo reader, List<String> files, CorpusIndex index) {
+    this.indexCorpus(reader, files, index, null);
+  }
+
+  /**
+   * Adds the files to the corpus index, taking them from the cache if they
+   * have not changed since they were parsed. Parsed files are saved to the
+   * cache. Files that cannot be parsed are logged, put in quarantine and left
+   * out.
+   *
+   * @param reader file reader
+   * @param files  list of file names
+   * @param index  the index to add the files to
+   * @param cache  cache of parsed files, may be null
+   */
+  public void indexCorpus(FileIo reader, List<String> files, CorpusIndex index,
+      ParsedCorpusCache cache) {
+    for (String filePath : files) {
+      if (this.isQuarantined(filePath)) {
+        continue;
+      }
+      try {
+        index.add(filePath, this.parseTune(reader, filePath, cache));
+      } catch (Exception e) {
+        parserLogger.error("Failed to index " + filePath);
+        parserLogger.error(e);
+        this.quarantineIfUnparseable(filePath, e);
+      }
+    }
+    if (cache != null) {
+      parserLogger.info(String.format("Indexed %s files, %s from cache", index.size(),
+          cache.getHits()));
+    }
+  }
+
+  /**
+   * <p>
+   * Adds the files to the corpus index like <code>indexCorpus</code>, parsing
+   * them concurrently with the given executor.
+   * </p>
+   * <p>
+   * Parsed files are added to the index from the calling thread in the order
+   * they become ready, and the listener is called for each of them right after
+   * it has been added, so the keys found so far can be used before the whole
+   * corpus has been indexed.
+   * </p>
+   *
+   * @param reader   file reader
+   * @param files    list of file names
+   * @param index    the index to add the files to
+   * @param cache    cache of parsed files, may be null
+   * @param executor executor for parsing the files, not shut down by this method
+   * @param listener called with the path and the parsed file for each indexed
+   *                 file
+   * @throws InterruptedException if interrupted while waiting for the parsing
+   */
+  public void indexCorpus(FileIo reader, List<String> files, CorpusIndex index,
+      ParsedCorpusCache cache, ExecutorService executor,
+      BiConsumer<String, ParsedTune> listener) throws InterruptedException {
+    CompletionService<ParsedTune> parsedFiles = new ExecutorCompletionService<>(executor);
+    Map<Future<ParsedTune>, String> filePaths = new HashMap<>();
+    for (String filePath : files) {
+      if (!this.isQuarantined(filePath)) {
+        filePaths.put(parsedFiles.submit(() -> this.parseTune(reader, filePath, cache)),
+            filePath);
+      }
+    }
+    for (int i = 0; i < filePaths.size(); i++) {
+      Future<ParsedTune> parsed = parsedFiles.take();
+      String filePath = filePaths.get(parsed);
+      try {
+        ParsedTune tune = parsed.get();
+        index.add(filePath, tune);
+        listener.accept(filePath, tune);
+      } catch (ExecutionException e) {
+        parserLogger.error("Failed to index " + filePath);
+        parserLogger.error(e.getCause());
+        if (e.getCause() instanceof Exception) {
+          this.quarantineIfUnparseable(filePath, (Exception) e.getCause());
+        }
+      }
+    }
+    if (cache != null) {
+      parserLogger.info(String.format("Indexed %s files, %s from cache", index.size(),
+          cache.getHits()));
+    }
+  }
+
+  /**
+   * Check if the file failed to parse earlier and has not changed since.
+   *
+   * @param filePath path to the file
+   * @return true if the file is in quarantine and should be skipped
+   */
+  public boolean isQuarantined(String filePath) {
+    return this.quarantine != null && this.quarantine.contains(filePath);
+  }
+
+  /**
+   * Put the file in quarantine if it failed because its content cannot be
+   * parsed. Failures to read the file are not recorded.
+   *
+   * @param filePath path to the file
+   * @param error    the error parsing the file failed with
+   */
+  public void quarantineIfUnparseable(String filePath, Exception error) {
+    if (this.quarantine != null && (error instanceof UnmarshallingException
+        || error instanceof IllegalArgumentException)) {
+      this.quarantine.add(filePath, error);
+    }
+  }
+
+  /**
+   * Resolves the musical key for a song. Without the full key scan the file is
+   * read only up to the first key signature.
    *
    * @param source song to parse as inputstream from a MusicXML file.
    * @return key name
    * @throws UnmarshallingException if cannot parse input to partwise score
    */
   public String getKeyForTune(InputStream source) throws UnmarshallingException {
-    ScorePartwise scorePartwise = (ScorePartwise) Marshalling.unmarshal(source);
-    ArrayList<String> musicalKeys = new ArrayList<>();
-    for (final Part part : scorePartwise.getPart()) {
-      for (final Measure measure : part.getMeasure()) {
-        List<Attributes> attributes =
-            measure.getNoteOrBackupOrForward().stream().filter(Attributes.class::isInstance)
-                .map(c -> (Attributes) c).collect(Collectors.toList());
-        this.resolveKey(attributes, musicalKeys);
+    Map<String, String> musicalKeys = new LinkedHashMap<>();
+    this.scan(source, null, musicalKeys);
+    return this.getOnlyKey(musicalKeys);
+  }
+
+  private ParsedTune parseTune(FileIo reader, String filePath, ParsedCorpusCache cache)
+      throws IOException, UnmarshallingException {
+    if (cache == null) {
+      try (InputStream is = reader.readFile(filePath)) {
+        return this.parseTune(is);
       }
     }
-    if (musicalKeys.size() > 1) {
-      parserLogger.info(
-          String.format("Found %s musical keys: %s", musicalKeys.size(), musicalKeys.toString()));
-      throw new IllegalArgumentException("Only one key is supported");
+    ParsedTune tune = cache.get(filePath);
+    if (tune == null) {
+      // the modification time is read first, so a change while reading is noticed later
+      long lastModified = reader.getLastModified(filePath);
+      byte[] content = reader.readAllBytes(filePath);
+      tune = this.parseTune(new ByteArrayInputStream(content));
+      cache.put(filePath, content, lastModified, tune);
     }
-    return musicalKeys.get(0);
+    return tune;
+  }
+
+  /**
+   * Parses a MusicXML source file and extracts the key, the mode and the notes
+   * in one pass.
+   *
+   * @param source MusicXML file as inputstream.
+   * @return the parsed tune
+   * @throws UnmarshallingException if cannot parse input to partwise score
+   */
+  public ParsedTune parseTune(InputStream source) throws UnmarshallingException {
+    MelodyBuilder notes = new MelodyBuilder();
+    Map<String, String> musicalKeys = new LinkedHashMap<>();
+    this.scan(source, notes, musicalKeys);
+    String key = this.getOnlyKey(musicalKeys);
+    return new ParsedTune(key, musicalKeys.get(key), notes.toArray());
   }
 
   /**
    * Parses a MusicXML source file and extracts the notes.
    *
    * @param source MusicXML file as inputstream.
-   * @return List of integers representing the melody sequence.
+   * @return the melody sequence as integer notes
    * @throws UnmarshallingException if cannot parse input to partwise score
    */
-  public List<Integer> parse(InputStream source) throws UnmarshallingException {
-    ScorePartwise scorePartwise = (ScorePartwise) Marshalling.unmarshal(source);
-    List<Part> parts = scorePartwise.getPart();
-    ArrayList<Integer> melodySequence = new ArrayList<>();
-    for (final Part part : parts) {
-      List<Measure> measures = part.getMeasure();
-      for (final Measure measure : measures) {
-        List<Object> measureContents = measure.getNoteOrBackupOrForward();
-        List<Note> notes = measureContents.stream().filter(Note.class::isInstance)
-            .map(c -> (Note) c).collect(Collectors.toList());
-        for (final Note note : notes) {
-          Pitch pitch = note.getPitch();
-          BigInteger staff = Optional.ofNullable(note.getStaff()).orElse(BigInteger.valueOf(1));
-          if (pitch == null || staff.intValue() != 1) {
-            continue;
-          }
-          BigDecimal alter = Optional.ofNullable(pitch.getAlter()).orElse(BigDecimal.valueOf(0.0));
-          Step step = pitch.getStep();
-          int finalNote =
-              this.convertNoteToInt(step.value(), pitch.getOctave(), alter.intValueExact());
-          melodySequence.add(finalNote);
+  public int[] parse(InputStream source) throws UnmarshallingException {
+    MelodyBuilder notes = new MelodyBuilder();
+    this.scan(source, notes, null);
+    return notes.toArray();
+  }
+
+  /**
+   * <p>
+   * Streams through a partwise score and collects the notes of the first staff
+   * and the keys. Only the elements needed for those are read, everything else
+   * is skipped without building any objects.
+   * </p>
+   *
+   * @param source MusicXML file as inputstream
+   * @param notes  buffer for the notes, null to skip the notes
+   * @param keys   modes of the distinct keys by key, null to skip the keys
+   * @throws UnmarshallingException if the input is not a partwise score
+   */
+  private void scan(InputStream source, MelodyBuilder notes, Map<String, String> keys)
+      throws UnmarshallingException {
+    XMLInputFactory factory = xmlInputFactories.poll();
+    if (factory == null) {
+      factory = createInputFactory();
+    }
+    XMLStreamReader reader = null;
+    try {
+      reader = factory.createXMLStreamReader(source);
+      // skip the prolog, i.e. the declaration, comments and the DTD
+      while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      if (!reader.isStartElement() || !reader.getLocalName().equals("score-partwise")) {
+        throw new UnmarshallingException(
+            new IllegalArgumentException("Source is not a partwise score"));
+      }
+      while (!this.isDone(notes, keys)
+          && reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        if (reader.getLocalName().equals("part")) {
+          this.readPart(reader, notes, keys);
+        } else {
+          skipElement(reader);
         }
       }
+    } catch (XMLStreamException | NumberFormatException | ArithmeticException e) {
+      throw new UnmarshallingException(e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          parserLogger.error(e);
+        }
+      }
+      xmlInputFactories.offer(factory);
     }
-    return melodySequence;
   }
 
-  private void resolveKey(List<Attributes> attrs, List<String> musicalKeys) {
-    for (Attributes attributes : attrs) {
-      List<Key> keys = attributes.getKey();
-      for (Key key : keys) {
-        int fifths = key.getFifths().intValue();
-        String mode = Optional.ofNullable(key.getMode()).orElse("major");
-        if (fifths < (-1) * Constants.FIFTHS_SUPPORTED_RANGE
-            || fifths > Constants.FIFTHS_SUPPORTED_RANGE) {
-          throw new IllegalArgumentException(
-              String.format("Non-supported fifths value %s", fifths));
-        }
-        if (!Constants.modes.contains(mode)) {
-          throw new IllegalArgumentException(String.format("Non-supported mode value %s", mode));
+  private void readPart(XMLStreamReader reader, MelodyBuilder notes, Map<String, String> keys)
+      throws XMLStreamException {
+    while (!this.isDone(notes, keys)
+        && reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (reader.getLocalName().equals("measure")) {
+        this.readMeasure(reader, notes, keys);
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  private void readMeasure(XMLStreamReader reader, MelodyBuilder notes, Map<String, String> keys)
+      throws XMLStreamException {
+    while (!this.isDone(notes, keys)
+        && reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      String name = reader.getLocalName();
+      if (notes != null && name.equals("note")) {
+        this.readNote(reader, notes);
+      } else if (this.needsKey(keys) && name.equals("attributes")) {
+        this.readAttributes(reader, keys);
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  private boolean needsKey(Map<String, String> keys) {
+    return keys != null && (this.fullKeyScan || keys.isEmpty());
+  }
+
+  /**
+   * Without the full key scan the rest of the file is not needed when only the
+   * key is asked for and it has been found.
+   */
+  private boolean isDone(MelodyBuilder notes, Map<String, String> keys) {
+    return notes == null && keys != null && !this.needsKey(keys);
+  }
+
+  /**
+   * Reads a note and adds it to the buffer if it has a pitch and is on the
+   * first staff, which is the default when the staff is not given.
+   */
+  private void readNote(XMLStreamReader reader, MelodyBuilder notes) throws XMLStreamException {
+    String step = null;
+    int octave = 0;
+    int alter = 0;
+    boolean hasPitch = false;
+    int staff = 1;
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      String name = reader.getLocalName();
+      if (name.equals("pitch")) {
+        hasPitch = true;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          String pitchName = reader.getLocalName();
+          if (pitchName.equals("step")) {
+            step = reader.getElementText().strip();
+          } else if (pitchName.equals("octave")) {
+            octave = Integer.parseInt(reader.getElementText().strip());
+          } else if (pitchName.equals("alter")) {
+            alter = new BigDecimal(reader.getElementText().strip()).intValueExact();
+          } else {
+            skipElement(reader);
+          }
         }
-        fifths += Constants.FIFTHS_SUPPORTED_RANGE; // normalize
-        String musicKey =
-            (mode.equals("minor")) ? cicleOfFifthsMinor[fifths] : cicleOfFifthsMajor[fifths];
-        if (!musicalKeys.contains(musicKey)) {
-          musicalKeys.add(musicKey);
+      } else if (name.equals("staff")) {
+        staff = new BigInteger(reader.getElementText().strip()).intValue();
+      } else {
+        skipElement(reader);
+      }
+    }
+    if (hasPitch && staff == 1) {
+      notes.add(this.convertNoteToInt(step, octave, alter));
+    }
+  }
+
+  private void readAttributes(XMLStreamReader reader, Map<String, String> keys)
+      throws XMLStreamException {
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (!reader.getLocalName().equals("key")) {
+        skipElement(reader);
+        continue;
+      }
+      Integer fifths = null;
+      String mode = "major";
+      while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        String name = reader.getLocalName();
+        if (name.equals("fifths")) {
+          fifths = new BigInteger(reader.getElementText().strip()).intValue();
+        } else if (name.equals("mode")) {
+          mode = reader.getElementText().strip();
+        } else {
+          skipElement(reader);
         }
       }
+      this.resolveKey(fifths, mode, keys);
+    }
+  }
+
+  private void resolveKey(Integer fifths, String mode, Map<String, String> musicalKeys) {
+    if (fifths == null) {
+      throw new IllegalArgumentException("Key without fifths value is not supported");
     }
+    if (fifths < (-1) * Constants.FIFTHS_SUPPORTED_RANGE
+        || fifths > Constants.FIFTHS_SUPPORTED_RANGE) {
+      throw new IllegalArgumentException(
+          String.format("Non-supported fifths value %s", fifths));
+    }
+    if (!Constants.modes.contains(mode)) {
+      throw new IllegalArgumentException(String.format("Non-supported mode value %s", mode));
+    }
+    int normalized = fifths + Constants.FIFTHS_SUPPORTED_RANGE;
+    String musicKey = (mode.equals("minor"))
+        ? cicleOfFifthsMinor[normalized]
+        : cicleOfFifthsMajor[normalized];
+    musicalKeys.putIfAbsent(musicKey, mode);
+  }
+
+  private String getOnlyKey(Map<String, String> musicalKeys) {
+    if (musicalKeys.size() > 1) {
+      parserLogger.info(String.format("Found %s musical keys: %s", musicalKeys.size(),
+          musicalKeys.keySet().toString()));
+      throw new IllegalArgumentException("Only one key is supported");
+    }
+    if (musicalKeys.isEmpty()) {
+      throw new IllegalArgumentException("No key found");
+    }
+    return musicalKeys.keySet().iterator().next();
+  }
+
+  /**
+   * Skips the current element with all its content. The reader is left at the
+   * end tag of the element.
+   */
+  private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  private static XMLInputFactory createInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    // MusicXML files declare the DTD of the format, which is not needed
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    return factory;
   }
 
 }
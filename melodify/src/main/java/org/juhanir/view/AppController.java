@@ -1,9 +1,16 @@
 package org.juhanir.view;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.MapProperty;
 import javafx.beans.property.SimpleBooleanProperty;
@@ -20,9 +27,15 @@ import javafx.scene.control.Label;
 import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.VBox;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.juhanir.Constants;
 import org.juhanir.domain.Trie;
+import org.juhanir.utils.CorpusIndex;
 import org.juhanir.utils.FileIo;
+import org.juhanir.utils.ParseQuarantine;
+import org.juhanir.utils.ParsedCorpusCache;
+import org.juhanir.utils.ParsedTune;
 import org.juhanir.utils.ScoreParser;
 
 /**
@@ -30,6 +43,9 @@ import org.juhanir.utils.ScoreParser;
  */
 public class AppController {
 
+  private static final Logger controllerLogger = LogManager.getLogger();
+  private static final long KEY_UPDATE_INTERVAL_NANOS = 100_000_000L;
+
   @FXML
   private TextField degreeField;
 
@@ -77,13 +93,23 @@ public class AppController {
   private StringProperty playbackFile = new SimpleStringProperty();
   private StringProperty appMessage = new SimpleStringProperty();
   private BooleanProperty isLoading = new SimpleBooleanProperty(false);
-  private MapProperty<String, List<String>> filesPerKey = new SimpleMapProperty<>();
+  private Map<String, String> keyItems = new HashMap<>();
+  private MapProperty<String, List<String>> filesPerKey =
+      new SimpleMapProperty<>(FXCollections.observableHashMap());
   private AppEventHandler eventHandler;
   private final Trie trie;
+  private final CorpusIndex corpusIndex;
+  private final ParseQuarantine quarantine;
 
+  /**
+   * Constructor.
+   */
   public AppController() {
     this.trie = new Trie();
-    this.eventHandler = new AppEventHandler(trie, musicalKey, playbackFile, isLoading, appMessage);
+    this.corpusIndex = new CorpusIndex();
+    this.quarantine = new ParseQuarantine(new FileIo());
+    this.eventHandler = new AppEventHandler(trie, corpusIndex, quarantine, musicalKey,
+        playbackFile, isLoading, appMessage);
   }
 
   @FXML
@@ -103,67 +129,134 @@ public class AppController {
   }
 
   private void groupDataByKey() {
+    this.musicalKeySelect.setItems(this.keys);
+
+    Task<List<String>> bgTask = new Task<List<String>>() {
+      private Map<String, List<String>> indexedFiles = new LinkedHashMap<>();
+      private int indexedCount;
+      private int fileCount;
+      private long start;
+      private long lastUpdate;
 
-    Task<Map<String, List<String>>> bgTask = new Task<Map<String, List<String>>>() {
       @Override
-      protected Map<String, List<String>> call() throws Exception {
+      protected List<String> call() throws Exception {
         updateMessage("Reading training data");
         FileIo reader = new FileIo();
         List<String> sourceFiles = reader
             .getAllFilePathsInFolder(Constants.TRAINING_DATA_PATH, ".xml");
+        if (sourceFiles.isEmpty()) {
+          // not unpacked, read the files straight from the archive
+          sourceFiles = reader.getAllFilePathsInArchive(Constants.TRAINING_DATA_ARCHIVE, ".xml");
+        }
         List<String> generatedFiles = reader
             .getAllFilePathsInFolder(Constants.OUTPUT_DATA_PATH, ".staccato")
             .stream()
             .map(filePath -> filePath.substring(filePath.lastIndexOf(File.separator) + 1))
             .collect(Collectors.toList());
-        ScoreParser parser = new ScoreParser();
-        Map<String, List<String>> fileMap = parser.collectFilesPerKey(reader, sourceFiles);
-        fileMap.put("generatedFiles", generatedFiles);
-        updateMessage("");
-        return fileMap;
+        // parse the files once, training takes the notes from the index
+        // files that failed to parse before are skipped until they change
+        Path parsedFolder = reader.getOrCreateFolder(Constants.PARSED_DATA_PATH);
+        quarantine.load(parsedFolder.resolve(ParseQuarantine.fileName(Constants.FULL_KEY_SCAN)));
+        ScoreParser parser = new ScoreParser(Constants.FULL_KEY_SCAN, quarantine);
+        ParsedCorpusCache cache =
+            new ParsedCorpusCache(parsedFolder, reader, Constants.FULL_KEY_SCAN);
+        ExecutorService executor =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.fileCount = sourceFiles.size();
+        this.start = System.nanoTime();
+        try {
+          parser.indexCorpus(reader, sourceFiles, corpusIndex, cache, executor, this::onIndexed);
+        } finally {
+          executor.shutdownNow();
+        }
+        this.publish();
+        controllerLogger.info(String.format("Indexed %s files in %.0f ms", corpusIndex.size(),
+            (System.nanoTime() - this.start) / 1e6));
+        updateMessage(quarantine.size() > 0
+            ? String.format("%s training data files skipped as unparseable", quarantine.size())
+            : "");
+        return generatedFiles;
+      }
+
+      /**
+       * Collects the indexed files and hands them to the UI every
+       * <code>KEY_UPDATE_INTERVAL_NANOS</code>, starting from the first file so
+       * that a key can be selected as soon as possible.
+       */
+      private void onIndexed(String filePath, ParsedTune tune) {
+        this.indexedFiles.computeIfAbsent(tune.getKey(), key -> new ArrayList<>()).add(filePath);
+        this.indexedCount++;
+        long now = System.nanoTime();
+        if (this.indexedCount == 1) {
+          controllerLogger.info(String.format("First key %s found in %.0f ms", tune.getKey(),
+              (now - this.start) / 1e6));
+        }
+        if (this.indexedCount == 1 || now - this.lastUpdate >= KEY_UPDATE_INTERVAL_NANOS) {
+          this.lastUpdate = now;
+          this.publish();
+          updateMessage(String.format("Indexing training data, %s/%s files", this.indexedCount,
+              this.fileCount));
+        }
+      }
+
+      private void publish() {
+        Map<String, List<String>> batch = this.indexedFiles;
+        this.indexedFiles = new LinkedHashMap<>();
+        Platform.runLater(() -> addIndexedFiles(batch));
       }
     };
 
     bgTask.setOnSucceeded(event -> {
-      Map<String, List<String>> taskResult = bgTask.getValue();
-      List<String> existingGenerations = taskResult.remove("generatedFiles");
-      this.playbackFiles.addAll(existingGenerations);
+      this.playbackFiles.addAll(bgTask.getValue());
       this.playbackSelect.setItems(this.playbackFiles);
-      this.filesPerKey.set(FXCollections.observableMap(taskResult));
-      this.keys = FXCollections.observableArrayList(this.filesPerKey.getValue().entrySet().stream()
-          .map(es -> String.format("%s (%s files)", es.getKey(), es.getValue().size()))
-          .collect(Collectors.toList()));
-      this.musicalKeySelect.setItems(FXCollections.observableList(this.keys));
       if (this.keys.isEmpty()) {
         this.appMessage.set("ERROR: No input files found!");
         this.innerContainer.setDisable(true);
-      } else {
-        this.musicalKeySelect.setValue(this.keys.get(0));
       }
-      this.isLoading.set(false);
     });
 
     bgTask.setOnFailed(event -> {
       this.appMessage.set("ERROR:Failed to parse files");
       this.innerContainer.setDisable(true);
-      this.isLoading.set(false);
     });
 
     bgTask.messageProperty().addListener((observable, oldValue, newValue) -> {
       this.appMessage.set(newValue);
     });
 
-    bgTask.runningProperty().addListener((observable, oldValue, newValue) -> {
-      if (newValue) {
-        // Turn spinner off after success/failure actions
-        // because runningProperty changes before those
-        this.isLoading.set(newValue);
-      }
-    });
-
     Thread thread = new Thread(bgTask);
     thread.setDaemon(true);
     thread.start();
   }
 
+  /**
+   * Adds files found by the indexing to the files per key and updates the file
+   * counts in the key dropdown, selecting the first key when none has been
+   * selected yet. The lists of files are replaced instead of modified, so a
+   * training that has already started keeps its own list.
+   *
+   * @param indexedFiles files per key to add
+   */
+  private void addIndexedFiles(Map<String, List<String>> indexedFiles) {
+    indexedFiles.forEach((key, files) -> {
+      List<String> keyFiles = new ArrayList<>(this.filesPerKey.getOrDefault(key, List.of()));
+      keyFiles.addAll(files);
+      this.filesPerKey.put(key, keyFiles);
+      String item = String.format("%s (%s files)", key, keyFiles.size());
+      String previous = this.keyItems.put(key, item);
+      if (previous == null) {
+        this.keys.add(item);
+      } else {
+        boolean selected = previous.equals(this.musicalKeySelect.getValue());
+        this.keys.set(this.keys.indexOf(previous), item);
+        if (selected) {
+          this.musicalKeySelect.setValue(item);
+        }
+      }
+    });
+    if (this.musicalKeySelect.getValue() == null && !this.keys.isEmpty()) {
+      this.musicalKeySelect.setValue(this.keys.get(0));
+    }
+  }
+
 }
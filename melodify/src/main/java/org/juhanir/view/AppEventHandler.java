@@ -4,6 +4,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleBooleanProperty;
@@ -25,10 +27,14 @@ import org.jfugue.pattern.Pattern;
 import org.jfugue.player.ManagedPlayer;
 import org.jfugue.player.Player;
 import org.juhanir.Constants;
+import org.juhanir.domain.FrozenTrie;
 import org.juhanir.domain.Trie;
 import org.juhanir.services.GeneratorService;
+import org.juhanir.services.ModelCache;
 import org.juhanir.services.TrainingService;
+import org.juhanir.utils.CorpusIndex;
 import org.juhanir.utils.FileIo;
+import org.juhanir.utils.ParseQuarantine;
 import org.juhanir.utils.ScoreParser;
 
 /**
@@ -38,6 +44,11 @@ public class AppEventHandler {
 
   private static final Logger eventHandlerLogger = LogManager.getLogger();
   private final Trie trie;
+  private final CorpusIndex corpusIndex;
+  private final ParseQuarantine quarantine;
+  private final ModelCache modelCache;
+  private FrozenTrie model;
+  private String trainedKey;
   private final StringProperty musicalKey;
   private final StringProperty playbackFile;
   private final BooleanProperty isLoading;
@@ -53,14 +64,19 @@ public class AppEventHandler {
    * Constructor.
    *
    * @param trie         Trie data structure
+   * @param corpusIndex  Parsed training data files
+   * @param quarantine   Training data files that failed to parse
    * @param musicalKey   Key the user selected
    * @param playbackFile File the user selected for playback
    * @param isLoading    Flag for drawing the loading spinner
    * @param appMessage   Message to display in the UI
    */
-  public AppEventHandler(Trie trie, StringProperty musicalKey,
-      StringProperty playbackFile, BooleanProperty isLoading, StringProperty appMessage) {
+  public AppEventHandler(Trie trie, CorpusIndex corpusIndex, ParseQuarantine quarantine,
+      StringProperty musicalKey, StringProperty playbackFile, BooleanProperty isLoading,
+      StringProperty appMessage) {
     this.trie = trie;
+    this.corpusIndex = corpusIndex;
+    this.quarantine = quarantine;
     this.musicalKey = musicalKey;
     this.playbackFile = playbackFile;
     this.isLoading = isLoading;
@@ -71,6 +87,7 @@ public class AppEventHandler {
     this.canStartPlayback = new SimpleBooleanProperty(false);
     this.canGenerate = new SimpleBooleanProperty(false);
     this.noteDuration = new SimpleStringProperty();
+    this.modelCache = new ModelCache(Constants.MODEL_CACHE_BUDGET_BYTES);
   }
 
   /**
@@ -91,6 +108,7 @@ public class AppEventHandler {
           throw new Exception();
         }
         degree.set(value);
+        canGenerate.set(this.isTrainedFor(musicalKey.get(), value));
         degreeField.setStyle("-fx-border-color: none;");
         if (musicalKey.get() != null) {
           canTrainModel.set(true);
@@ -114,7 +132,8 @@ public class AppEventHandler {
     melodyLengthField.textProperty().addListener((observable, oldValue, newValue) -> {
       try {
         int value = Integer.parseInt(newValue.strip());
-        if (value < Constants.GENERATED_MELODY_MIN_LEN || value > Constants.GENERATED_MELODY_MAX_LEN) {
+        if (value < Constants.GENERATED_MELODY_MIN_LEN
+            || value > Constants.GENERATED_MELODY_MAX_LEN) {
           throw new Exception();
         }
         melodyLength.set(value);
@@ -133,9 +152,15 @@ public class AppEventHandler {
    */
   public void handleKeySelectChange(ComboBox<String> musicalKeySelect) {
     musicalKeySelect.valueProperty().addListener((observable, oldValue, newValue) -> {
+      if (newValue == null) {
+        // the selection is cleared for a moment while the indexing replaces
+        // the item of the selected key with one with a new file count
+        return;
+      }
       canGenerate.set(false);
       String key = newValue.split(" ")[0].strip();
       musicalKey.set(key);
+      canGenerate.set(this.isTrainedFor(key, degree.get()));
       if (Constants.MARKOV_CHAIN_DEGREE_MIN < degree.get()
           && degree.get() > Constants.MARKOV_CHAIN_DEGREE_MAX) {
         canTrainModel.set(false);
@@ -191,13 +216,23 @@ public class AppEventHandler {
           return;
         }
         this.canGenerate.set(false);
-        Task<Void> trainingTask = new Task<Void>() {
+        String key = musicalKey.get();
+        int selectedDegree = degree.get();
+        Task<FrozenTrie> trainingTask = new Task<FrozenTrie>() {
           @Override
-          protected Void call() throws Exception {
-            TrainingService trainer = new TrainingService(new FileIo(), new ScoreParser(), trie);
-            trie.clear();
-            trainer.trainWith(files, degree.get());
-            return null;
+          protected FrozenTrie call() throws Exception {
+            FileIo fileIo = new FileIo();
+            TrainingService trainer = new TrainingService(fileIo,
+                new ScoreParser(Constants.FULL_KEY_SCAN, quarantine), trie, modelCache,
+                corpusIndex);
+            ExecutorService executor =
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+              return trainer.loadOrTrain(key, files, selectedDegree, executor,
+                  fileIo.getOrCreateFolder(Constants.MODEL_DATA_PATH));
+            } finally {
+              executor.shutdownNow();
+            }
           }
         };
 
@@ -207,6 +242,8 @@ public class AppEventHandler {
         });
 
         trainingTask.setOnSucceeded(taskEvent -> {
+          this.model = trainingTask.getValue();
+          this.trainedKey = key;
           this.canGenerate.set(true);
         });
 
@@ -225,7 +262,8 @@ public class AppEventHandler {
   }
 
   /**
-   * Event handler for generate button.
+   * Event handler for generate button. Generates a batch of melodies in the
+   * background and saves the first one that reaches the requested length.
    *
    * @param generateButton UI element
    * @param filesPerKey    Training data files grouped per musical key
@@ -237,26 +275,65 @@ public class AppEventHandler {
     generateButton.setOnAction(event -> {
       this.appMessage.set("");
       try {
-        GeneratorService generator = new GeneratorService(trie, new Random());
+        GeneratorService generator = new GeneratorService(model, new Random(),
+            Constants.GENERATION_BACKOFF,
+            Constants.GENERATION_AVOID_DEAD_ENDS ? Constants.GENERATION_DEAD_END_HORIZON : 0);
         int startingNote = generator.getBaseNoteOfKey(musicalKey.get());
         if (startingNote < 0) {
-          this.appMessage.set(
-              String.format("ERROR: Could not generate melody starting with %s", this.musicalKey.get()));
-        }
-        int[] initialSequence = trie.getMostCommonSequenceStartingWith(startingNote, degree.get());
-        int[] melody = generator.predictSequence(initialSequence, melodyLength.get());
-        if (melody.length < melodyLength.get()) {
-          this.appMessage.set(String.format("Generation stopped at %s notes", melody.length));
+          this.appMessage.set(String.format("ERROR: Could not generate melody starting with %s",
+              this.musicalKey.get()));
+          return;
         }
+        int[] initialSequence = model.getMostCommonSequenceStartingWith(startingNote, degree.get());
+        int length = melodyLength.get();
+        String duration = noteDuration.get();
         String[] fileNames = generator
-            .getGenerationFileNames(musicalKey.get(), degree.get(), noteDuration.get());
-        FileIo fileUtil = new FileIo();
-        String staccatoString = generator.toStaccatoString(melody, noteDuration.get());
-        Pattern pattern = new Pattern(new Pattern(staccatoString));
-        fileUtil.writeToFile(
-            Constants.OUTPUT_DATA_PATH, fileNames[0], pattern.getPattern().toString());
-        fileUtil.saveMidiFile(Constants.OUTPUT_DATA_PATH, fileNames[1], pattern);
-        playbackFiles.add(fileNames[0]);
+            .getGenerationFileNames(musicalKey.get(), degree.get(), duration);
+        long seed = new Random().nextLong();
+        Task<int[]> generationTask = new Task<int[]>() {
+          @Override
+          protected int[] call() throws Exception {
+            ExecutorService executor =
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            List<int[]> melodies;
+            try {
+              melodies = generator.generateBatch(initialSequence,
+                  Constants.GENERATION_CANDIDATES, length, seed, executor);
+            } finally {
+              executor.shutdownNow();
+            }
+            int[] melody = generator.selectMelody(melodies, length, initialSequence.length);
+            FileIo fileUtil = new FileIo();
+            String staccatoString = generator.toStaccatoString(melody, duration);
+            Pattern pattern = new Pattern(new Pattern(staccatoString));
+            fileUtil.writeToFile(
+                Constants.OUTPUT_DATA_PATH, fileNames[0], pattern.getPattern().toString());
+            fileUtil.saveMidiFile(Constants.OUTPUT_DATA_PATH, fileNames[1], pattern);
+            return melody;
+          }
+        };
+
+        generationTask.setOnFailed(taskEvent -> {
+          eventHandlerLogger.error("Failed to generate melody", generationTask.getException());
+          this.setErrorMessage(generationTask.getException(), "Failed to generate melody");
+        });
+
+        generationTask.setOnSucceeded(taskEvent -> {
+          int[] melody = generationTask.getValue();
+          if (melody.length < length) {
+            this.appMessage.set(String.format("Generation stopped at %s notes", melody.length));
+          }
+          playbackFiles.add(fileNames[0]);
+        });
+
+        generationTask.runningProperty().addListener((observable, oldValue, newValue) -> {
+          this.isLoading.set(newValue);
+        });
+
+        Thread thread = new Thread(generationTask);
+        thread.setDaemon(true);
+        thread.start();
+
       } catch (Exception e) {
         eventHandlerLogger.error("Failed to generate melody", e);
         this.setErrorMessage(e, "Failed to generate melody");
@@ -356,6 +433,15 @@ public class AppEventHandler {
     });
   }
 
+  /**
+   * A model trained with some degree can generate with that and every lower
+   * degree, so it does not need training again when the degree is lowered.
+   */
+  private boolean isTrainedFor(String key, int degree) {
+    return this.model != null && key != null && key.equals(this.trainedKey)
+        && degree >= Constants.MARKOV_CHAIN_DEGREE_MIN && degree <= this.model.getMaxDegree();
+  }
+
   private void setErrorMessage(Throwable e, String baseMessage) {
     String error = e.getMessage();
     String msg = (error != null && !error.isBlank())
@@ -0,0 +1,161 @@
+package org.juhanir.benchmark;
+
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.juhanir.Constants;
+import org.juhanir.domain.Trie;
+import org.juhanir.utils.FileIo;
+import org.juhanir.utils.ScoreParser;
+
+/**
+ * <p>
+ * Shared helpers for the benchmarks. Benchmarks are tagged with
+ * <code>benchmark</code> and excluded from the normal test run, see
+ * <code>make benchmark</code>.
+ * </p>
+ * <p>
+ * Source data is read from the folder given in the system property
+ * <code>benchmark.data</code>, by default the training data folder. Zip
+ * archive benchmarks read the archive given in <code>benchmark.archive</code>.
+ * </p>
+ */
+final class BenchmarkSupport {
+
+  private static final Logger benchmarkLogger = LogManager.getLogger();
+  static final String DATA_PATH =
+      System.getProperty("benchmark.data", Constants.TRAINING_DATA_PATH);
+  static final String ARCHIVE_PATH =
+      System.getProperty("benchmark.archive", Constants.TRAINING_DATA_ARCHIVE);
+
+  private BenchmarkSupport() {
+  }
+
+  static List<String> corpusFiles() {
+    return new FileIo().getAllFilePathsInFolder(DATA_PATH, ".xml");
+  }
+
+  /**
+   * Parse all benchmark source files to melodies, skipping the ones that fail.
+   *
+   * @return melodies as note arrays
+   */
+  static List<int[]> parseCorpus() {
+    FileIo reader = new FileIo();
+    ScoreParser parser = new ScoreParser();
+    List<int[]> melodies = new ArrayList<>();
+    for (String filePath : corpusFiles()) {
+      try (InputStream is = reader.readFile(filePath)) {
+        melodies.add(parser.parse(is));
+      } catch (Exception e) {
+        benchmarkLogger.debug("Skipping " + filePath);
+      }
+    }
+    return melodies;
+  }
+
+  /**
+   * Insert all training tuples of the melodies into a new trie, including the
+   * shorter tuples at the end of the melodies like the training does.
+   *
+   * @param melodies note sequences
+   * @param degree   Markov Chain degree
+   * @return trained trie
+   */
+  static Trie train(List<int[]> melodies, int degree) {
+    Trie trie = new Trie();
+    for (int[] melody : melodies) {
+      trie.insertAllWindows(melody, degree);
+    }
+    return trie;
+  }
+
+  /**
+   * Collect every note sequence of the given length that is followed by
+   * another note in the melodies, i.e. the prefixes that are in a trained trie.
+   *
+   * @param melodies note sequences
+   * @param length   prefix length
+   * @return prefixes
+   */
+  static int[][] prefixes(List<int[]> melodies, int length) {
+    List<int[]> prefixes = new ArrayList<>();
+    for (int[] melody : melodies) {
+      for (int i = 0; i + length < melody.length; i++) {
+        prefixes.add(Arrays.copyOfRange(melody, i, i + length));
+      }
+    }
+    return prefixes.toArray(new int[0][]);
+  }
+
+  /**
+   * Best effort measurement of the heap in use after garbage collection.
+   *
+   * @return used heap in bytes
+   */
+  static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Bytes allocated by the current thread so far, -1 if the JVM does not
+   * support measuring it.
+   *
+   * @return allocated bytes
+   */
+  static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+          Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * Number and total time in milliseconds of the garbage collections so far.
+   *
+   * @return collections and milliseconds
+   */
+  static long[] garbageCollections() {
+    long[] total = new long[2];
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total[0] += Math.max(collector.getCollectionCount(), 0);
+      total[1] += Math.max(collector.getCollectionTime(), 0);
+    }
+    return total;
+  }
+
+  /**
+   * Average wall time of the action in nanoseconds after warmup rounds.
+   *
+   * @param warmup number of untimed rounds
+   * @param rounds number of timed rounds
+   * @param action the measured code
+   * @return average nanoseconds per round
+   */
+  static double averageNanos(int warmup, int rounds, Runnable action) {
+    for (int i = 0; i < warmup; i++) {
+      action.run();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      action.run();
+    }
+    return (System.nanoTime() - start) / (double) rounds;
+  }
+
+  static void report(String format, Object... args) {
+    benchmarkLogger.info(String.format(format, args));
+  }
+
+}
@@ -0,0 +1,318 @@
+package org.juhanir.benchmark;
+
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.juhanir.Constants;
+import org.juhanir.domain.FrozenTrie;
+import org.juhanir.domain.MelodyCursor;
+import org.juhanir.domain.Trie;
+import org.juhanir.services.GeneratorService;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("benchmark")
+class GeneratorBenchmark {
+
+  private static final int MELODIES = 2000;
+  private static final int MAX_ATTEMPTS = 100;
+
+  @Test
+  void bulkGeneration() {
+    List<int[]> melodies = BenchmarkSupport.parseCorpus();
+    assumeFalse(melodies.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    for (int degree : new int[] { 1, 3, 5 }) {
+      FrozenTrie model = BenchmarkSupport.train(melodies, degree).freeze();
+      GeneratorService generator = new GeneratorService(model, new Random(1));
+      int[] prefix = model.getMostCommonSequenceStartingWith(melodies.get(0)[0], degree);
+      long[] notes = new long[1];
+      double nanos = BenchmarkSupport.averageNanos(1, 3, () -> {
+        for (int i = 0; i < MELODIES; i++) {
+          notes[0] += generator.predictSequence(prefix, Constants.GENERATED_MELODY_MAX_LEN).length;
+        }
+      });
+      double notesPerRound = notes[0] / 4.0;
+      BenchmarkSupport.report(
+          "degree %s: %s melodies in %.1f ms, %.0f notes per melody, %.1f ns per note", degree,
+          MELODIES, nanos / 1e6, notesPerRound / MELODIES, nanos / notesPerRound);
+    }
+  }
+
+  /**
+   * Generation with a cursor that follows suffix links against looking up a
+   * copy of the context for every note, with the same random numbers so both
+   * produce the same notes. The contexts are taken from all over the corpus.
+   */
+  @Test
+  void cursorVersusLookupAtHighDegrees() {
+    List<int[]> melodies = BenchmarkSupport.parseCorpus();
+    assumeFalse(melodies.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    for (int degree : new int[] { 10, 20, 30 }) {
+      Trie trie = BenchmarkSupport.train(melodies, degree);
+      FrozenTrie model = trie.freeze();
+      trie = null;
+      int[][] all = BenchmarkSupport.prefixes(melodies, degree);
+      int[][] prefixes = new int[MELODIES][];
+      for (int i = 0; i < MELODIES; i++) {
+        prefixes[i] = all[(int) ((long) i * all.length / MELODIES)];
+      }
+      all = null;
+      long[] notes = new long[2];
+      double lookupNanos = BenchmarkSupport.averageNanos(1, 3, () -> {
+        Random random = new Random(1);
+        for (int[] prefix : prefixes) {
+          notes[0] += predictByLookup(model, random, prefix, Constants.GENERATED_MELODY_MAX_LEN);
+        }
+      });
+      double cursorNanos = BenchmarkSupport.averageNanos(1, 3, () -> {
+        Random random = new Random(1);
+        for (int[] prefix : prefixes) {
+          notes[1] += predictByCursor(model, random, prefix, Constants.GENERATED_MELODY_MAX_LEN);
+        }
+      });
+      double notesPerRound = notes[0] / 4.0;
+      BenchmarkSupport.report(
+          "degree %s: %s nodes, %.0f notes per melody, lookup %.1f ns per note (%.0f melodies/s),"
+              + " cursor %.1f ns per note (%.0f melodies/s), same notes %s",
+          degree, model.size(), notesPerRound / MELODIES, lookupNanos / notesPerRound,
+          MELODIES / (lookupNanos / 1e9), cursorNanos / notesPerRound,
+          MELODIES / (cursorNanos / 1e9), notes[0] == notes[1]);
+    }
+  }
+
+  /**
+   * Melodies per second of a batch with different numbers of threads. The
+   * batches must be the same whatever the number of threads.
+   */
+  @Test
+  void batchGenerationThreads() throws InterruptedException {
+    List<int[]> melodies = BenchmarkSupport.parseCorpus();
+    assumeFalse(melodies.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    int degree = 5;
+    FrozenTrie model = BenchmarkSupport.train(melodies, degree).freeze();
+    GeneratorService generator = new GeneratorService(model, new Random(1));
+    int[] prefix = model.getMostCommonSequenceStartingWith(melodies.get(0)[0], degree);
+    List<int[]> expected = null;
+    for (int threads : new int[] { 1, 2, 4, Runtime.getRuntime().availableProcessors() }) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        List<List<int[]>> batches = new ArrayList<>();
+        double nanos = BenchmarkSupport.averageNanos(5, 5, () -> {
+          try {
+            batches.add(generator.generateBatch(prefix, MELODIES,
+                Constants.GENERATED_MELODY_DEFAULT_LEN, 42, executor));
+          } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+          }
+        });
+        if (expected == null) {
+          expected = batches.get(0);
+        }
+        boolean same = true;
+        for (List<int[]> batch : batches) {
+          for (int i = 0; i < MELODIES; i++) {
+            same &= Arrays.equals(expected.get(i), batch.get(i));
+          }
+        }
+        BenchmarkSupport.report("%s threads (%s cores): %.0f melodies/s, same melodies %s",
+            threads, Runtime.getRuntime().availableProcessors(), MELODIES / (nanos / 1e9), same);
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * A million notes from the lazy stream against the same from melodies of
+   * <code>predictSequence</code>, with the time and the bytes allocated per
+   * note. Both start again from the prefix when the melody ends.
+   */
+  @Test
+  void streamedVersusMaterializedNotes() {
+    List<int[]> melodies = BenchmarkSupport.parseCorpus();
+    assumeFalse(melodies.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    long total = 1_000_000;
+    for (int degree : new int[] { 3, 10 }) {
+      FrozenTrie model = BenchmarkSupport.train(melodies, degree).freeze();
+      GeneratorService generator = new GeneratorService(model, new Random(1));
+      int[] prefix = model.getMostCommonSequenceStartingWith(melodies.get(0)[0], degree);
+      long[] allocated = new long[2];
+      double streamNanos = BenchmarkSupport.averageNanos(3, 3, () -> {
+        long start = BenchmarkSupport.allocatedBytes();
+        long notes = 0;
+        while (notes < total) {
+          notes += generator.streamNotes(prefix).limit(total - notes).count();
+        }
+        allocated[0] = BenchmarkSupport.allocatedBytes() - start;
+      });
+      double materializedNanos = BenchmarkSupport.averageNanos(3, 3, () -> {
+        long start = BenchmarkSupport.allocatedBytes();
+        long notes = 0;
+        while (notes < total) {
+          notes += generator.predictSequence(prefix, (int) Math.min(total - notes,
+              Constants.GENERATED_MELODY_MAX_LEN)).length;
+        }
+        allocated[1] = BenchmarkSupport.allocatedBytes() - start;
+      });
+      BenchmarkSupport.report("degree %s: stream %.1f ns and %.2f bytes per note, "
+          + "predictSequence %.1f ns and %.2f bytes per note", degree, streamNanos / total,
+          allocated[0] / (double) total, materializedNanos / total, allocated[1] / (double) total);
+    }
+  }
+
+  /**
+   * Generating melodies of the default length from contexts all over the
+   * corpus. Without backoff a melody that stops short is generated again,
+   * at most <code>MAX_ATTEMPTS</code> times, like a user pressing Generate
+   * again. With backoff every melody is usable on the first attempt.
+   */
+  @Test
+  void retriesWithAndWithoutBackoff() {
+    List<int[]> melodies = BenchmarkSupport.parseCorpus();
+    assumeFalse(melodies.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    int requests = 500;
+    int length = Constants.GENERATED_MELODY_DEFAULT_LEN;
+    for (int degree : new int[] { 5, 10, 20 }) {
+      FrozenTrie model = BenchmarkSupport.train(melodies, degree).freeze();
+      int[][] all = BenchmarkSupport.prefixes(melodies, degree);
+      int[][] prefixes = new int[requests][];
+      for (int i = 0; i < requests; i++) {
+        prefixes[i] = all[(int) ((long) i * all.length / requests)];
+      }
+      all = null;
+      for (boolean backoff : new boolean[] { false, true }) {
+        GeneratorService generator = new GeneratorService(model, new Random(1), backoff);
+        long[] counts = new long[4];
+        double nanos = BenchmarkSupport.averageNanos(10, 5, () -> {
+          counts[0] = 0;
+          counts[1] = 0;
+          counts[3] = 0;
+          for (int[] prefix : prefixes) {
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+              counts[0]++;
+              int generated = generator.predictSequence(prefix, length).length;
+              counts[3] += generated;
+              if (generated >= length) {
+                counts[1]++;
+                break;
+              }
+            }
+          }
+        });
+        Random random = new Random(2);
+        for (int[] prefix : prefixes) {
+          MelodyCursor cursor = generator.cursor(prefix);
+          for (int i = prefix.length; i < length && cursor.next(random.nextDouble()) != -1; i++) {
+            // only the backoffs are counted
+          }
+          counts[2] += cursor.getBackoffs();
+        }
+        BenchmarkSupport.report("degree %s, backoff %s: %.2f attempts per request, "
+            + "%s of %s requests usable, %.1f us per usable melody, %.1f ns per note, "
+            + "%.2f backoffs per melody", degree, backoff, counts[0] / (double) requests,
+            counts[1], requests, nanos / 1e3 / Math.max(counts[1], 1), nanos / counts[3],
+            counts[2] / (double) requests);
+      }
+    }
+  }
+
+  @Test
+  void earlyStopsWithAndWithoutAvoidingDeadEnds() {
+    List<int[]> melodies = BenchmarkSupport.parseCorpus();
+    assumeFalse(melodies.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    int requests = 500;
+    int length = Constants.GENERATED_MELODY_DEFAULT_LEN;
+    for (int degree : new int[] { 5, 10, 20 }) {
+      Trie trie = BenchmarkSupport.train(melodies, degree);
+      long start = System.nanoTime();
+      FrozenTrie model = trie.freeze();
+      long freezeNanos = System.nanoTime() - start;
+      int[][] all = BenchmarkSupport.prefixes(melodies, degree);
+      int[][] prefixes = new int[requests][];
+      for (int i = 0; i < requests; i++) {
+        prefixes[i] = all[(int) ((long) i * all.length / requests)];
+      }
+      all = null;
+      for (int horizon : new int[] { 0, 4, 16, FrozenTrie.DEAD_END_HORIZON }) {
+        GeneratorService generator = new GeneratorService(model, new Random(1), false, horizon);
+        long[] counts = new long[3];
+        double nanos = BenchmarkSupport.averageNanos(10, 5, () -> {
+          counts[0] = 0;
+          counts[1] = 0;
+          for (int[] prefix : prefixes) {
+            int generated = generator.predictSequence(prefix, length).length;
+            counts[1] += generated;
+            if (generated < length) {
+              counts[0]++;
+            }
+          }
+        });
+        GeneratorService backingOff =
+            new GeneratorService(model, new Random(1), true, horizon);
+        Random random = new Random(2);
+        for (int[] prefix : prefixes) {
+          MelodyCursor cursor = backingOff.cursor(prefix);
+          for (int i = prefix.length; i < length && cursor.next(random.nextDouble()) != -1; i++) {
+            // only the backoffs are counted
+          }
+          counts[2] += cursor.getBackoffs();
+        }
+        BenchmarkSupport.report("degree %s, dead end horizon %s: %.1f %% stopped early, "
+            + "%.1f us per melody, %.1f ns per note, %.2f backoffs per melody with backoff, "
+            + "freeze %.0f ms for %s nodes", degree, horizon, counts[0] * 100.0 / requests,
+            nanos / 1e3 / requests, nanos / counts[1], counts[2] / (double) requests,
+            freezeNanos / 1e6, model.size());
+      }
+    }
+  }
+
+  /**
+   * The loop of <code>GeneratorService.predictSequence</code> without its
+   * logging, so that only the way the context is found differs.
+   *
+   * @return number of generated notes
+   */
+  private static int predictByCursor(FrozenTrie model, Random random, int[] initialPrefix,
+      int minimumLength) {
+    MelodyCursor cursor = new MelodyCursor(model, initialPrefix);
+    int length = minimumLength * 2;
+    for (int i = initialPrefix.length; i < length; i++) {
+      int nextNote = cursor.next(random.nextDouble());
+      if (nextNote == -1) {
+        return i - initialPrefix.length;
+      }
+      if (i >= (minimumLength - 1) && nextNote == initialPrefix[0]) {
+        return i + 1 - initialPrefix.length;
+      }
+    }
+    return length - initialPrefix.length;
+  }
+
+  /**
+   * Generation the way it was done before the cursor, for comparison.
+   *
+   * @return number of generated notes
+   */
+  private static int predictByLookup(FrozenTrie model, Random random, int[] initialPrefix,
+      int minimumLength) {
+    int[] result = Arrays.copyOf(initialPrefix, minimumLength * 2);
+    for (int i = initialPrefix.length; i < result.length; i++) {
+      int[] generationPrefix = Arrays.copyOfRange(result, i - initialPrefix.length, i);
+      int nextNote = model.sample(model.lookup(generationPrefix), random.nextDouble());
+      if (nextNote == -1) {
+        return i - initialPrefix.length;
+      }
+      result[i] = nextNote;
+      if (i >= (minimumLength - 1) && nextNote == initialPrefix[0]) {
+        return i + 1 - initialPrefix.length;
+      }
+    }
+    return result.length - initialPrefix.length;
+  }
+
+}
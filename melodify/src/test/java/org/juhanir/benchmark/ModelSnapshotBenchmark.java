@@ -0,0 +1,73 @@
+package org.juhanir.benchmark;
+
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import org.juhanir.Constants;
+import org.juhanir.domain.FrozenTrie;
+import org.juhanir.domain.ModelSnapshot;
+import org.juhanir.domain.Trie;
+import org.juhanir.services.GeneratorService;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("benchmark")
+class ModelSnapshotBenchmark {
+
+  @Test
+  void saveLoadAndFirstGeneration() throws IOException {
+    List<int[]> melodies = BenchmarkSupport.parseCorpus();
+    assumeFalse(melodies.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    Path folder = Files.createTempDirectory("snapshots");
+    int startingNote = melodies.get(0)[0];
+    for (int degree : new int[] { 5, 8 }) {
+      Path path = folder.resolve("model-" + degree);
+      double train = BenchmarkSupport.averageNanos(0, 1, () -> {
+        Trie trie = BenchmarkSupport.train(melodies, degree);
+        firstMelody(trie.freeze(), startingNote, degree);
+      });
+      FrozenTrie model = BenchmarkSupport.train(melodies, degree).freeze();
+      ModelSnapshot snapshot = new ModelSnapshot("D", degree, 0L, model);
+      double save = BenchmarkSupport.averageNanos(1, 3, () -> {
+        try {
+          snapshot.save(path);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      long bytes = Files.size(path);
+      double load = BenchmarkSupport.averageNanos(1, 5, () -> {
+        try {
+          ModelSnapshot.load(path);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      double firstGeneration = BenchmarkSupport.averageNanos(1, 5, () -> {
+        try {
+          firstMelody(ModelSnapshot.load(path).getModel(), startingNote, degree);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      BenchmarkSupport.report("degree %s: %s nodes, %.1f MB", degree, model.size(),
+          bytes / 1e6);
+      BenchmarkSupport.report("save %.1f ms (%.0f MB/s), load %.3f ms (%.0f MB/s)",
+          save / 1e6, bytes / save * 1e3, load / 1e6, bytes / load * 1e3);
+      BenchmarkSupport.report("first melody: from snapshot %.2f ms, "
+          + "training from parsed notes %.1f ms", firstGeneration / 1e6, train / 1e6);
+    }
+  }
+
+  private static int[] firstMelody(FrozenTrie model, int startingNote, int degree) {
+    GeneratorService generator = new GeneratorService(model, new Random());
+    int[] prefix = model.getMostCommonSequenceStartingWith(startingNote, degree);
+    return generator.predictSequence(prefix, Constants.GENERATED_MELODY_DEFAULT_LEN);
+  }
+
+}
@@ -0,0 +1,183 @@
+package org.juhanir.benchmark;
+
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.juhanir.utils.JaxbScoreReader;
+import org.juhanir.utils.ScoreParser;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("benchmark")
+class ParserBenchmark {
+
+  /**
+   * A parse of one file, failures are ignored like in training.
+   */
+  private interface FileParse {
+    void run(ByteArrayInputStream source) throws Exception;
+  }
+
+  @Test
+  void streamingVersusJaxbThroughput() throws IOException {
+    List<byte[]> files = new ArrayList<>();
+    long bytes = 0;
+    for (String filePath : BenchmarkSupport.corpusFiles()) {
+      byte[] content = Files.readAllBytes(Path.of(filePath));
+      files.add(content);
+      bytes += content.length;
+    }
+    assumeFalse(files.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    ScoreParser parser = new ScoreParser();
+    JaxbScoreReader reference = new JaxbScoreReader();
+    BenchmarkSupport.report("%s files, %.1f MB", files.size(), bytes / 1e6);
+    this.report("notes, JAXB", files, bytes, reference::parse);
+    this.report("notes, StAX", files, bytes, parser::parse);
+    this.report("key, JAXB", files, bytes, reference::getKeys);
+    this.report("key, StAX", files, bytes, parser::getKeyForTune);
+  }
+
+  @Test
+  void firstKeyVersusFullKeyScan() throws IOException {
+    List<byte[]> files = new ArrayList<>();
+    long bytes = 0;
+    for (String filePath : BenchmarkSupport.corpusFiles()) {
+      byte[] content = Files.readAllBytes(Path.of(filePath));
+      files.add(content);
+      bytes += content.length;
+    }
+    assumeFalse(files.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    ScoreParser fullScan = new ScoreParser(true);
+    ScoreParser firstKey = new ScoreParser(false);
+    int differing = 0;
+    for (byte[] content : files) {
+      String full = this.keyOrNull(fullScan, new ByteArrayInputStream(content));
+      String first = this.keyOrNull(firstKey, new ByteArrayInputStream(content));
+      if (full != null && !full.equals(first) || full == null && first != null) {
+        differing++;
+      }
+    }
+    BenchmarkSupport.report("%s files, %.1f MB, %s files get a different key", files.size(),
+        bytes / 1e6, differing);
+    for (ScoreParser parser : List.of(fullScan, firstKey)) {
+      long[] read = new long[1];
+      for (byte[] content : files) {
+        this.keyOrNull(parser, new CountingInputStream(content, read));
+      }
+      this.report(parser == fullScan ? "key, full scan" : "key, first key", files, bytes,
+          parser::getKeyForTune);
+      BenchmarkSupport.report("  read %.1f MB, %.1f%% of the bytes", read[0] / 1e6,
+          100.0 * read[0] / bytes);
+    }
+  }
+
+  /**
+   * The cost of the first file a new thread parses and of the next files, like
+   * the parsing threads of a training. A score with only a key shows the cost
+   * of setting up the XML reader, the smallest file of the corpus how much of
+   * a real file it is.
+   */
+  @Test
+  void coldAndWarmPerFileCost() throws Exception {
+    byte[] smallest = null;
+    for (String filePath : BenchmarkSupport.corpusFiles()) {
+      byte[] content = Files.readAllBytes(Path.of(filePath));
+      if (smallest == null || content.length < smallest.length) {
+        smallest = content;
+      }
+    }
+    assumeFalse(smallest == null, "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    byte[] keyOnly = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><score-partwise><part id=\"P1\">"
+        + "<measure number=\"1\"><attributes><key><fifths>1</fifths></key></attributes>"
+        + "</measure></part></score-partwise>").getBytes(StandardCharsets.UTF_8);
+    ScoreParser parser = new ScoreParser();
+    for (int round = 0; round < 3; round++) {
+      for (byte[] content : List.of(keyOnly, smallest)) {
+        long[] nanos = new long[2];
+        Thread thread = new Thread(() -> {
+          try {
+            long start = System.nanoTime();
+            parser.parseTune(new ByteArrayInputStream(content));
+            nanos[0] = System.nanoTime() - start;
+            int count = 200_000 / (content.length / 100 + 1);
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+              parser.parseTune(new ByteArrayInputStream(content));
+            }
+            nanos[1] = (System.nanoTime() - start) / count;
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        });
+        thread.start();
+        thread.join();
+        BenchmarkSupport.report("%s bytes: first file of a thread %.0f us, next files %.1f us",
+            content.length, nanos[0] / 1e3, nanos[1] / 1e3);
+      }
+    }
+  }
+
+  private String keyOrNull(ScoreParser parser, InputStream source) {
+    try {
+      return parser.getKeyForTune(source);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Counts the bytes the parser takes from the source, including what it
+   * buffers ahead.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+
+    private final long[] count;
+
+    CountingInputStream(byte[] content, long[] count) {
+      super(new ByteArrayInputStream(content));
+      this.count = count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        this.count[0]++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        this.count[0] += n;
+      }
+      return n;
+    }
+
+  }
+
+  private void report(String name, List<byte[]> files, long bytes, FileParse parse) {
+    double nanos = BenchmarkSupport.averageNanos(1, 3, () -> {
+      for (byte[] content : files) {
+        try {
+          parse.run(new ByteArrayInputStream(content));
+        } catch (Exception e) {
+          // skipped like a failing file in training
+        }
+      }
+    });
+    BenchmarkSupport.report("%s: %.0f ms, %.0f files/s, %.1f MB/s", name, nanos / 1e6,
+        files.size() / nanos * 1e9, bytes / nanos * 1e3);
+  }
+
+}
@@ -0,0 +1,200 @@
+package org.juhanir.benchmark;
+
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import org.juhanir.Constants;
+import org.juhanir.domain.FrozenTrie;
+import org.juhanir.domain.Trie;
+import org.juhanir.services.GeneratorService;
+import org.juhanir.services.TrainingService;
+import org.juhanir.utils.CorpusIndex;
+import org.juhanir.utils.FileIo;
+import org.juhanir.utils.ParsedCorpusCache;
+import org.juhanir.utils.ScoreParser;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("benchmark")
+class StartupBenchmark {
+
+  private static final int DEGREE = 5;
+
+  /**
+   * What the application does from launch until the first melody: group the
+   * files by key, train the key with the most files and generate a melody.
+   */
+  @Test
+  void launchToFirstMelody() throws InterruptedException {
+    List<String> files = BenchmarkSupport.corpusFiles();
+    assumeFalse(files.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      // the first round includes the warmup of the JVM
+      for (int round = 0; round < 3; round++) {
+        this.parsingTwice(files, executor);
+        this.parsingOnce(files, executor);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void restartWithParsedCorpusCache() throws IOException {
+    List<String> files = BenchmarkSupport.corpusFiles();
+    assumeFalse(files.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    Path folder = Files.createTempDirectory("parsed");
+    FileIo reader = new FileIo();
+    ScoreParser parser = new ScoreParser();
+    for (int round = 0; round < 3; round++) {
+      long start = System.nanoTime();
+      parser.indexCorpus(reader, files, new CorpusIndex());
+      long parsed = System.nanoTime();
+      try (Stream<Path> entries = Files.list(folder)) {
+        entries.forEach(entry -> entry.toFile().delete());
+      }
+      parser.indexCorpus(reader, files, new CorpusIndex(), new ParsedCorpusCache(folder, reader));
+      long filled = System.nanoTime();
+      ParsedCorpusCache cache = new ParsedCorpusCache(folder, reader);
+      parser.indexCorpus(reader, files, new CorpusIndex(), cache);
+      long restarted = System.nanoTime();
+      BenchmarkSupport.report("indexing %s files: without cache %.0f ms, first start %.0f ms, "
+          + "restart %.0f ms (%s from cache)", files.size(), (parsed - start) / 1e6,
+          (filled - parsed) / 1e6, (restarted - filled) / 1e6, cache.getHits());
+    }
+  }
+
+  @Test
+  void archiveVersusUnpackedFolder() throws InterruptedException {
+    FileIo reader = new FileIo();
+    List<String> unpacked = BenchmarkSupport.corpusFiles();
+    List<String> archived = reader.getAllFilePathsInArchive(BenchmarkSupport.ARCHIVE_PATH, ".xml");
+    assumeFalse(unpacked.isEmpty() || archived.isEmpty(), "No benchmark data");
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      for (int round = 0; round < 3; round++) {
+        this.indexAndTrain("unpacked", unpacked, executor);
+        this.indexAndTrain("archive", archived, executor);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Before, the keys could be selected only after all files had been indexed.
+   * Now the first key can be selected as soon as one file has been parsed.
+   */
+  @Test
+  void keysAvailableWhileIndexing() throws InterruptedException {
+    List<String> files = BenchmarkSupport.corpusFiles();
+    assumeFalse(files.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    FileIo reader = new FileIo();
+    ScoreParser parser = new ScoreParser();
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int round = 0; round < 3; round++) {
+      long start = System.nanoTime();
+      parser.indexCorpus(reader, files, new CorpusIndex());
+      long indexed = System.nanoTime();
+      BenchmarkSupport.report("sequential: first key %.0f ms, all keys %.0f ms",
+          (indexed - start) / 1e6, (indexed - start) / 1e6);
+      for (int threads : new int[] { 1, cores }) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long[] firstKey = new long[1];
+        try {
+          start = System.nanoTime();
+          parser.indexCorpus(reader, files, new CorpusIndex(), null, executor,
+              (filePath, tune) -> {
+                if (firstKey[0] == 0) {
+                  firstKey[0] = System.nanoTime();
+                }
+              });
+          indexed = System.nanoTime();
+        } finally {
+          executor.shutdownNow();
+        }
+        BenchmarkSupport.report("%s threads: first key %.1f ms, all keys %.0f ms", threads,
+            (firstKey[0] - start) / 1e6, (indexed - start) / 1e6);
+      }
+    }
+  }
+
+  /**
+   * Index all files like the startup does, then train the key with the most
+   * files straight from the files without the index.
+   */
+  private void indexAndTrain(String name, List<String> files, ExecutorService executor)
+      throws InterruptedException {
+    FileIo reader = new FileIo();
+    ScoreParser parser = new ScoreParser();
+    long start = System.nanoTime();
+    CorpusIndex index = new CorpusIndex();
+    parser.indexCorpus(reader, files, index);
+    long indexed = System.nanoTime();
+    new TrainingService(reader, parser, new Trie())
+        .trainInParallel(this.largestKey(index.getFilesPerKey()), DEGREE, executor);
+    long trained = System.nanoTime();
+    BenchmarkSupport.report("%s: indexing %s files %.0f ms, training from files %.0f ms", name,
+        index.size(), (indexed - start) / 1e6, (trained - indexed) / 1e6);
+  }
+
+  private void parsingTwice(List<String> files, ExecutorService executor)
+      throws InterruptedException {
+    FileIo reader = new FileIo();
+    ScoreParser parser = new ScoreParser();
+    long start = System.nanoTime();
+    Map<String, List<String>> filesPerKey = parser.collectFilesPerKey(reader, files);
+    long grouped = System.nanoTime();
+    Trie trie = new Trie();
+    new TrainingService(reader, parser, trie)
+        .trainInParallel(this.largestKey(filesPerKey), DEGREE, executor);
+    this.report("parsing twice", start, grouped, trie);
+  }
+
+  private void parsingOnce(List<String> files, ExecutorService executor)
+      throws InterruptedException {
+    FileIo reader = new FileIo();
+    ScoreParser parser = new ScoreParser();
+    long start = System.nanoTime();
+    CorpusIndex index = new CorpusIndex();
+    parser.indexCorpus(reader, files, index);
+    Map<String, List<String>> filesPerKey = index.getFilesPerKey();
+    long grouped = System.nanoTime();
+    Trie trie = new Trie();
+    new TrainingService(reader, parser, trie, null, index)
+        .trainInParallel(this.largestKey(filesPerKey), DEGREE, executor);
+    this.report("parsing once", start, grouped, trie);
+    BenchmarkSupport.report("index: %s files, %s notes (%.1f MB)", index.size(),
+        index.getNoteCount(), index.getNoteCount() * 4 / 1e6);
+  }
+
+  private List<String> largestKey(Map<String, List<String>> filesPerKey) {
+    return filesPerKey.values().stream().max(Comparator.comparingInt(List::size)).get();
+  }
+
+  private void report(String name, long start, long grouped, Trie trie) {
+    long trained = System.nanoTime();
+    FrozenTrie model = trie.freeze();
+    GeneratorService generator = new GeneratorService(model, new Random(1));
+    int startingNote = model.getValue(model.getFirstChild(FrozenTrie.ROOT));
+    generator.predictSequence(model.getMostCommonSequenceStartingWith(startingNote, DEGREE),
+        Constants.GENERATED_MELODY_DEFAULT_LEN);
+    long generated = System.nanoTime();
+    BenchmarkSupport.report("%s: grouping %.0f ms, training %.0f ms, first melody %.0f ms, "
+        + "total %.0f ms", name, (grouped - start) / 1e6, (trained - grouped) / 1e6,
+        (generated - trained) / 1e6, (generated - start) / 1e6);
+  }
+
+}
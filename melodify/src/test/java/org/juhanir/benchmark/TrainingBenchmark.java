@@ -0,0 +1,184 @@
+package org.juhanir.benchmark;
+
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import org.juhanir.domain.Trie;
+import org.juhanir.services.TrainingPipeline;
+import org.juhanir.services.TrainingService;
+import org.juhanir.utils.FileIo;
+import org.juhanir.utils.ScoreParser;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("benchmark")
+class TrainingBenchmark {
+
+  private static final int DEGREE = 5;
+
+  @Test
+  void parallelTrainingSpeedup() throws InterruptedException {
+    List<String> files = BenchmarkSupport.corpusFiles();
+    assumeFalse(files.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    Trie serialTrie = new Trie();
+    double serial = BenchmarkSupport.averageNanos(1, 2, () -> {
+      serialTrie.clear();
+      new TrainingService(new FileIo(), new ScoreParser(), serialTrie).trainWith(files, DEGREE);
+    });
+    BenchmarkSupport.report("serial: %s files in %.0f ms, %s nodes", files.size(), serial / 1e6,
+        serialTrie.size());
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads <= cores; threads *= 2) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      Trie trie = new Trie();
+      try {
+        double parallel = BenchmarkSupport.averageNanos(1, 2, () -> {
+          trie.clear();
+          try {
+            new TrainingService(new FileIo(), new ScoreParser(), trie)
+                .trainInParallel(files, DEGREE, executor);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+        BenchmarkSupport.report("%s threads: %.0f ms, speedup %.2f, %s nodes", threads,
+            parallel / 1e6, serial / parallel, trie.size());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Test
+  void mergeVersusRetraining() {
+    List<String> files = BenchmarkSupport.corpusFiles();
+    List<int[]> melodies = BenchmarkSupport.parseCorpus();
+    assumeFalse(melodies.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    Trie first = BenchmarkSupport.train(melodies.subList(0, melodies.size() / 2), DEGREE);
+    Trie second =
+        BenchmarkSupport.train(melodies.subList(melodies.size() / 2, melodies.size()), DEGREE);
+    Trie[] result = new Trie[1];
+    double merge = BenchmarkSupport.averageNanos(3, 5, () -> {
+      result[0] = new Trie();
+      result[0].merge(first);
+      result[0].merge(second);
+    });
+    double fromMelodies = BenchmarkSupport.averageNanos(3, 5, () -> {
+      result[0] = BenchmarkSupport.train(melodies, DEGREE);
+    });
+    double fromFiles = BenchmarkSupport.averageNanos(1, 2, () -> {
+      result[0] = new Trie();
+      new TrainingService(new FileIo(), new ScoreParser(), result[0]).trainWith(files, DEGREE);
+    });
+    BenchmarkSupport.report("degree %s, shards of %s and %s nodes, %s nodes in total", DEGREE,
+        first.size(), second.size(), result[0].size());
+    BenchmarkSupport.report("merge two shards into a new trie: %.1f ms", merge / 1e6);
+    BenchmarkSupport.report("retrain from parsed melodies: %.1f ms (%.1fx the merge)",
+        fromMelodies / 1e6, fromMelodies / merge);
+    BenchmarkSupport.report("retrain from MusicXML files: %.1f ms (%.1fx the merge)",
+        fromFiles / 1e6, fromFiles / merge);
+  }
+
+  @Test
+  void insertThroughputAndAllocation() {
+    List<int[]> melodies = BenchmarkSupport.parseCorpus();
+    assumeFalse(melodies.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    List<List<Integer>> boxedMelodies = melodies.stream()
+        .map(melody -> Arrays.stream(melody).boxed().collect(Collectors.toList()))
+        .collect(Collectors.toList());
+    long windows = melodies.stream().mapToLong(melody -> melody.length).sum();
+    for (int degree : new int[] { 2, 5, 8 }) {
+      // Tuples built like the training did before insertAllWindows
+      Runnable tuples = () -> {
+        Trie trie = new Trie();
+        for (List<Integer> melody : boxedMelodies) {
+          for (int i = 0; i < melody.size(); i++) {
+            trie.insert(melody.subList(i, Math.min(i + degree + 1, melody.size())).stream()
+                .mapToInt(Integer::intValue).toArray());
+          }
+        }
+      };
+      Runnable windowed = () -> BenchmarkSupport.train(melodies, degree);
+      // The trie itself is the same in both, so insert into a trained trie to
+      // see the allocations of the insert path alone
+      Trie trained = BenchmarkSupport.train(melodies, degree);
+      Runnable tuplesIntoTrained = () -> {
+        for (List<Integer> melody : boxedMelodies) {
+          for (int i = 0; i < melody.size(); i++) {
+            trained.insert(melody.subList(i, Math.min(i + degree + 1, melody.size())).stream()
+                .mapToInt(Integer::intValue).toArray());
+          }
+        }
+      };
+      Runnable windowedIntoTrained = () -> {
+        for (int[] melody : melodies) {
+          trained.insertAllWindows(melody, degree);
+        }
+      };
+      double tupleNanos = BenchmarkSupport.averageNanos(2, 3, tuples);
+      double windowedNanos = BenchmarkSupport.averageNanos(2, 3, windowed);
+      long before = BenchmarkSupport.allocatedBytes();
+      tuplesIntoTrained.run();
+      long tupleBytes = BenchmarkSupport.allocatedBytes() - before;
+      before = BenchmarkSupport.allocatedBytes();
+      windowedIntoTrained.run();
+      long windowedBytes = BenchmarkSupport.allocatedBytes() - before;
+      BenchmarkSupport.report("degree %s: %s windows, tuples %.1f M windows/s, "
+          + "insertAllWindows %.1f M windows/s (%.1fx)", degree, windows,
+          windows / tupleNanos * 1e3, windows / windowedNanos * 1e3, tupleNanos / windowedNanos);
+      BenchmarkSupport.report("degree %s: allocated into a trained trie, tuples %.1f B/window, "
+          + "insertAllWindows %.1f B/window", degree, tupleBytes / (double) windows,
+          windowedBytes / (double) windows);
+    }
+  }
+
+  /**
+   * Training from the files without the corpus index, which parses every file
+   * to a melody first.
+   */
+  @Test
+  void heapAndGcOfTrainingFromFiles() {
+    List<String> files = BenchmarkSupport.corpusFiles();
+    assumeFalse(files.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    for (int round = 0; round < 3; round++) {
+      long[] gc = BenchmarkSupport.garbageCollections();
+      long before = BenchmarkSupport.allocatedBytes();
+      long start = System.nanoTime();
+      Trie trie = new Trie();
+      new TrainingService(new FileIo(), new ScoreParser(), trie).trainWith(files, DEGREE);
+      long trained = System.nanoTime();
+      long allocated = BenchmarkSupport.allocatedBytes() - before;
+      long[] gcAfter = BenchmarkSupport.garbageCollections();
+      BenchmarkSupport.report("%s files in %.0f ms: allocated %.0f MB, %s collections in %s ms, "
+          + "heap after training %.1f MB", files.size(), (trained - start) / 1e6,
+          allocated / 1e6, gcAfter[0] - gc[0], gcAfter[1] - gc[1],
+          BenchmarkSupport.usedHeap() / 1e6);
+    }
+  }
+
+  @Test
+  void pipelinedVersusParallelTraining() throws InterruptedException {
+    List<String> files = BenchmarkSupport.corpusFiles();
+    assumeFalse(files.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    int cores = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool(cores + 1);
+    try {
+      for (int round = 0; round < 3; round++) {
+        long start = System.nanoTime();
+        new TrainingService(new FileIo(), new ScoreParser(), new Trie())
+            .trainInParallel(files, DEGREE, executor);
+        long parallel = System.nanoTime() - start;
+        TrainingPipeline pipeline = new TrainingService(new FileIo(), new ScoreParser(),
+            new Trie()).trainPipelined(files, DEGREE, executor, cores);
+        BenchmarkSupport.report("parallel %.0f ms, %s", parallel / 1e6, pipeline);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+}
@@ -0,0 +1,78 @@
+package org.juhanir.benchmark;
+
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.util.List;
+import java.util.Random;
+import org.juhanir.domain.FrozenTrie;
+import org.juhanir.domain.Trie;
+import org.juhanir.services.GeneratorService;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+@Tag("benchmark")
+class TrieBenchmark {
+
+  // Compressed oops: 12 byte header + child array reference + three ints,
+  // padded to 32, plus TrieNode[72] with 16 byte header
+  private static final long DENSE_LAYOUT_BYTES_PER_NODE = 32 + 16 + 72 * 4;
+
+  @Test
+  void heapFootprint() {
+    List<int[]> melodies = BenchmarkSupport.parseCorpus();
+    assumeFalse(melodies.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    for (int degree : new int[] { 2, 5, 8 }) {
+      long before = BenchmarkSupport.usedHeap();
+      Trie trie = BenchmarkSupport.train(melodies, degree);
+      long after = BenchmarkSupport.usedHeap();
+      int nodes = trie.size();
+      BenchmarkSupport.report(
+          "degree %s: %s nodes, measured %s MB (%s B/node), dense layout estimate %s MB",
+          degree, nodes, (after - before) >> 20, (after - before) / nodes,
+          (nodes * DENSE_LAYOUT_BYTES_PER_NODE) >> 20);
+    }
+  }
+
+  @Test
+  void lookupAndSamplingLatency() {
+    List<int[]> melodies = BenchmarkSupport.parseCorpus();
+    assumeFalse(melodies.isEmpty(), "No benchmark data in " + BenchmarkSupport.DATA_PATH);
+    int degree = 5;
+    Trie trie = BenchmarkSupport.train(melodies, degree);
+    FrozenTrie frozen = trie.freeze();
+    int[][] prefixes = BenchmarkSupport.prefixes(melodies, degree);
+    GeneratorService generator = new GeneratorService(frozen, new Random(1));
+    int[] sink = new int[1];
+    double pointerLookup = BenchmarkSupport.averageNanos(3, 5, () -> {
+      for (int[] prefix : prefixes) {
+        sink[0] += trie.lookup(prefix).getCount();
+      }
+    }) / prefixes.length;
+    double frozenLookup = BenchmarkSupport.averageNanos(3, 5, () -> {
+      for (int[] prefix : prefixes) {
+        sink[0] += frozen.getCount(frozen.lookup(prefix));
+      }
+    }) / prefixes.length;
+    double pointerSampling = BenchmarkSupport.averageNanos(3, 5, () -> {
+      for (int[] prefix : prefixes) {
+        sink[0] += generator.getIndexOfSelectedNote(trie.getProbabilities(trie.lookup(prefix)));
+      }
+    }) / prefixes.length;
+    double frozenSampling = BenchmarkSupport.averageNanos(3, 5, () -> {
+      for (int[] prefix : prefixes) {
+        sink[0] += generator.getIndexOfSelectedNote(frozen.getProbabilities(frozen.lookup(prefix)));
+      }
+    }) / prefixes.length;
+    double aliasSampling = BenchmarkSupport.averageNanos(3, 5, () -> {
+      for (int[] prefix : prefixes) {
+        sink[0] += generator.predictNextNote(prefix);
+      }
+    }) / prefixes.length;
+    BenchmarkSupport.report("degree %s, %s prefixes (%s)", degree, prefixes.length, sink[0]);
+    BenchmarkSupport.report("lookup: pointer trie %.1f ns, frozen trie %.1f ns",
+        pointerLookup, frozenLookup);
+    BenchmarkSupport.report("lookup + sampling: pointer trie %.1f ns, frozen trie %.1f ns, "
+        + "frozen trie with alias tables %.1f ns", pointerSampling, frozenSampling, aliasSampling);
+  }
+
+}
@@ -0,0 +1,205 @@
+package org.juhanir.domain;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.juhanir.Constants;
+import org.junit.jupiter.api.Test;
+
+class ConcurrentTrieTest {
+
+  private static final int THREADS = 8;
+
+  private final int[] firstBranch = { 5, 6, 7 };
+  private final int[] secondBranch = { 5, 6, 8 };
+  private final int[] thirdBranch = { 5, 6, 9 };
+  private final int[] fourthBranch = { 5, 6, 10 };
+  private final int[] fifthBranch = { 5, 7, 11 };
+
+  private int[][] randomKeys(long seed, int amount, int length, int range) {
+    Random random = new Random(seed);
+    int[][] keys = new int[amount][];
+    for (int i = 0; i < amount; i++) {
+      keys[i] = random.ints(length, 0, range).toArray();
+    }
+    return keys;
+  }
+
+  /**
+   * Run the task in all threads at once and wait for them to finish.
+   */
+  private void runConcurrently(int threads, Callable<Void> task) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(() -> {
+          start.await();
+          return task.call();
+        }));
+      }
+      start.countDown();
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void behavesLikeTrie() {
+    ConcurrentTrie trie = new ConcurrentTrie();
+    Trie expected = new Trie();
+    for (int[] key : List.of(firstBranch, secondBranch, thirdBranch, fourthBranch, fifthBranch)) {
+      trie.insert(key);
+      expected.insert(key);
+    }
+    assertEquals(expected.size(), trie.size());
+    int[][] keys = { {}, { 5 }, { 5, 6 }, { 5, 7 }, { 5, 6, 7 } };
+    for (int[] key : keys) {
+      assertEquals(expected.lookup(key).getCount(), trie.lookup(key).getCount());
+      assertEquals(expected.lookup(key).getChildCount(), trie.lookup(key).getChildCount());
+      assertArrayEquals(expected.getProbabilities(expected.lookup(key)),
+          trie.getProbabilities(trie.lookup(key)));
+    }
+    assertNull(trie.lookup(new int[] { 35 }));
+    assertEquals(Constants.NOTE_ARRAY_SIZE, trie.getProbabilities(null).length);
+  }
+
+  @Test
+  void trieCanBeCleared() {
+    ConcurrentTrie trie = new ConcurrentTrie();
+    trie.insert(firstBranch);
+    assertEquals(4, trie.size());
+    trie.clear();
+    assertEquals(1, trie.size());
+  }
+
+  @Test
+  void freezeProducesSameTrieAsTrie() {
+    ConcurrentTrie trie = new ConcurrentTrie();
+    Trie expected = new Trie();
+    for (int[] key : this.randomKeys(99, 3000, 5, 12)) {
+      trie.insert(key);
+      expected.insert(key);
+    }
+    FrozenTrie frozen = trie.freeze();
+    FrozenTrie expectedFrozen = expected.freeze();
+    assertEquals(expectedFrozen.size(), frozen.size());
+    for (int node = 0; node < frozen.size(); node++) {
+      assertEquals(expectedFrozen.getValue(node), frozen.getValue(node));
+      assertEquals(expectedFrozen.getCount(node), frozen.getCount(node));
+      assertEquals(expectedFrozen.getChildCount(node), frozen.getChildCount(node));
+      assertEquals(expectedFrozen.getFirstChild(node), frozen.getFirstChild(node));
+    }
+  }
+
+  @Test
+  void countsAreExactUnderContention() throws Exception {
+    // Few notes and short keys make the threads hit the same nodes all the time
+    int[][] keys = this.randomKeys(7, 2000, 4, 3);
+    int rounds = 20;
+    ConcurrentTrie trie = new ConcurrentTrie();
+    this.runConcurrently(THREADS, () -> {
+      for (int round = 0; round < rounds; round++) {
+        for (int[] key : keys) {
+          trie.insert(key);
+        }
+      }
+      return null;
+    });
+    Trie expected = new Trie();
+    for (int i = 0; i < THREADS * rounds; i++) {
+      for (int[] key : keys) {
+        expected.insert(key);
+      }
+    }
+    assertEquals(expected.size(), trie.size());
+    assertEquals(THREADS * rounds * keys.length, trie.lookup(new int[] {}).getChildCount());
+    for (int[] key : keys) {
+      for (int length = 0; length <= key.length; length++) {
+        int[] prefix = Arrays.copyOf(key, length);
+        ConcurrentTrieNode node = trie.lookup(prefix);
+        assertNotNull(node);
+        assertEquals(expected.lookup(prefix).getCount(), node.getCount());
+        assertEquals(expected.lookup(prefix).getChildCount(), node.getChildCount());
+        assertEquals(expected.lookup(prefix).getNumberOfChildren(), node.getNumberOfChildren());
+      }
+    }
+  }
+
+  @Test
+  void childrenAreCreatedOnceUnderContention() throws Exception {
+    for (int attempt = 0; attempt < 50; attempt++) {
+      ConcurrentTrieNode node = new ConcurrentTrieNode(1);
+      this.runConcurrently(THREADS, () -> {
+        for (int value = 0; value < Constants.NOTE_ARRAY_SIZE; value++) {
+          node.addChild(value);
+        }
+        return null;
+      });
+      assertEquals(Constants.NOTE_ARRAY_SIZE, node.getNumberOfChildren());
+      assertEquals(THREADS * Constants.NOTE_ARRAY_SIZE, node.getChildCount());
+      for (ConcurrentTrieNode child : node.getChildren()) {
+        assertEquals(THREADS, child.getCount());
+      }
+    }
+  }
+
+  @Test
+  void canBeReadWhileWriting() throws Exception {
+    int[][] keys = this.randomKeys(11, 5000, 5, 6);
+    ConcurrentTrie trie = new ConcurrentTrie();
+    int writers = THREADS / 2;
+    CountDownLatch writing = new CountDownLatch(writers);
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < writers; i++) {
+        futures.add(executor.submit(() -> {
+          for (int[] key : keys) {
+            trie.insert(key);
+          }
+          writing.countDown();
+        }));
+      }
+      for (int i = writers; i < THREADS; i++) {
+        futures.add(executor.submit(() -> {
+          Random random = new Random();
+          while (writing.getCount() > 0) {
+            int[] key = keys[random.nextInt(keys.length)];
+            double[] probabilities = trie.getProbabilities(trie.lookup(Arrays.copyOf(key, 2)));
+            double sum = Arrays.stream(probabilities).sum();
+            assertTrue(sum == 0.0 || Math.abs(1.0 - sum) < Constants.EPSILON);
+            FrozenTrie frozen = trie.freeze();
+            int node = frozen.lookup(Arrays.copyOf(key, 1));
+            if (node != FrozenTrie.NOT_FOUND && frozen.getChildCount(node) > 0) {
+              assertTrue(frozen.sample(node, random.nextDouble()) >= 0);
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(writers * keys.length, trie.lookup(new int[] {}).getChildCount());
+  }
+
+}
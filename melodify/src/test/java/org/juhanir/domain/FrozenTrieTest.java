@@ -0,0 +1,360 @@
+package org.juhanir.domain;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.juhanir.Constants;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FrozenTrieTest {
+
+  private Trie trie;
+
+  @BeforeEach
+  void setUp() {
+    this.trie = new Trie();
+    this.trie.insert(new int[] { 5, 6, 7 });
+    this.trie.insert(new int[] { 5, 6, 8 });
+    this.trie.insert(new int[] { 5, 6, 9 });
+    this.trie.insert(new int[] { 5, 6, 10 });
+    this.trie.insert(new int[] { 5, 7, 11 });
+    // {root}
+    // {5}
+    // {6}___________{7}
+    // {7}{8}{9}{10} {11}
+  }
+
+  @Test
+  void hasSameSizeAsTrie() {
+    assertEquals(this.trie.size(), this.trie.freeze().size());
+    assertEquals(1, new Trie().freeze().size());
+  }
+
+  @Test
+  void emptyLookupReturnsRoot() {
+    FrozenTrie frozen = this.trie.freeze();
+    int root = frozen.lookup(new int[] {});
+    assertEquals(FrozenTrie.ROOT, root);
+    assertEquals(Integer.MIN_VALUE, frozen.getValue(root));
+    assertEquals(5, frozen.getChildCount(root));
+    assertEquals(1, frozen.getNumberOfChildren(root));
+  }
+
+  @Test
+  void lookupWithValidKey() {
+    FrozenTrie frozen = this.trie.freeze();
+    int node = frozen.lookup(new int[] { 5, 6, 9 });
+    assertNotEquals(FrozenTrie.NOT_FOUND, node);
+    assertEquals(9, frozen.getValue(node));
+    assertEquals(1, frozen.getCount(node));
+    assertEquals(0, frozen.getNumberOfChildren(node));
+    node = frozen.lookup(new int[] { 5, 6 });
+    assertEquals(6, frozen.getValue(node));
+    assertEquals(4, frozen.getCount(node));
+    assertEquals(4, frozen.getChildCount(node));
+  }
+
+  @Test
+  void lookupWithInvalidKey() {
+    FrozenTrie frozen = this.trie.freeze();
+    assertEquals(FrozenTrie.NOT_FOUND, frozen.lookup(new int[] { 35 }));
+    assertEquals(FrozenTrie.NOT_FOUND, frozen.lookup(new int[] { 5, 6, 7, 8 }));
+    assertEquals(FrozenTrie.NOT_FOUND, frozen.lookup(new int[] { 6, 5 }));
+  }
+
+  @Test
+  void childrenAreStoredTogetherInOrder() {
+    FrozenTrie frozen = this.trie.freeze();
+    int node = frozen.lookup(new int[] { 5, 6 });
+    int first = frozen.getFirstChild(node);
+    int[] expected = { 7, 8, 9, 10 };
+    assertEquals(expected.length, frozen.getNumberOfChildren(node));
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], frozen.getValue(first + i));
+      assertEquals(first + i, frozen.getChild(node, expected[i]));
+    }
+  }
+
+  @Test
+  void resolvesProbabilitiesLikeTrie() {
+    FrozenTrie frozen = this.trie.freeze();
+    int[][] keys = { {}, { 5 }, { 5, 6 }, { 5, 7 }, { 5, 6, 7 }, { 1, 2 } };
+    for (int[] key : keys) {
+      assertArrayEquals(this.trie.getProbabilities(this.trie.lookup(key)),
+          frozen.getProbabilities(frozen.lookup(key)));
+    }
+    assertEquals(Constants.NOTE_ARRAY_SIZE,
+        frozen.getProbabilities(FrozenTrie.NOT_FOUND).length);
+  }
+
+  @Test
+  void producesMostCommonSequence() {
+    Trie trie = new Trie();
+    trie.insert(new int[] { 5, 6, 7, 7, 8, 8, 9 });
+    trie.insert(new int[] { 5, 8, 7, 8, 8, 8, 9 });
+    trie.insert(new int[] { 5, 6, 7, 7, 8, 8, 10 });
+    trie.insert(new int[] { 5, 9, 8, 8, 8, 8, 9 });
+    trie.insert(new int[] { 5, 6, 7, 7, 8, 8, 9 });
+    trie.insert(new int[] { 5, 5, 7, 7, 8, 9, 10 });
+    trie.insert(new int[] { 5, 5, 7, 7, 8, 8, 9 });
+    trie.insert(new int[] { 5, 5, 7, 7, 10, 8, 9 });
+    trie.insert(new int[] { 5, 5, 7, 7, 8, 8, 9 });
+    FrozenTrie frozen = trie.freeze();
+    for (int length = 0; length < 9; length++) {
+      assertArrayEquals(trie.getMostCommonSequenceStartingWith(5, length),
+          frozen.getMostCommonSequenceStartingWith(5, length));
+    }
+  }
+
+  @Test
+  void mostCommonSequenceWithUnknownStartingNote() {
+    FrozenTrie frozen = this.trie.freeze();
+    assertArrayEquals(new int[] { 30 }, frozen.getMostCommonSequenceStartingWith(30, 3));
+  }
+
+  @Test
+  void matchesTrieWithRandomInput() {
+    Random random = new Random(1234);
+    Trie trie = new Trie();
+    int[][] keys = new int[500][];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = random.ints(4, 0, Constants.NOTE_ARRAY_SIZE).toArray();
+      trie.insert(keys[i]);
+    }
+    FrozenTrie frozen = trie.freeze();
+    assertEquals(trie.size(), frozen.size());
+    for (int[] key : keys) {
+      for (int length = 0; length <= key.length; length++) {
+        int[] prefix = Arrays.copyOf(key, length);
+        TrieNode expected = trie.lookup(prefix);
+        int node = frozen.lookup(prefix);
+        assertEquals(expected.getCount(), frozen.getCount(node));
+        assertEquals(expected.getChildCount(), frozen.getChildCount(node));
+        assertEquals(expected.getNumberOfChildren(), frozen.getNumberOfChildren(node));
+      }
+    }
+  }
+
+  @Test
+  void sampleWithoutChildren() {
+    FrozenTrie frozen = this.trie.freeze();
+    assertEquals(-1, frozen.sample(FrozenTrie.NOT_FOUND, 0.5));
+    assertEquals(-1, frozen.sample(frozen.lookup(new int[] { 5, 6, 7 }), 0.5));
+    assertEquals(-1, new Trie().freeze().sample(FrozenTrie.ROOT, 0.5));
+  }
+
+  @Test
+  void sampleWithOneChild() {
+    FrozenTrie frozen = this.trie.freeze();
+    int node = frozen.lookup(new int[] { 5, 7 });
+    for (double uniform : new double[] { 0.0, 0.25, 0.5, 0.999999, Math.nextDown(1.0) }) {
+      assertEquals(11, frozen.sample(node, uniform));
+    }
+  }
+
+  @Test
+  void sampleFollowsProbabilities() {
+    Trie trie = new Trie();
+    int[] counts = { 1, 7, 2, 0, 13, 1, 6 };
+    for (int i = 0; i < counts.length; i++) {
+      for (int j = 0; j < counts[i]; j++) {
+        trie.insert(new int[] { 3, i * 5 });
+      }
+    }
+    FrozenTrie frozen = trie.freeze();
+    int node = frozen.lookup(new int[] { 3 });
+    double[] probabilities = frozen.getProbabilities(node);
+    // evenly spaced random numbers should be split exactly by the probabilities
+    int rounds = 30000;
+    int[] selections = new int[Constants.NOTE_ARRAY_SIZE];
+    for (int i = 0; i < rounds; i++) {
+      selections[frozen.sample(node, (i + 0.5) / rounds)]++;
+    }
+    for (int i = 0; i < Constants.NOTE_ARRAY_SIZE; i++) {
+      assertEquals(probabilities[i], selections[i] / (double) rounds, 1e-3);
+    }
+  }
+
+  @Test
+  void sampleFollowsProbabilitiesWithRandomInput() {
+    Random random = new Random(4321);
+    Trie trie = new Trie();
+    for (int i = 0; i < 5000; i++) {
+      trie.insert(new int[] { 1, (int) Math.abs(random.nextGaussian() * 20) % 72 });
+    }
+    FrozenTrie frozen = trie.freeze();
+    int node = frozen.lookup(new int[] { 1 });
+    double[] probabilities = frozen.getProbabilities(node);
+    int rounds = 100000;
+    int[] selections = new int[Constants.NOTE_ARRAY_SIZE];
+    for (int i = 0; i < rounds; i++) {
+      selections[frozen.sample(node, (i + 0.5) / rounds)]++;
+    }
+    for (int i = 0; i < Constants.NOTE_ARRAY_SIZE; i++) {
+      assertEquals(probabilities[i], selections[i] / (double) rounds, 1e-3);
+    }
+  }
+
+  @Test
+  void suffixLinksPointToSequenceWithoutFirstNote() {
+    FrozenTrie frozen = this.trie.freeze();
+    assertEquals(FrozenTrie.NOT_FOUND, frozen.getSuffixLink(FrozenTrie.ROOT));
+    assertEquals(FrozenTrie.ROOT, frozen.getSuffixLink(frozen.lookup(new int[] { 5 })));
+    // only the first notes of the sequences were inserted
+    assertEquals(FrozenTrie.NOT_FOUND, frozen.getSuffixLink(frozen.lookup(new int[] { 5, 6 })));
+    assertEquals(FrozenTrie.NOT_FOUND,
+        frozen.getSuffixLink(frozen.lookup(new int[] { 5, 6, 7 })));
+    int[] melody = { 5, 6, 7, 5, 6, 8, 5, 7, 11, 6, 7 };
+    this.trie.insertAllWindows(melody, 2);
+    frozen = this.trie.freeze();
+    for (int length = 1; length <= 3; length++) {
+      for (int i = 0; i + length <= melody.length; i++) {
+        int[] sequence = Arrays.copyOfRange(melody, i, i + length);
+        int suffix = frozen.lookup(Arrays.copyOfRange(sequence, 1, length));
+        assertEquals(suffix, frozen.getSuffixLink(frozen.lookup(sequence)));
+      }
+    }
+  }
+
+  @Test
+  void sampleChildSelectsNodeOfSampledNote() {
+    FrozenTrie frozen = this.trie.freeze();
+    int node = frozen.lookup(new int[] { 5, 6 });
+    for (double uniform = 0; uniform < 1; uniform += 0.05) {
+      int child = frozen.sampleChild(node, uniform);
+      assertEquals(frozen.sample(node, uniform), frozen.getValue(child));
+      assertEquals(child, frozen.getChild(node, frozen.getValue(child)));
+    }
+    assertEquals(FrozenTrie.NOT_FOUND, frozen.sampleChild(frozen.lookup(new int[] { 5, 6, 7 }),
+        0.5));
+    assertEquals(FrozenTrie.NOT_FOUND, frozen.sampleChild(FrozenTrie.NOT_FOUND, 0.5));
+  }
+
+  @Test
+  void reachCountsNotesBeforeDeadEnd() {
+    Trie windows = new Trie();
+    windows.insertAllWindows(new int[] { 1, 2, 3, 1, 2, 4, 5 }, 1);
+    FrozenTrie frozen = windows.freeze();
+    assertEquals(0, frozen.getReach(frozen.lookup(new int[] { 5 })));
+    assertEquals(1, frozen.getReach(frozen.lookup(new int[] { 4 })));
+    for (int note : new int[] { 1, 2, 3 }) {
+      assertEquals(FrozenTrie.DEAD_END_HORIZON,
+          frozen.getReach(frozen.lookup(new int[] { note })));
+    }
+    assertEquals(FrozenTrie.DEAD_END_HORIZON, frozen.getReach(FrozenTrie.ROOT));
+    assertEquals(0, frozen.getReach(frozen.lookup(new int[] { 2, 4 })));
+    assertEquals(0, frozen.getReach(FrozenTrie.NOT_FOUND));
+  }
+
+  @Test
+  void reachStopsAtHorizon() {
+    Trie windows = new Trie();
+    int[] scale = IntStream.range(0, Constants.NOTE_ARRAY_SIZE).toArray();
+    windows.insertAllWindows(scale, 2);
+    FrozenTrie frozen = windows.freeze();
+    int last = scale.length - 1;
+    assertEquals(FrozenTrie.DEAD_END_HORIZON, frozen.getReach(frozen.lookup(new int[] { 0, 1 })));
+    assertEquals(1, frozen.getReach(frozen.lookup(new int[] { last - 2, last - 1 })));
+    assertEquals(0, frozen.getReach(frozen.lookup(new int[] { last - 1, last })));
+  }
+
+  @Test
+  void reachMatchesLongestWalkWithRandomInput() {
+    Random random = new Random(11);
+    for (int round = 0; round < 20; round++) {
+      Trie windows = new Trie();
+      int degree = 1 + random.nextInt(3);
+      for (int melody = 0; melody < 3; melody++) {
+        windows.insertAllWindows(random.ints(5 + random.nextInt(30), 0, 6).toArray(), degree);
+      }
+      FrozenTrie frozen = windows.freeze();
+      // walks of at most steps notes, one step longer at a time
+      int[] longest = new int[frozen.size()];
+      for (int steps = 1; steps <= FrozenTrie.DEAD_END_HORIZON; steps++) {
+        int[] next = new int[frozen.size()];
+        for (int node = 0; node < frozen.size(); node++) {
+          for (int i = 0; i < frozen.getNumberOfChildren(node); i++) {
+            int link = frozen.getSuffixLink(frozen.getFirstChild(node) + i);
+            int after = link == FrozenTrie.NOT_FOUND ? 0 : longest[link];
+            next[node] = Math.max(next[node], 1 + after);
+          }
+        }
+        longest = next;
+      }
+      for (int node = 0; node < frozen.size(); node++) {
+        assertEquals(longest[node], frozen.getReach(node));
+      }
+    }
+  }
+
+  @Test
+  void sampleLiveChildLeavesOutChildLeadingToDeadEnd() {
+    Trie windows = new Trie();
+    windows.insertAllWindows(new int[] { 2, 3, 2, 3, 2, 4, 2, 9 }, 1);
+    FrozenTrie frozen = windows.freeze();
+    int node = frozen.lookup(new int[] { 2 });
+    int[] selected = new int[Constants.NOTE_ARRAY_SIZE];
+    for (int i = 0; i < 3000; i++) {
+      selected[frozen.getValue(frozen.sampleLiveChild(node, 8, i / 3000.0))]++;
+    }
+    assertEquals(0, selected[9]);
+    assertEquals(2000, selected[3]);
+    assertEquals(1000, selected[4]);
+    assertEquals(FrozenTrie.NOT_FOUND,
+        frozen.sampleLiveChild(frozen.lookup(new int[] { 9 }), 8, 0.5));
+    assertEquals(FrozenTrie.NOT_FOUND, frozen.sampleLiveChild(FrozenTrie.NOT_FOUND, 8, 0.5));
+    assertThrows(IllegalArgumentException.class,
+        () -> frozen.sampleLiveChild(node, FrozenTrie.DEAD_END_HORIZON + 1, 0.5));
+    assertThrows(IllegalArgumentException.class, () -> frozen.sampleLiveChild(node, -1, 0.5));
+  }
+
+  @Test
+  void sampleLiveChildKeepsChildrenThatReachTheHorizon() {
+    Trie windows = new Trie();
+    windows.insertAllWindows(new int[] { 1, 2, 3, 5 }, 1);
+    windows.insertAllWindows(new int[] { 1, 2, 4, 6, 7 }, 1);
+    FrozenTrie frozen = windows.freeze();
+    int node = frozen.lookup(new int[] { 2 });
+    // after 3 one more note can be generated, after 4 two more
+    assertEquals(3, frozen.getReach(node));
+    for (double uniform = 0; uniform < 1; uniform += 0.05) {
+      assertEquals(frozen.sampleChild(node, uniform), frozen.sampleLiveChild(node, 1, uniform));
+      assertEquals(4, frozen.getValue(frozen.sampleLiveChild(node, 2, uniform)));
+      // no child reaches the horizon, so the one reaching furthest is kept
+      assertEquals(4, frozen.getValue(frozen.sampleLiveChild(node, 10, uniform)));
+    }
+  }
+
+  @Test
+  void sampleLiveChildIsSampleChildWithoutDeadEnds() {
+    Trie windows = new Trie();
+    windows.insertAllWindows(new int[] { 1, 2, 3, 1, 3, 2, 2, 1 }, 1);
+    FrozenTrie frozen = windows.freeze();
+    for (int note = 1; note <= 3; note++) {
+      int node = frozen.lookup(new int[] { note });
+      for (double uniform = 0; uniform < 1; uniform += 0.01) {
+        assertEquals(frozen.sampleChild(node, uniform),
+            frozen.sampleLiveChild(node, FrozenTrie.DEAD_END_HORIZON, uniform));
+        assertEquals(frozen.sampleChild(node, uniform), frozen.sampleLiveChild(node, 0, uniform));
+      }
+    }
+  }
+
+  @Test
+  void maxDegreeIsLengthOfLongestSequenceMinusOne() {
+    assertEquals(2, this.trie.freeze().getMaxDegree());
+    this.trie.insert(new int[] { 1, 2, 3, 4, 5 });
+    assertEquals(4, this.trie.freeze().getMaxDegree());
+    assertEquals(0, new Trie().freeze().getMaxDegree());
+    Trie single = new Trie();
+    single.insert(new int[] { 1 });
+    assertEquals(0, single.freeze().getMaxDegree());
+  }
+
+}
@@ -0,0 +1,170 @@
+package org.juhanir.domain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MelodyCursorTest {
+
+  private final int[] melody = { 2, 4, 6, 2, 4, 7, 2, 4, 6, 9, 6, 4, 2, 11 };
+  private FrozenTrie model;
+
+  @BeforeEach
+  void setUp() {
+    Trie trie = new Trie();
+    trie.insertAllWindows(this.melody, 4);
+    this.model = trie.freeze();
+  }
+
+  @Test
+  void selectsSameNotesAsLookupOfEveryContext() {
+    for (int degree = 1; degree <= 4; degree++) {
+      int[] generated = Arrays.copyOf(this.melody, 200);
+      MelodyCursor cursor = new MelodyCursor(this.model, Arrays.copyOf(this.melody, degree));
+      Random cursorRandom = new Random(degree);
+      Random lookupRandom = new Random(degree);
+      for (int i = degree; i < generated.length; i++) {
+        int[] context = Arrays.copyOfRange(generated, i - degree, i);
+        int expected = this.model.sample(this.model.lookup(context), lookupRandom.nextDouble());
+        assertEquals(expected != -1, cursor.hasNext());
+        assertEquals(expected, cursor.next(cursorRandom.nextDouble()));
+        if (expected == -1) {
+          break;
+        }
+        generated[i] = expected;
+        assertEquals(this.model.lookup(Arrays.copyOfRange(generated, i - degree + 1, i + 1)),
+            cursor.getNode());
+      }
+    }
+  }
+
+  @Test
+  void stopsAtEndOfTrainingData() {
+    MelodyCursor cursor = new MelodyCursor(this.model, new int[] { 4, 2, 11 });
+    assertFalse(cursor.hasNext());
+    assertEquals(-1, cursor.next(0.5));
+    assertEquals(FrozenTrie.NOT_FOUND, cursor.getNode());
+    assertEquals(-1, cursor.next(0.5));
+  }
+
+  @Test
+  void stopsWithUnknownContext() {
+    MelodyCursor cursor = new MelodyCursor(this.model, new int[] { 11, 11 });
+    assertEquals(FrozenTrie.NOT_FOUND, cursor.getNode());
+    assertFalse(cursor.hasNext());
+    assertEquals(-1, cursor.next(0.5));
+  }
+
+  @Test
+  void backsOffToShorterContextAtEndOfTrainingData() {
+    MelodyCursor cursor = new MelodyCursor(this.model, new int[] { 4, 2, 11 }, true);
+    assertTrue(cursor.hasNext());
+    // neither 2, 11 nor 11 is followed by anything, so the context drops to the root
+    int note = cursor.next(0.5);
+    assertTrue(Arrays.stream(this.melody).anyMatch(value -> value == note));
+    assertEquals(1, cursor.getBackoffs());
+    assertEquals(1, cursor.getDepth());
+    assertEquals(this.model.lookup(new int[] { note }), cursor.getNode());
+  }
+
+  @Test
+  void contextGrowsBackToDegreeAfterBackoff() {
+    MelodyCursor cursor = new MelodyCursor(this.model, new int[] { 4, 2, 11 }, true);
+    Random random = new Random(3);
+    int[] generated = new int[500];
+    for (int i = 0; i < generated.length; i++) {
+      generated[i] = cursor.next(random.nextDouble());
+      assertTrue(generated[i] >= 0);
+      assertTrue(cursor.getDepth() <= 3);
+      int depth = Math.min(cursor.getDepth(), i + 1);
+      assertEquals(this.model.lookup(Arrays.copyOfRange(generated, i + 1 - depth, i + 1)),
+          cursor.getNode());
+    }
+    assertTrue(cursor.getBackoffs() > 1);
+  }
+
+  @Test
+  void backoffGivesSameNotesUntilDeadEnd() {
+    for (long seed = 0; seed < 20; seed++) {
+      MelodyCursor stopping = new MelodyCursor(this.model, new int[] { 2, 4 });
+      MelodyCursor backingOff = new MelodyCursor(this.model, new int[] { 2, 4 }, true);
+      Random random = new Random(seed);
+      while (stopping.hasNext()) {
+        double uniform = random.nextDouble();
+        assertEquals(stopping.next(uniform), backingOff.next(uniform));
+      }
+      assertEquals(0, backingOff.getBackoffs());
+    }
+  }
+
+  @Test
+  void unknownContextStartsFromLongestKnownSuffix() {
+    MelodyCursor cursor = new MelodyCursor(this.model, new int[] { 11, 11, 9 }, true);
+    assertEquals(this.model.lookup(new int[] { 9 }), cursor.getNode());
+    assertEquals(1, cursor.getDepth());
+    assertEquals(6, cursor.next(0.5));
+  }
+
+  @Test
+  void backoffStopsOnlyWithEmptyModel() {
+    MelodyCursor cursor = new MelodyCursor(new Trie().freeze(), new int[] { 1, 2 }, true);
+    assertFalse(cursor.hasNext());
+    assertEquals(-1, cursor.next(0.5));
+  }
+
+  @Test
+  void avoidingDeadEndsGeneratesAtLeastReachOfContextUpToHorizon() {
+    for (int horizon : new int[] { 1, 3, FrozenTrie.DEAD_END_HORIZON }) {
+      for (int degree = 1; degree <= 3; degree++) {
+        for (int start = 0; start + degree <= this.melody.length; start++) {
+          int[] context = Arrays.copyOfRange(this.melody, start, start + degree);
+          int reach = this.model.getReach(this.model.lookup(context));
+          for (long seed = 0; seed < 10; seed++) {
+            MelodyCursor cursor = new MelodyCursor(this.model, context, false, horizon);
+            Random random = new Random(seed);
+            int generated = 0;
+            while (generated < 100 && cursor.next(random.nextDouble()) != -1) {
+              generated++;
+            }
+            assertTrue(generated >= Math.min(reach, horizon));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  void deadEndHorizonMustFitTheReach() {
+    assertThrows(IllegalArgumentException.class, () -> new MelodyCursor(this.model,
+        new int[] { 2 }, false, FrozenTrie.DEAD_END_HORIZON + 1));
+    assertThrows(IllegalArgumentException.class,
+        () -> new MelodyCursor(this.model, new int[] { 2 }, false, -1));
+  }
+
+  @Test
+  void avoidingDeadEndsNeverEntersEndOfTrainingData() {
+    MelodyCursor cursor = new MelodyCursor(this.model, new int[] { 2 }, false, 1);
+    Random random = new Random(4);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(cursor.next(random.nextDouble()) != 11);
+    }
+    assertEquals(0, cursor.getBackoffs());
+  }
+
+  @Test
+  void followsOnlyContinuation() {
+    MelodyCursor cursor = new MelodyCursor(this.model, new int[] { 6, 9 });
+    assertTrue(cursor.hasNext());
+    assertEquals(2, cursor.getDegree());
+    assertEquals(6, cursor.next(0.99));
+    assertEquals(4, cursor.next(0.01));
+    assertEquals(this.model.lookup(new int[] { 6, 4 }), cursor.getNode());
+  }
+
+}
@@ -0,0 +1,112 @@
+package org.juhanir.domain;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ModelSnapshotTest {
+
+  private Trie trie;
+
+  @BeforeEach
+  void setUp() {
+    this.trie = new Trie();
+    Random random = new Random(3);
+    for (int i = 0; i < 3000; i++) {
+      this.trie.insert(random.ints(4, 20, 40).toArray());
+    }
+  }
+
+  @Test
+  void savedSnapshotCanBeLoaded(@TempDir Path folder) throws IOException {
+    Path path = folder.resolve("C#m-3.model");
+    FrozenTrie model = this.trie.freeze();
+    new ModelSnapshot("C#m", 3, 123456789L, model).save(path);
+    ModelSnapshot loaded = ModelSnapshot.load(path);
+    assertEquals("C#m", loaded.getKey());
+    assertEquals(3, loaded.getDegree());
+    assertEquals(123456789L, loaded.getCorpusFingerprint());
+    assertTrue(loaded.matches("C#m", 3, 123456789L));
+    assertFalse(loaded.matches("C#m", 4, 123456789L));
+    assertFalse(loaded.matches("C#m", 3, 1L));
+    assertFalse(loaded.matches("Am", 3, 123456789L));
+    FrozenTrie loadedModel = loaded.getModel();
+    assertEquals(model.size(), loadedModel.size());
+    for (int node = 0; node < model.size(); node++) {
+      assertEquals(model.getValue(node), loadedModel.getValue(node));
+      assertEquals(model.getCount(node), loadedModel.getCount(node));
+      assertEquals(model.getChildCount(node), loadedModel.getChildCount(node));
+      assertEquals(model.getFirstChild(node), loadedModel.getFirstChild(node));
+      assertEquals(model.getNumberOfChildren(node), loadedModel.getNumberOfChildren(node));
+      assertEquals(model.getSuffixLink(node), loadedModel.getSuffixLink(node));
+      assertEquals(model.getReach(node), loadedModel.getReach(node));
+    }
+  }
+
+  @Test
+  void loadedSnapshotSamplesLikeOriginal(@TempDir Path folder) throws IOException {
+    Path path = folder.resolve("model");
+    FrozenTrie model = this.trie.freeze();
+    new ModelSnapshot("G", 3, 0L, model).save(path);
+    FrozenTrie loaded = ModelSnapshot.load(path).getModel();
+    Random random = new Random(5);
+    for (int i = 0; i < 1000; i++) {
+      int[] key = random.ints(3, 20, 40).toArray();
+      double uniform = random.nextDouble();
+      assertEquals(model.sample(model.lookup(key), uniform),
+          loaded.sample(loaded.lookup(key), uniform));
+      assertArrayEquals(model.getProbabilities(model.lookup(key)),
+          loaded.getProbabilities(loaded.lookup(key)));
+    }
+  }
+
+  @Test
+  void emptyModelCanBeSaved(@TempDir Path folder) throws IOException {
+    Path path = folder.resolve("model");
+    new ModelSnapshot("D", 1, 0L, new Trie().freeze()).save(path);
+    FrozenTrie loaded = ModelSnapshot.load(path).getModel();
+    assertEquals(1, loaded.size());
+    assertEquals(0, loaded.getChildCount(FrozenTrie.ROOT));
+  }
+
+  @Test
+  void saveReplacesExistingSnapshot(@TempDir Path folder) throws IOException {
+    Path path = folder.resolve("model");
+    new ModelSnapshot("D", 1, 0L, this.trie.freeze()).save(path);
+    new ModelSnapshot("D", 2, 0L, new Trie().freeze()).save(path);
+    ModelSnapshot loaded = ModelSnapshot.load(path);
+    assertEquals(2, loaded.getDegree());
+    assertEquals(1, loaded.getModel().size());
+    assertEquals(1, Files.list(folder).count());
+  }
+
+  @Test
+  void loadThrowsWithInvalidFile(@TempDir Path folder) throws IOException {
+    Path path = folder.resolve("model");
+    Files.writeString(path, "<score-partwise>not a model</score-partwise>");
+    assertThrows(IOException.class, () -> ModelSnapshot.load(path));
+    Files.write(path, new byte[] { 1, 2, 3 });
+    assertThrows(IOException.class, () -> ModelSnapshot.load(path));
+  }
+
+  @Test
+  void loadThrowsWithTruncatedFile(@TempDir Path folder) throws IOException {
+    Path path = folder.resolve("model");
+    new ModelSnapshot("D", 1, 0L, this.trie.freeze()).save(path);
+    byte[] content = Files.readAllBytes(path);
+    Files.write(path, Arrays.copyOf(content, content.length - 1));
+    assertThrows(IOException.class, () -> ModelSnapshot.load(path));
+  }
+
+}
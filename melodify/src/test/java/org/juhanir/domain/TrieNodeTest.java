@@ -5,12 +5,15 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
+import org.juhanir.Constants;
 import org.junit.jupiter.api.Test;
 
 class TrieNodeTest {
@@ -52,6 +55,15 @@ class TrieNodeTest {
     assertEquals(3, kids, "Should have three children");
   }
 
+  @Test
+  void addChildReturnsChild() {
+    TrieNode node = new TrieNode(5);
+    TrieNode child = node.addChild(1);
+    assertSame(node.getChild(1), child);
+    assertSame(child, node.addChild(1));
+    assertEquals(2, child.getCount());
+  }
+
   @Test
   void doesNotAddDuplicates() {
     int testValue = 5;
@@ -144,4 +156,81 @@ class TrieNodeTest {
     node.incrementCount();
     assertEquals(3, node.getCount());
   }
+
+  @Test
+  void childrenAreOrderedByValue() {
+    TrieNode node = new TrieNode(5);
+    int[] children = {9, 2, 40, 0, 13, 2};
+    for (int child : children) {
+      node.addChild(child);
+    }
+    assertEquals(5, node.getNumberOfChildren());
+    int[] expected = {0, 2, 9, 13, 40};
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], node.getChildAt(i).getValue());
+    }
+    assertEquals(2, node.getChild(2).getCount());
+  }
+
+  @Test
+  void getChildAtThrowsWhenOutOfBounds() {
+    TrieNode node = new TrieNode(5);
+    node.addChild(1);
+    assertThrows(IndexOutOfBoundsException.class, () -> node.getChildAt(1));
+    assertThrows(IndexOutOfBoundsException.class, () -> node.getChildAt(-1));
+  }
+
+  @Test
+  void addChildThrowsWithInvalidValue() {
+    TrieNode node = new TrieNode(5);
+    assertThrows(IndexOutOfBoundsException.class,
+        () -> node.addChild(Constants.NOTE_ARRAY_SIZE));
+    assertThrows(IndexOutOfBoundsException.class, () -> node.addChild(-1));
+    assertFalse(node.hasChildren());
+  }
+
+  @Test
+  void getChildWithInvalidValueIsNullForSparseAndDenseNodes() {
+    TrieNode node = new TrieNode(5);
+    node.addChild(3);
+    assertNull(node.getChild(-1));
+    assertNull(node.getChild(Constants.NOTE_ARRAY_SIZE));
+    for (int i = 0; i < Constants.NOTE_ARRAY_SIZE; i++) {
+      node.addChild(i);
+    }
+    assertNull(node.getChild(-1));
+    assertNull(node.getChild(Constants.NOTE_ARRAY_SIZE));
+    assertFalse(node.hasChild(Constants.NOTE_ARRAY_SIZE));
+  }
+
+  @Test
+  void canAddChildForEveryNote() {
+    TrieNode node = new TrieNode(5);
+    // insert in reverse order to exercise shifting in the compact array
+    for (int i = Constants.NOTE_ARRAY_SIZE - 1; i >= 0; i--) {
+      node.addChild(i);
+      node.addChild(i);
+    }
+    assertEquals(Constants.NOTE_ARRAY_SIZE, node.getNumberOfChildren());
+    assertEquals(Constants.NOTE_ARRAY_SIZE * 2, node.getChildCount());
+    TrieNode[] kids = node.getChildren();
+    for (int i = 0; i < Constants.NOTE_ARRAY_SIZE; i++) {
+      assertEquals(i, node.getChildAt(i).getValue());
+      assertEquals(i, node.getChild(i).getValue());
+      assertEquals(i, kids[i].getValue());
+      assertEquals(2, kids[i].getCount());
+    }
+  }
+
+  @Test
+  void childrenArrayIsIndexedByValue() {
+    TrieNode node = new TrieNode(5);
+    node.addChild(70);
+    node.addChild(3);
+    TrieNode[] kids = node.getChildren();
+    assertEquals(Constants.NOTE_ARRAY_SIZE, kids.length);
+    assertEquals(70, kids[70].getValue());
+    assertEquals(3, kids[3].getValue());
+    assertEquals(2, Arrays.stream(kids).filter(Objects::nonNull).count());
+  }
 }
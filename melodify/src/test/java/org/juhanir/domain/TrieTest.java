@@ -4,13 +4,16 @@ import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.when;
 
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.Random;
 import org.juhanir.Constants;
 import org.junit.jupiter.api.Test;
 
@@ -305,4 +308,111 @@ class TrieTest {
     assertArrayEquals(new int[] { 5, 6, 7, 7, 8, 8, 9 }, seq);
   }
 
+  @Test
+  void freezeIsReusedUntilTrieChanges() {
+    Trie trie = new Trie();
+    trie.insert(firstBranch);
+    FrozenTrie frozen = trie.freeze();
+    assertSame(frozen, trie.freeze());
+    trie.insert(secondBranch);
+    FrozenTrie refrozen = trie.freeze();
+    assertNotSame(frozen, refrozen);
+    assertEquals(4, frozen.size());
+    assertEquals(5, refrozen.size());
+    trie.clear();
+    assertEquals(1, trie.freeze().size());
+  }
+
+  private void assertSameFrozenTrie(FrozenTrie expected, FrozenTrie actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int node = 0; node < expected.size(); node++) {
+      assertEquals(expected.getValue(node), actual.getValue(node));
+      assertEquals(expected.getCount(node), actual.getCount(node));
+      assertEquals(expected.getChildCount(node), actual.getChildCount(node));
+      assertEquals(expected.getFirstChild(node), actual.getFirstChild(node));
+    }
+  }
+
+  @Test
+  void mergeProducesSameTrieAsInsertingAll() {
+    Random random = new Random(42);
+    Trie first = new Trie();
+    Trie second = new Trie();
+    Trie expected = new Trie();
+    for (int i = 0; i < 2000; i++) {
+      int[] key = random.ints(4, 0, i % 2 == 0 ? 10 : 30).toArray();
+      (i % 3 == 0 ? first : second).insert(key);
+      expected.insert(key);
+    }
+    first.merge(second);
+    assertSameFrozenTrie(expected.freeze(), first.freeze());
+  }
+
+  @Test
+  void mergeDoesNotModifyOtherTrie() {
+    Trie trie = new Trie();
+    trie.insert(firstBranch);
+    Trie other = new Trie();
+    other.insert(secondBranch);
+    other.insert(fifthBranch);
+    trie.merge(other);
+    trie.insert(secondBranch);
+    assertEquals(7, trie.size());
+    assertEquals(2, trie.lookup(secondBranch).getCount());
+    assertEquals(6, other.size());
+    assertEquals(1, other.lookup(secondBranch).getCount());
+    assertEquals(2, other.lookup(new int[] {}).getChildCount());
+  }
+
+  @Test
+  void mergeWithEmptyTrie() {
+    Trie trie = new Trie();
+    trie.insert(firstBranch);
+    FrozenTrie frozen = trie.freeze();
+    trie.merge(new Trie());
+    assertSameFrozenTrie(frozen, trie.freeze());
+    Trie empty = new Trie();
+    empty.merge(trie);
+    assertSameFrozenTrie(frozen, empty.freeze());
+  }
+
+  @Test
+  void mergeInvalidatesFrozenTrie() {
+    Trie trie = new Trie();
+    trie.insert(firstBranch);
+    FrozenTrie frozen = trie.freeze();
+    Trie other = new Trie();
+    other.insert(secondBranch);
+    trie.merge(other);
+    assertNotSame(frozen, trie.freeze());
+    assertEquals(5, trie.freeze().size());
+  }
+
+  @Test
+  void insertAllWindowsInsertsSequenceFromEveryNote() {
+    Random random = new Random(8);
+    for (int degree = 0; degree < 6; degree++) {
+      Trie trie = new Trie();
+      Trie expected = new Trie();
+      for (int length : new int[] { 0, 1, 3, 20, 200 }) {
+        int[] melody = random.ints(length, 0, 12).toArray();
+        trie.insertAllWindows(melody, degree);
+        for (int i = 0; i < melody.length; i++) {
+          expected.insert(Arrays.copyOfRange(melody, i, Math.min(i + degree + 1, melody.length)));
+        }
+      }
+      assertSameFrozenTrie(expected.freeze(), trie.freeze());
+    }
+  }
+
+  @Test
+  void insertAllWindowsInvalidatesFrozenTrie() {
+    Trie trie = new Trie();
+    FrozenTrie frozen = trie.freeze();
+    trie.insertAllWindows(new int[] { 1, 2, 3 }, 1);
+    assertNotSame(frozen, trie.freeze());
+    assertEquals(3, trie.lookup(new int[] {}).getChildCount());
+    assertEquals(6, trie.size());
+  }
+
 }
@@ -14,7 +14,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
 import org.juhanir.Constants;
+import org.juhanir.domain.FrozenTrie;
 import org.juhanir.domain.Trie;
 import org.juhanir.utils.FileIo;
 import org.juhanir.utils.ScoreParser;
@@ -250,6 +255,57 @@ public class GeneratorServiceTest {
         res[1].matches("C\\(quarter\\)-degree2-[0-9]{2}-[0-9]{2}\\.[0-9]{2}\\.[0-9]{2}\\.[0-9]{2}\\.[0-9]{3}\\.MID"));
   }
 
+  @Test
+  void selectsMostLikelyMelodyOfRequestedLength() {
+    Trie windows = new Trie();
+    windows.insertAllWindows(new int[] { 1, 2, 1, 2, 1, 3, 1, 2 }, 1);
+    GeneratorService generator = new GeneratorService(windows, new Random());
+    int[] shorter = { 1, 2 };
+    int[] unlikely = { 1, 3, 1, 3 };
+    int[] backedOff = { 1, 2, 2, 1 };
+    int[] likely = { 1, 2, 1, 2 };
+    assertArrayEquals(likely,
+        generator.selectMelody(List.of(shorter, unlikely, backedOff, likely), 4, 1));
+    // a note that does not follow its context counts more than likelihood
+    assertArrayEquals(unlikely,
+        generator.selectMelody(List.of(shorter, backedOff, unlikely), 4, 1));
+    assertArrayEquals(backedOff, generator.selectMelody(List.of(shorter, backedOff), 4, 1));
+    assertArrayEquals(shorter, generator.selectMelody(List.of(new int[] { 1 }, shorter), 4, 1));
+    assertEquals(0, generator.selectMelody(List.of(), 4, 1).length);
+  }
+
+  @Test
+  void streamStartsWithPrefixAndEndsAtDeadEnd() {
+    GeneratorService generator = new GeneratorService(this.trie, new Random());
+    assertArrayEquals(new int[] { 5, 7, 11 }, generator.streamNotes(new int[] { 5, 7 }).toArray());
+    assertArrayEquals(new int[] { 6, 5 }, generator.streamNotes(new int[] { 6, 5 }).toArray());
+  }
+
+  @Test
+  void streamIsUnboundedUntilConsumerStops() {
+    Trie testTrie = new Trie();
+    testTrie.insertAllWindows(new int[] { 3, 2, 4, 2, 3, 2, 4, 2, 3 }, 2);
+    GeneratorService generator = new GeneratorService(testTrie, new Random(7));
+    int[] prefix = { 3, 2 };
+    assertEquals(100_000, generator.streamNotes(prefix).limit(100_000).count());
+    int[] untilRepeat = generator.streamNotes(prefix).skip(2).takeWhile(note -> note != 3)
+        .toArray();
+    assertTrue(Arrays.stream(untilRepeat).allMatch(note -> note == 2 || note == 4));
+  }
+
+  @Test
+  void streamGivesSameNotesAsPredictSequence() {
+    Trie testTrie = new Trie();
+    testTrie.insertAllWindows(new int[] { 3, 2, 4, 2, 3, 2, 4, 2, 3, 5, 2, 4, 3 }, 3);
+    int[] prefix = { 3, 2, 4 };
+    for (long seed = 0; seed < 20; seed++) {
+      int[] melody = new GeneratorService(testTrie, new Random(seed)).predictSequence(prefix, 50);
+      int[] streamed = new GeneratorService(testTrie, new Random(seed)).streamNotes(prefix)
+          .limit(melody.length).toArray();
+      assertArrayEquals(melody, streamed);
+    }
+  }
+
   @Test
   void predictSequenceContinuesToMaxLength() {
     Trie testTrie = new Trie();
@@ -435,6 +491,113 @@ public class GeneratorServiceTest {
       assertArrayEquals(prefix, generation);
     }
 
+    @Test
+    void predictSequenceWithBackoffReachesMinimumLength() {
+      Trie trie = new Trie();
+      TrainingService service = new TrainingService(new FileIo(), new ScoreParser(), trie);
+      service.trainWith(this.trainingDataPaths, 4);
+      int[] prefix = Arrays.copyOfRange(this.wholeMelody, this.wholeMelody.length - 5,
+          this.wholeMelody.length);
+      for (long seed = 0; seed < 20; seed++) {
+        GeneratorService generator = new GeneratorService(trie.freeze(), new Random(seed), true);
+        int[] generation = generator.predictSequence(prefix, this.wholeMelody.length);
+        assertTrue(generation.length >= this.wholeMelody.length);
+        assertArrayEquals(prefix, Arrays.copyOf(generation, prefix.length));
+      }
+    }
+
+    @Test
+    void predictSequenceAvoidingDeadEndsGeneratesAtLeastReachOfPrefix() {
+      Trie trie = new Trie();
+      TrainingService service = new TrainingService(new FileIo(), new ScoreParser(), trie);
+      service.trainWith(this.trainingDataPaths, 4);
+      FrozenTrie model = trie.freeze();
+      int[] prefix = Arrays.copyOf(this.wholeMelody, 4);
+      int reach = Math.min(model.getReach(model.lookup(prefix)), this.wholeMelody.length);
+      for (long seed = 0; seed < 20; seed++) {
+        GeneratorService generator =
+            new GeneratorService(model, new Random(seed), false, FrozenTrie.DEAD_END_HORIZON);
+        int[] generation = generator.predictSequence(prefix, this.wholeMelody.length);
+        assertTrue(generation.length >= Math.min(prefix.length + reach, this.wholeMelody.length));
+        assertArrayEquals(prefix, Arrays.copyOf(generation, prefix.length));
+      }
+    }
+
+    @Test
+    void lowerDegreeGenerationMatchesModelTrainedWithThatDegree() {
+      Trie highest = new Trie();
+      new TrainingService(new FileIo(), new ScoreParser(), highest)
+          .trainWith(this.trainingDataPaths, 6);
+      for (int degree = 1; degree < 6; degree++) {
+        Trie trie = new Trie();
+        new TrainingService(new FileIo(), new ScoreParser(), trie)
+            .trainWith(this.trainingDataPaths, degree);
+        int[] prefix = Arrays.copyOf(this.wholeMelody, degree);
+        for (long seed = 0; seed < 20; seed++) {
+          int[] expected = new GeneratorService(trie, new Random(seed)).predictSequence(prefix, 60);
+          int[] actual = new GeneratorService(highest, new Random(seed)).predictSequence(prefix, 60);
+          assertArrayEquals(expected, actual);
+        }
+      }
+    }
+
+    @Test
+    void predictSequenceMatchesLookingUpEveryPrefix() {
+      Trie trie = new Trie();
+      new TrainingService(new FileIo(), new ScoreParser(), trie)
+          .trainWith(this.trainingDataPaths, 6);
+      for (int degree = 1; degree <= 6; degree++) {
+        int[] prefix = Arrays.copyOf(this.wholeMelody, degree);
+        for (long seed = 0; seed < 20; seed++) {
+          GeneratorService lookup = new GeneratorService(trie, new Random(seed));
+          List<Integer> expected = new ArrayList<>();
+          Arrays.stream(prefix).forEach(expected::add);
+          while (expected.size() < 120) {
+            int[] context = expected.subList(expected.size() - degree, expected.size()).stream()
+                .mapToInt(Integer::intValue).toArray();
+            int next = lookup.predictNextNote(context);
+            if (next == -1) {
+              break;
+            }
+            expected.add(next);
+            if (expected.size() >= 60 && next == prefix[0]) {
+              break;
+            }
+          }
+          int[] actual = new GeneratorService(trie, new Random(seed)).predictSequence(prefix, 60);
+          assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), actual);
+        }
+      }
+    }
+
+    @Test
+    void batchIsSameWithAnyNumberOfThreads() throws InterruptedException {
+      Trie trie = new Trie();
+      new TrainingService(new FileIo(), new ScoreParser(), trie)
+          .trainWith(this.trainingDataPaths, 2);
+      GeneratorService generator = new GeneratorService(trie, new Random());
+      int[] prefix = Arrays.copyOf(this.wholeMelody, 2);
+      ExecutorService single = Executors.newSingleThreadExecutor();
+      ExecutorService pool = Executors.newFixedThreadPool(4);
+      try {
+        List<int[]> expected = generator.generateBatch(prefix, 50, 40, 1234, single);
+        List<int[]> actual = generator.generateBatch(prefix, 50, 40, 1234, pool);
+        assertEquals(50, actual.size());
+        SplittableRandom seeds = new SplittableRandom(1234);
+        for (int i = 0; i < expected.size(); i++) {
+          assertArrayEquals(expected.get(i), actual.get(i));
+          assertArrayEquals(expected.get(i),
+              generator.predictSequence(prefix, 40, seeds.split()::nextDouble));
+        }
+        List<int[]> other = generator.generateBatch(prefix, 50, 40, 4321, pool);
+        assertTrue(IntStream.range(0, 50)
+            .anyMatch(i -> !Arrays.equals(expected.get(i), other.get(i))));
+      } finally {
+        single.shutdownNow();
+        pool.shutdownNow();
+      }
+    }
+
   }
 
   @Nested
@@ -465,9 +628,8 @@ public class GeneratorServiceTest {
       return false;
     }
 
-    boolean anyListContainsSequence(List<List<Integer>> lists, int[] sequence) {
-      for (List<Integer> list : lists) {
-        int[] melody = list.stream().mapToInt(Integer::intValue).toArray();
+    boolean anyListContainsSequence(List<int[]> lists, int[] sequence) {
+      for (int[] melody : lists) {
         if (this.arrayHasSubArray(melody, sequence)) {
           return true;
         }
@@ -479,11 +641,10 @@ public class GeneratorServiceTest {
       Trie trie = new Trie();
       ScoreParser parser = new ScoreParser();
       FileIo reader = new FileIo();
-      List<List<Integer>> sourceMelodies = new ArrayList<>();
+      List<int[]> sourceMelodies = new ArrayList<>();
       for (String filePath : trainingDataPaths) {
         try (InputStream is = reader.readFile(filePath)) {
-          List<Integer> sourceMelody = parser.parse(is);
-          sourceMelodies.add(sourceMelody);
+          sourceMelodies.add(parser.parse(is));
         } catch (Exception e) {
           fail("Failed to parse source file " + filePath);
         }
@@ -491,7 +652,7 @@ public class GeneratorServiceTest {
       TrainingService service = new TrainingService(reader, parser, trie);
       service.trainWith(this.trainingDataPaths, degree);
       GeneratorService generator = new GeneratorService(trie, new Random());
-      int[] initialSequence = trie.getMostCommonSequenceStartingWith(sourceMelodies.get(0).get(0), degree);
+      int[] initialSequence = trie.getMostCommonSequenceStartingWith(sourceMelodies.get(0)[0], degree);
       int[] generation = generator.predictSequence(initialSequence, Constants.GENERATED_MELODY_DEFAULT_LEN);
       for (int i = 0; i < generation.length - degree; i++) {
         int[] sequence = Arrays.copyOfRange(generation, i, i + degree);
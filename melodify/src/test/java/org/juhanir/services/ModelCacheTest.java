@@ -0,0 +1,104 @@
+package org.juhanir.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.juhanir.domain.FrozenTrie;
+import org.juhanir.domain.Trie;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ModelCacheTest {
+
+  private FrozenTrie first;
+  private FrozenTrie second;
+  private FrozenTrie third;
+
+  private FrozenTrie model(int... key) {
+    Trie trie = new Trie();
+    trie.insert(key);
+    return trie.freeze();
+  }
+
+  @BeforeEach
+  void setUp() {
+    this.first = this.model(1, 2);
+    this.second = this.model(3, 4);
+    this.third = this.model(5, 6);
+  }
+
+  @Test
+  void returnsCachedModel() {
+    ModelCache cache = new ModelCache(1 << 20);
+    cache.put("D", 2, 7L, this.first);
+    assertSame(this.first, cache.get("D", 2, 7L));
+    assertNull(cache.get("D", 3, 7L));
+    assertNull(cache.get("Dm", 2, 7L));
+    assertNull(cache.get("D", 2, 8L));
+    assertEquals(1, cache.getHits());
+    assertEquals(3, cache.getMisses());
+    assertEquals(this.first.getByteSize(), cache.getUsedBytes());
+  }
+
+  @Test
+  void returnsLowestCachedDegreeAtLeastTheGiven() {
+    ModelCache cache = new ModelCache(1 << 20);
+    cache.put("D", 5, 7L, this.first);
+    cache.put("D", 3, 7L, this.second);
+    cache.put("Dm", 2, 7L, this.third);
+    assertSame(this.second, cache.getAtLeast("D", 1, 7L));
+    assertSame(this.second, cache.getAtLeast("D", 3, 7L));
+    assertSame(this.first, cache.getAtLeast("D", 4, 7L));
+    assertNull(cache.getAtLeast("D", 6, 7L));
+    assertNull(cache.getAtLeast("D", 1, 8L));
+    assertEquals(3, cache.getHits());
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  void replacesModelWithSameParameters() {
+    ModelCache cache = new ModelCache(1 << 20);
+    cache.put("D", 2, 7L, this.first);
+    cache.put("D", 2, 7L, this.second);
+    assertSame(this.second, cache.get("D", 2, 7L));
+    assertEquals(1, cache.size());
+    assertEquals(this.second.getByteSize(), cache.getUsedBytes());
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedModel() {
+    ModelCache cache = new ModelCache(this.first.getByteSize() * 2);
+    cache.put("D", 1, 0L, this.first);
+    cache.put("D", 2, 0L, this.second);
+    // use the first model so that the second is evicted
+    assertSame(this.first, cache.get("D", 1, 0L));
+    cache.put("D", 3, 0L, this.third);
+    assertEquals(2, cache.size());
+    assertSame(this.first, cache.get("D", 1, 0L));
+    assertNull(cache.get("D", 2, 0L));
+    assertSame(this.third, cache.get("D", 3, 0L));
+    assertEquals(this.first.getByteSize() * 2, cache.getUsedBytes());
+  }
+
+  @Test
+  void doesNotCacheModelLargerThanBudget() {
+    ModelCache cache = new ModelCache(this.first.getByteSize() - 1);
+    cache.put("D", 1, 0L, this.first);
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getUsedBytes());
+    assertNull(cache.get("D", 1, 0L));
+  }
+
+  @Test
+  void cacheCanBeCleared() {
+    ModelCache cache = new ModelCache(1 << 20);
+    cache.put("D", 1, 0L, this.first);
+    cache.put("D", 2, 0L, this.second);
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getUsedBytes());
+    assertNull(cache.get("D", 1, 0L));
+  }
+
+}
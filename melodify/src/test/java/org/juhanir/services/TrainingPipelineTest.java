@@ -0,0 +1,131 @@
+package org.juhanir.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.juhanir.domain.Trie;
+import org.juhanir.utils.FileIo;
+import org.juhanir.utils.ScoreParser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TrainingPipelineTest {
+
+  private List<String> files;
+  private ExecutorService executor;
+
+  @BeforeEach
+  void setUp() {
+    this.files = new FileIo().getAllFilePathsInFolder(
+        new File("src/test/resources").getAbsolutePath(), ".xml");
+    this.executor = Executors.newFixedThreadPool(2);
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.executor.shutdownNow();
+  }
+
+  @Test
+  void everyStageSeesEveryFile() throws InterruptedException {
+    // one file per queue, so every stage has to wait for the next one
+    TrainingPipeline pipeline = new TrainingPipeline(new FileIo(), new ScoreParser(), 3, 1);
+    pipeline.run(this.files, new Trie(), 3, this.executor);
+    long bytes = this.files.stream().mapToLong(file -> new File(file).length()).sum();
+    assertEquals(this.files.size(), pipeline.getReadStage().getItems());
+    assertEquals(bytes, pipeline.getReadStage().getUnits());
+    long parsed = pipeline.getParseStage().getItems();
+    assertEquals(this.files.size(), parsed + pipeline.getParseStage().getFailed());
+    assertEquals(parsed, pipeline.getInsertStage().getItems());
+    assertTrue(pipeline.getReadQueue().getMax() <= 1);
+    assertTrue(pipeline.getParsedQueue().getMax() <= 1);
+    assertTrue(pipeline.getWallNanos() > 0);
+  }
+
+  @Test
+  void skipsFilesThatCannotBeReadOrParsed(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    List<String> broken = new ArrayList<>();
+    broken.add("/not/a/real/path");
+    broken.add(Files.write(folder.resolve("broken.xml"), "not xml".getBytes()).toString());
+    broken.add(this.files.get(0));
+    Trie trie = new Trie();
+    TrainingPipeline pipeline = new TrainingPipeline(new FileIo(), new ScoreParser(), 2, 4);
+    pipeline.run(broken, trie, 2, this.executor);
+    assertEquals(1, pipeline.getReadStage().getFailed());
+    assertEquals(1, pipeline.getParseStage().getFailed());
+    assertEquals(1, pipeline.getInsertStage().getItems());
+    assertTrue(trie.size() > 1);
+  }
+
+  @Test
+  void runsWithoutFiles() throws InterruptedException {
+    Trie trie = new Trie();
+    TrainingPipeline pipeline = new TrainingPipeline(new FileIo(), new ScoreParser(), 4, 2);
+    pipeline.run(List.of(), trie, 2, this.executor);
+    assertEquals(1, trie.size());
+    assertEquals(0, pipeline.getInsertStage().getItems());
+  }
+
+  @Test
+  void readErrorFailsTraining() {
+    FileIo failing = new FileIo() {
+      @Override
+      public byte[] readAllBytes(String filePath) {
+        throw new IllegalStateException("disk on fire");
+      }
+    };
+    TrainingPipeline pipeline = new TrainingPipeline(failing, new ScoreParser(), 2, 1);
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> pipeline.run(this.files, new Trie(), 2, this.executor));
+    assertEquals("disk on fire", e.getCause().getMessage());
+  }
+
+  @Test
+  void parseErrorFailsTraining() {
+    ScoreParser failing = new ScoreParser() {
+      @Override
+      public int[] parse(InputStream source) {
+        throw new IllegalStateException("parser bug");
+      }
+    };
+    // every parser dies with a reader waiting for room in the queue
+    TrainingPipeline pipeline = new TrainingPipeline(new FileIo(), failing, 1, 1);
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> pipeline.run(this.files, new Trie(), 2, this.executor));
+    assertEquals("parser bug", e.getCause().getMessage());
+  }
+
+  @Test
+  void needsTwoThreads() {
+    ExecutorService single = Executors.newFixedThreadPool(1);
+    try {
+      TrainingPipeline pipeline = new TrainingPipeline(new FileIo(), new ScoreParser(), 1, 1);
+      assertThrows(IllegalArgumentException.class,
+          () -> pipeline.run(this.files, new Trie(), 2, single));
+    } finally {
+      single.shutdownNow();
+    }
+  }
+
+  @Test
+  void needsParserAndQueue() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new TrainingPipeline(new FileIo(), new ScoreParser(), 0, 1));
+    assertThrows(IllegalArgumentException.class,
+        () -> new TrainingPipeline(new FileIo(), new ScoreParser(), 1, 0));
+  }
+
+}
@@ -1,20 +1,36 @@
 package org.juhanir.services;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.juhanir.Constants;
+import org.juhanir.domain.FrozenTrie;
 import org.juhanir.domain.Trie;
 import org.juhanir.domain.TrieNode;
+import org.juhanir.utils.CorpusIndex;
 import org.juhanir.utils.FileIo;
+import org.juhanir.utils.ParseQuarantine;
+import org.juhanir.utils.ParsedTune;
 import org.juhanir.utils.ScoreParser;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 
 public class TrainingServiceTest {
@@ -99,4 +115,311 @@ public class TrainingServiceTest {
     }
   }
 
+  void assertSameTrie(Trie expected, Trie actual) {
+    FrozenTrie expectedNodes = expected.freeze();
+    FrozenTrie actualNodes = actual.freeze();
+    assertEquals(expectedNodes.size(), actualNodes.size());
+    for (int node = 0; node < expectedNodes.size(); node++) {
+      assertEquals(expectedNodes.getValue(node), actualNodes.getValue(node));
+      assertEquals(expectedNodes.getCount(node), actualNodes.getCount(node));
+      assertEquals(expectedNodes.getChildCount(node), actualNodes.getChildCount(node));
+      assertEquals(expectedNodes.getFirstChild(node), actualNodes.getFirstChild(node));
+      assertEquals(expectedNodes.getNumberOfChildren(node),
+          actualNodes.getNumberOfChildren(node));
+    }
+  }
+
+  @Test
+  void parallelTrainingProducesSameTrieAsSerial() throws InterruptedException {
+    List<String> files = new FileIo().getAllFilePathsInFolder("src/test/resources", ".xml");
+    files.add("/not/a/real/path");
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int degree = 1; degree < 6; degree++) {
+        Trie serial = new Trie();
+        new TrainingService(new FileIo(), new ScoreParser(), serial).trainWith(files, degree);
+        Trie parallel = new Trie();
+        new TrainingService(new FileIo(), new ScoreParser(), parallel)
+            .trainInParallel(files, degree, executor);
+        assertTrue(serial.size() > 1);
+        this.assertSameTrie(serial, parallel);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void pipelinedTrainingProducesSameTrieAsSerial() throws InterruptedException {
+    List<String> files = new FileIo().getAllFilePathsInFolder("src/test/resources", ".xml");
+    files.add("/not/a/real/path");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (int degree = 1; degree < 6; degree++) {
+        Trie serial = new Trie();
+        new TrainingService(new FileIo(), new ScoreParser(), serial).trainWith(files, degree);
+        Trie pipelined = new Trie();
+        new TrainingService(new FileIo(), new ScoreParser(), pipelined)
+            .trainPipelined(files, degree, executor, 3);
+        this.assertSameTrie(serial, pipelined);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void pipelinedTrainingTakesIndexedMelodiesWithoutReadingFiles()
+      throws InterruptedException {
+    CorpusIndex index = new CorpusIndex();
+    index.add("/not/a/real/path", new ParsedTune("D", "major", this.wholeMelody));
+    Trie expected = new Trie();
+    new TrainingService(new FileIo(), new ScoreParser(), expected)
+        .trainWith(this.trainingDataPaths, 3);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Trie pipelined = new Trie();
+      TrainingPipeline pipeline =
+          new TrainingService(new FileIo(), new ScoreParser(), pipelined, null, index)
+              .trainPipelined(List.of("/not/a/real/path"), 3, executor, 1);
+      this.assertSameTrie(expected, pipelined);
+      assertEquals(0, pipeline.getReadStage().getItems());
+      assertEquals(0, pipeline.getReadStage().getFailed());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void trainingSkipsQuarantinedFiles(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    String broken = Files.write(folder.resolve("broken.xml"), "<score-partwise>".getBytes())
+        .toString();
+    List<String> files = List.of(broken, this.trainingDataPaths.get(0), "/not/a/real/path");
+    ParseQuarantine quarantine = new ParseQuarantine(new FileIo());
+    ScoreParser parser = new ScoreParser(true, quarantine);
+    Trie serial = new Trie();
+    new TrainingService(new FileIo(), parser, serial).trainWith(files, 3);
+    assertTrue(quarantine.contains(broken));
+    assertEquals(1, quarantine.size());
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Trie pipelined = new Trie();
+      TrainingPipeline pipeline = new TrainingService(new FileIo(), parser, pipelined)
+          .trainPipelined(files, 3, executor, 1);
+      this.assertSameTrie(serial, pipelined);
+      assertEquals(1, pipeline.getReadStage().getItems());
+      assertEquals(0, pipeline.getParseStage().getFailed());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void parallelTrainingWithParsingErrorDoesNotThrow() throws InterruptedException {
+    Trie trie = new Trie();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      new TrainingService(new FileIo(), new ScoreParser(), trie)
+          .trainInParallel(List.of("/not/a/real/path"), 1, executor);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, trie.size());
+  }
+
+  @Test
+  void trainingTakesIndexedMelodiesWithoutReadingFiles() throws InterruptedException {
+    CorpusIndex index = new CorpusIndex();
+    // the file does not exist, so the notes can only come from the index
+    index.add("/not/a/real/path", new ParsedTune("D", "major", this.wholeMelody));
+    Trie expected = new Trie();
+    new TrainingService(new FileIo(), new ScoreParser(), expected)
+        .trainWith(this.trainingDataPaths, 3);
+    Trie serial = new Trie();
+    new TrainingService(new FileIo(), new ScoreParser(), serial, null, index)
+        .trainWith(List.of("/not/a/real/path"), 3);
+    this.assertSameTrie(expected, serial);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Trie parallel = new Trie();
+      new TrainingService(new FileIo(), new ScoreParser(), parallel, null, index)
+          .trainInParallel(List.of("/not/a/real/path"), 3, executor);
+      this.assertSameTrie(expected, parallel);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void trainingParsesFilesMissingFromIndex() throws InterruptedException {
+    List<String> files = new FileIo().getAllFilePathsInFolder("src/test/resources", ".xml");
+    CorpusIndex index = new CorpusIndex();
+    new ScoreParser().indexCorpus(new FileIo(), files.subList(0, 3), index);
+    Trie expected = new Trie();
+    new TrainingService(new FileIo(), new ScoreParser(), expected).trainWith(files, 4);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Trie trie = new Trie();
+      new TrainingService(new FileIo(), new ScoreParser(), trie, null, index)
+          .trainInParallel(files, 4, executor);
+      this.assertSameTrie(expected, trie);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void trainingFromArchiveMatchesUnpackedFiles(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    FileIo fileIo = new FileIo();
+    List<String> files = fileIo.getAllFilePathsInFolder("src/test/resources", ".xml");
+    Path archive = folder.resolve("data.zip");
+    try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+      for (String file : files) {
+        zip.putNextEntry(new ZipEntry(Path.of(file).getFileName().toString()));
+        zip.write(Files.readAllBytes(Path.of(file)));
+      }
+    }
+    List<String> archived = fileIo.getAllFilePathsInArchive(archive.toString(), ".xml");
+    assertEquals(files.size(), archived.size());
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Trie unpacked = new Trie();
+      new TrainingService(fileIo, new ScoreParser(), unpacked).trainWith(files, 4);
+      Trie parallel = new Trie();
+      new TrainingService(fileIo, new ScoreParser(), parallel)
+          .trainInParallel(archived, 4, executor);
+      this.assertSameTrie(unpacked, parallel);
+      CorpusIndex index = new CorpusIndex();
+      new ScoreParser().indexCorpus(fileIo, archived, index);
+      Trie indexed = new Trie();
+      new TrainingService(fileIo, new ScoreParser(), indexed, null, index)
+          .trainWith(archived, 4);
+      this.assertSameTrie(unpacked, indexed);
+    } finally {
+      executor.shutdownNow();
+      FileIo.closeArchives();
+    }
+  }
+
+  @Test
+  void loadOrTrainSavesAndLoadsModel(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Trie trie = new Trie();
+      TrainingService service = new TrainingService(new FileIo(), new ScoreParser(), trie);
+      FrozenTrie trained = service.loadOrTrain("D", this.trainingDataPaths, 2, executor, folder);
+      assertSame(trie.freeze(), trained);
+      assertEquals(42, trained.size());
+      assertTrue(Files.exists(folder.resolve("D-2.model")));
+      // a loaded model does not need the trie
+      trie.clear();
+      FrozenTrie loaded = service.loadOrTrain("D", this.trainingDataPaths, 2, executor, folder);
+      assertEquals(1, trie.size());
+      assertEquals(42, loaded.size());
+      assertEquals(trained.getChildCount(FrozenTrie.ROOT), loaded.getChildCount(FrozenTrie.ROOT));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void loadOrTrainRetrainsWhenSnapshotDoesNotMatch(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Trie trie = new Trie();
+      TrainingService service = new TrainingService(new FileIo(), new ScoreParser(), trie);
+      service.loadOrTrain("D", this.trainingDataPaths, 2, executor, folder);
+      // snapshot saved with another degree
+      Files.copy(folder.resolve("D-2.model"), folder.resolve("D-3.model"));
+      FrozenTrie model = service.loadOrTrain("D", this.trainingDataPaths, 3, executor, folder);
+      assertSame(trie.freeze(), model);
+      // corrupt snapshot and no snapshot of a higher degree
+      Files.writeString(folder.resolve("D-4.model"), "corrupt");
+      model = service.loadOrTrain("D", this.trainingDataPaths, 4, executor, folder);
+      assertSame(trie.freeze(), model);
+      assertEquals(4, model.getMaxDegree());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void loadOrTrainServesLowerDegreeFromHigherSnapshot(@TempDir Path folder)
+      throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Trie trie = new Trie();
+      TrainingService service = new TrainingService(new FileIo(), new ScoreParser(), trie);
+      service.loadOrTrain("D", this.trainingDataPaths, 3, executor, folder);
+      trie.clear();
+      FrozenTrie model = service.loadOrTrain("D", this.trainingDataPaths, 2, executor, folder);
+      assertEquals(1, trie.size());
+      assertEquals(3, model.getMaxDegree());
+      assertFalse(Files.exists(folder.resolve("D-2.model")));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void loadOrTrainUsesModelCache(@TempDir Path folder) throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      ModelCache cache = new ModelCache(1 << 20);
+      TrainingService service =
+          new TrainingService(new FileIo(), new ScoreParser(), new Trie(), cache);
+      FrozenTrie model = service.loadOrTrain("D", this.trainingDataPaths, 2, executor, folder);
+      assertEquals(1, cache.getMisses());
+      assertEquals(1, cache.size());
+      // not even the snapshot is needed on a cache hit
+      Files.delete(folder.resolve("D-2.model"));
+      assertSame(model, service.loadOrTrain("D", this.trainingDataPaths, 2, executor, folder));
+      assertEquals(1, cache.getHits());
+      service.loadOrTrain("D", this.trainingDataPaths, 3, executor, folder);
+      assertEquals(2, cache.getMisses());
+      assertEquals(2, cache.size());
+      // a lower degree is served by the lowest cached degree above it
+      assertSame(model, service.loadOrTrain("D", this.trainingDataPaths, 1, executor, folder));
+      assertEquals(2, cache.getHits());
+      assertEquals(2, cache.size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void trieServesEveryLowerDegree() {
+    Trie highest = new Trie();
+    new TrainingService(new FileIo(), new ScoreParser(), highest)
+        .trainWith(this.trainingDataPaths, 5);
+    assertEquals(5, highest.freeze().getMaxDegree());
+    for (int degree = 1; degree < 5; degree++) {
+      Trie trie = new Trie();
+      new TrainingService(new FileIo(), new ScoreParser(), trie)
+          .trainWith(this.trainingDataPaths, degree);
+      assertEquals(degree, trie.freeze().getMaxDegree());
+      for (int i = 0; i + degree <= this.wholeMelody.length; i++) {
+        int[] prefix = Arrays.copyOfRange(this.wholeMelody, i, i + degree);
+        assertEquals(trie.lookup(prefix).getCount(), highest.lookup(prefix).getCount());
+        assertArrayEquals(trie.getProbabilities(trie.lookup(prefix)),
+            highest.getProbabilities(highest.lookup(prefix)));
+      }
+    }
+  }
+
+  @Test
+  void everyOccurrenceOfNoteIsCounted() {
+    Trie trie = new Trie();
+    new TrainingService(new FileIo(), new ScoreParser(), trie)
+        .trainWith(this.trainingDataPaths, 3);
+    assertEquals(this.wholeMelody.length, trie.lookup(new int[] {}).getChildCount());
+    int lastNote = this.wholeMelody[this.wholeMelody.length - 1];
+    long occurrences = Arrays.stream(this.wholeMelody).filter(note -> note == lastNote).count();
+    assertEquals(occurrences, trie.lookup(new int[] { lastNote }).getCount());
+  }
+
 }
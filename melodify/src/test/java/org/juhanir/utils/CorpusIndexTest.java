@@ -0,0 +1,46 @@
+package org.juhanir.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class CorpusIndexTest {
+
+  @Test
+  void groupsFilesPerKeyInOrderOfAdding() {
+    CorpusIndex index = new CorpusIndex();
+    ParsedTune first = new ParsedTune("D", "major", new int[] { 1, 2 });
+    index.add("b.xml", first);
+    index.add("a.xml", new ParsedTune("Em", "minor", new int[] { 3 }));
+    index.add("c.xml", new ParsedTune("D", "major", new int[] { 4, 5, 6 }));
+    assertEquals(3, index.size());
+    assertEquals(6, index.getNoteCount());
+    assertSame(first, index.get("b.xml"));
+    assertNull(index.get("d.xml"));
+    assertEquals(Map.of("D", List.of("b.xml", "c.xml"), "Em", List.of("a.xml")),
+        index.getFilesPerKey());
+  }
+
+  @Test
+  void replacesEarlierParseOfFile() {
+    CorpusIndex index = new CorpusIndex();
+    index.add("a.xml", new ParsedTune("D", "major", new int[] { 1, 2 }));
+    index.add("a.xml", new ParsedTune("G", "major", new int[] { 3 }));
+    assertEquals(1, index.size());
+    assertEquals(1, index.getNoteCount());
+    assertEquals(Map.of("G", List.of("a.xml")), index.getFilesPerKey());
+  }
+
+  @Test
+  void filesPerKeyIsCopy() {
+    CorpusIndex index = new CorpusIndex();
+    index.add("a.xml", new ParsedTune("D", "major", new int[] { 1 }));
+    index.getFilesPerKey().get("D").add("b.xml");
+    assertEquals(List.of("a.xml"), index.getFilesPerKey().get("D"));
+  }
+
+}
@@ -2,6 +2,7 @@ package org.juhanir.utils;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertIterableEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -10,14 +11,28 @@ import static org.junit.jupiter.api.Assertions.fail;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class FileIoTest {
 
+  @AfterEach
+  void tearDown() {
+    FileIo.closeArchives();
+  }
+
   // File sourceFile = new File("src/test/resources/" + file);
 
   @Test
@@ -149,4 +164,114 @@ public class FileIoTest {
     }
   }
 
+  @Test
+  void fingerprintChangesWithFiles(@TempDir Path folder) throws IOException {
+    FileIo fileIo = new FileIo();
+    Path first = Files.writeString(folder.resolve("first.xml"), "first");
+    Path second = Files.writeString(folder.resolve("second.xml"), "second");
+    List<String> files = List.of(first.toString(), second.toString());
+    long fingerprint = fileIo.fingerprint(files);
+    assertEquals(fingerprint, fileIo.fingerprint(List.of(second.toString(), first.toString())));
+    assertNotEquals(fingerprint, fileIo.fingerprint(List.of(first.toString())));
+    Files.writeString(second, "changed");
+    long changed = fileIo.fingerprint(files);
+    assertNotEquals(fingerprint, changed);
+    Files.setLastModifiedTime(second, FileTime.fromMillis(0));
+    assertNotEquals(changed, fileIo.fingerprint(files));
+  }
+
+  @Test
+  void fingerprintThrowsWhenFileNotFound() {
+    FileIo fileIo = new FileIo();
+    assertThrows(IOException.class,
+        () -> fileIo.fingerprint(List.of("src/test/resources/wilhelmscream.xml")));
+  }
+
+  @Test
+  void getOrCreateFolder(@TempDir Path folder) throws IOException {
+    FileIo fileIo = new FileIo();
+    Path created = fileIo.getOrCreateFolder(folder.resolve("models").toString());
+    assertTrue(Files.isDirectory(created));
+    assertEquals(created, fileIo.getOrCreateFolder(created.toString()));
+  }
+
+  private static Path createArchive(Path folder) throws IOException {
+    Path archive = folder.resolve("data.zip");
+    try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+      zip.putNextEntry(new ZipEntry("tunes/"));
+      ZipEntry first = new ZipEntry("tunes/first.xml");
+      first.setTime(1_000_000_000_000L);
+      zip.putNextEntry(first);
+      zip.write("first".getBytes(StandardCharsets.UTF_8));
+      zip.putNextEntry(new ZipEntry("second.xml"));
+      zip.write("second".getBytes(StandardCharsets.UTF_8));
+      zip.putNextEntry(new ZipEntry("readme.txt"));
+      zip.write("readme".getBytes(StandardCharsets.UTF_8));
+    }
+    return archive;
+  }
+
+  @Test
+  void getAllFilePathsInArchive(@TempDir Path folder) throws IOException {
+    String archive = createArchive(folder).toString();
+    List<String> files = new FileIo().getAllFilePathsInArchive(archive, ".xml");
+    assertIterableEquals(List.of(archive + FileIo.ARCHIVE_SEPARATOR + "tunes/first.xml",
+        archive + FileIo.ARCHIVE_SEPARATOR + "second.xml"), files);
+  }
+
+  @Test
+  void getAllFilePathsInArchiveDoesNotThrow(@TempDir Path folder) throws IOException {
+    FileIo fileIo = new FileIo();
+    assertEquals(0, fileIo.getAllFilePathsInArchive("not/an/archive.zip", ".xml").size());
+    Path notZip = Files.writeString(folder.resolve("fake.zip"), "not a zip");
+    assertEquals(0, fileIo.getAllFilePathsInArchive(notZip.toString(), ".xml").size());
+  }
+
+  @Test
+  void readsFileInsideArchive(@TempDir Path folder) throws IOException {
+    FileIo fileIo = new FileIo();
+    String file = createArchive(folder) + FileIo.ARCHIVE_SEPARATOR + "tunes/first.xml";
+    try (InputStream is = fileIo.readFile(file)) {
+      assertEquals("first", new String(is.readAllBytes(), StandardCharsets.UTF_8));
+    }
+    assertEquals("first", new String(fileIo.readAllBytes(file), StandardCharsets.UTF_8));
+    assertEquals(5, fileIo.getSize(file));
+    assertEquals(1_000_000_000_000L, fileIo.getLastModified(file));
+  }
+
+  @Test
+  void readFileInsideArchiveThrowsWhenNotFound(@TempDir Path folder) throws IOException {
+    FileIo fileIo = new FileIo();
+    String archive = createArchive(folder).toString();
+    assertThrows(FileNotFoundException.class,
+        () -> fileIo.readFile(archive + FileIo.ARCHIVE_SEPARATOR + "third.xml"));
+    assertThrows(IOException.class,
+        () -> fileIo.readFile(folder.resolve("other.zip") + FileIo.ARCHIVE_SEPARATOR + "a.xml"));
+  }
+
+  @Test
+  void replacedArchiveIsOpenedAgain(@TempDir Path folder) throws IOException {
+    FileIo fileIo = new FileIo();
+    Path archive = createArchive(folder);
+    String file = archive + FileIo.ARCHIVE_SEPARATOR + "second.xml";
+    assertEquals("second", new String(fileIo.readAllBytes(file), StandardCharsets.UTF_8));
+    try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+      zip.putNextEntry(new ZipEntry("second.xml"));
+      zip.write("second, replaced".getBytes(StandardCharsets.UTF_8));
+    }
+    assertEquals("second, replaced",
+        new String(fileIo.readAllBytes(file), StandardCharsets.UTF_8));
+    assertEquals(16, fileIo.getSize(file));
+    assertThrows(FileNotFoundException.class,
+        () -> fileIo.readFile(archive + FileIo.ARCHIVE_SEPARATOR + "tunes/first.xml"));
+  }
+
+  @Test
+  void fingerprintOfFilesInsideArchive(@TempDir Path folder) throws IOException {
+    FileIo fileIo = new FileIo();
+    String archive = createArchive(folder).toString();
+    List<String> files = fileIo.getAllFilePathsInArchive(archive, ".xml");
+    assertNotEquals(fileIo.fingerprint(files), fileIo.fingerprint(files.subList(0, 1)));
+  }
+
 }
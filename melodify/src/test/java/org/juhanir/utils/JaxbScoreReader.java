@@ -0,0 +1,104 @@
+package org.juhanir.utils;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.audiveris.proxymusic.Attributes;
+import org.audiveris.proxymusic.Key;
+import org.audiveris.proxymusic.Note;
+import org.audiveris.proxymusic.Pitch;
+import org.audiveris.proxymusic.ScorePartwise;
+import org.audiveris.proxymusic.ScorePartwise.Part;
+import org.audiveris.proxymusic.ScorePartwise.Part.Measure;
+import org.audiveris.proxymusic.util.Marshalling;
+import org.audiveris.proxymusic.util.Marshalling.UnmarshallingException;
+import org.juhanir.Constants;
+
+/**
+ * <p>
+ * Reads notes and keys by unmarshalling the whole score with JAXB, the way
+ * <code>ScoreParser</code> did before it was changed to a streaming parser.
+ * </p>
+ * <p>
+ * Used as the reference for the streaming parser in tests and benchmarks.
+ * </p>
+ */
+public final class JaxbScoreReader {
+
+  private final ScoreParser parser = new ScoreParser();
+
+  /**
+   * Extract the notes of the first staff.
+   *
+   * @param source MusicXML file as inputstream
+   * @return notes
+   * @throws UnmarshallingException if cannot parse input to partwise score
+   */
+  public List<Integer> parse(InputStream source) throws UnmarshallingException {
+    ScorePartwise scorePartwise = (ScorePartwise) Marshalling.unmarshal(source);
+    List<Integer> melodySequence = new ArrayList<>();
+    for (Part part : scorePartwise.getPart()) {
+      for (Measure measure : part.getMeasure()) {
+        for (Object content : measure.getNoteOrBackupOrForward()) {
+          if (!(content instanceof Note)) {
+            continue;
+          }
+          Note note = (Note) content;
+          Pitch pitch = note.getPitch();
+          BigInteger staff = Optional.ofNullable(note.getStaff()).orElse(BigInteger.valueOf(1));
+          if (pitch == null || staff.intValue() != 1) {
+            continue;
+          }
+          BigDecimal alter = Optional.ofNullable(pitch.getAlter()).orElse(BigDecimal.valueOf(0.0));
+          melodySequence.add(this.parser.convertNoteToInt(pitch.getStep().value(),
+              pitch.getOctave(), alter.intValueExact()));
+        }
+      }
+    }
+    return melodySequence;
+  }
+
+  /**
+   * Collect the distinct keys of the score with the same names and validation
+   * as <code>ScoreParser.getKeyForTune</code>.
+   *
+   * @param source MusicXML file as inputstream
+   * @return distinct keys
+   * @throws UnmarshallingException if cannot parse input to partwise score
+   */
+  public List<String> getKeys(InputStream source) throws UnmarshallingException {
+    String[] major = { "Cb", "Gb", "Db", "Ab", "Eb", "Bb", "F", "C", "G", "D", "A", "E", "B",
+        "F#", "C#" };
+    String[] minor = { "Abm", "Ebm", "Bbm", "Fm", "Cm", "Gm", "Dm", "Am", "Em", "Bm", "F#m",
+        "C#m", "G#m", "D#m", "A#m" };
+    ScorePartwise scorePartwise = (ScorePartwise) Marshalling.unmarshal(source);
+    List<String> musicalKeys = new ArrayList<>();
+    for (Part part : scorePartwise.getPart()) {
+      for (Measure measure : part.getMeasure()) {
+        for (Object content : measure.getNoteOrBackupOrForward()) {
+          if (!(content instanceof Attributes)) {
+            continue;
+          }
+          for (Key key : ((Attributes) content).getKey()) {
+            int fifths = key.getFifths().intValue();
+            String mode = Optional.ofNullable(key.getMode()).orElse("major");
+            if (Math.abs(fifths) > Constants.FIFTHS_SUPPORTED_RANGE
+                || !Constants.modes.contains(mode)) {
+              throw new IllegalArgumentException("Non-supported key");
+            }
+            String[] names = mode.equals("minor") ? minor : major;
+            String musicKey = names[fifths + Constants.FIFTHS_SUPPORTED_RANGE];
+            if (!musicalKeys.contains(musicKey)) {
+              musicalKeys.add(musicKey);
+            }
+          }
+        }
+      }
+    }
+    return musicalKeys;
+  }
+
+}
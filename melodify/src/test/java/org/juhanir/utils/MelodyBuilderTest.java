@@ -0,0 +1,39 @@
+package org.juhanir.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class MelodyBuilderTest {
+
+  @Test
+  void isEmptyAtFirst() {
+    MelodyBuilder builder = new MelodyBuilder();
+    assertEquals(0, builder.size());
+    assertArrayEquals(new int[0], builder.toArray());
+  }
+
+  @Test
+  void growsPastInitialCapacity() {
+    MelodyBuilder builder = new MelodyBuilder(0);
+    int[] expected = new int[1000];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = i % 72;
+      builder.add(i % 72);
+    }
+    assertEquals(1000, builder.size());
+    assertArrayEquals(expected, builder.toArray());
+  }
+
+  @Test
+  void toArrayReturnsCopy() {
+    MelodyBuilder builder = new MelodyBuilder(4);
+    builder.add(40);
+    int[] first = builder.toArray();
+    first[0] = 0;
+    builder.add(42);
+    assertArrayEquals(new int[] { 40, 42 }, builder.toArray());
+  }
+
+}
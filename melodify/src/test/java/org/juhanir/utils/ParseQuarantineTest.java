@@ -0,0 +1,100 @@
+package org.juhanir.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ParseQuarantineTest {
+
+  private Path source;
+  private Path manifest;
+  private ParseQuarantine quarantine;
+
+  @BeforeEach
+  void setUp(@TempDir Path folder) throws IOException {
+    this.source = Files.write(folder.resolve("tune.xml"), "<score-partwise>".getBytes());
+    this.manifest = folder.resolve(ParseQuarantine.FILE_NAME);
+    this.quarantine = new ParseQuarantine(new FileIo());
+    this.quarantine.load(this.manifest);
+  }
+
+  @Test
+  void containsAddedFile() {
+    this.quarantine.add(this.source.toString(), new IllegalArgumentException("No key found"));
+    assertTrue(this.quarantine.contains(this.source.toString()));
+    assertEquals("No key found", this.quarantine.getReason(this.source.toString()));
+    assertEquals(1, this.quarantine.size());
+  }
+
+  @Test
+  void doesNotContainOtherFiles() {
+    assertFalse(this.quarantine.contains(this.source.toString()));
+    assertNull(this.quarantine.getReason(this.source.toString()));
+  }
+
+  @Test
+  void keepsFilesOverRestart() {
+    this.quarantine.add(this.source.toString(), new IllegalArgumentException("No key\nfound"));
+    ParseQuarantine reloaded = new ParseQuarantine(new FileIo());
+    reloaded.load(this.manifest);
+    assertTrue(reloaded.contains(this.source.toString()));
+    assertEquals("No key found", reloaded.getReason(this.source.toString()));
+  }
+
+  @Test
+  void releasesChangedFile() throws IOException {
+    this.quarantine.add(this.source.toString(), new IllegalArgumentException());
+    Files.write(this.source, "<score-partwise></score-partwise>".getBytes());
+    assertFalse(this.quarantine.contains(this.source.toString()));
+    assertEquals(0, this.quarantine.size());
+    ParseQuarantine reloaded = new ParseQuarantine(new FileIo());
+    reloaded.load(this.manifest);
+    assertEquals(0, reloaded.size());
+  }
+
+  @Test
+  void releasesRemovedFile() throws IOException {
+    this.quarantine.add(this.source.toString(), new IllegalArgumentException());
+    Files.delete(this.source);
+    assertFalse(this.quarantine.contains(this.source.toString()));
+  }
+
+  @Test
+  void isNotSavedBeforeLoading() {
+    ParseQuarantine inMemory = new ParseQuarantine(new FileIo());
+    Path other = this.manifest.resolveSibling("other.tsv");
+    inMemory.add(this.source.toString(), new IllegalArgumentException());
+    assertTrue(inMemory.contains(this.source.toString()));
+    assertFalse(Files.exists(other));
+  }
+
+  @Test
+  void skipsUnreadableLines() throws IOException {
+    this.quarantine.add(this.source.toString(), new IllegalArgumentException("No key found"));
+    List<String> lines = Files.readAllLines(this.manifest, StandardCharsets.UTF_8);
+    lines.add("not a fingerprint\tmissing.xml\tNo key found");
+    lines.add("too few fields");
+    Files.write(this.manifest, lines, StandardCharsets.UTF_8);
+    ParseQuarantine reloaded = new ParseQuarantine(new FileIo());
+    reloaded.load(this.manifest);
+    assertEquals(1, reloaded.size());
+    assertTrue(reloaded.contains(this.source.toString()));
+  }
+
+  @Test
+  void keepsSeparateManifestsForKeyScanModes() {
+    assertEquals(ParseQuarantine.FILE_NAME, ParseQuarantine.fileName(false));
+    assertFalse(ParseQuarantine.fileName(true).equals(ParseQuarantine.fileName(false)));
+  }
+
+}
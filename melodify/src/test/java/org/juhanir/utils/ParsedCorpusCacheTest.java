@@ -0,0 +1,132 @@
+package org.juhanir.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ParsedCorpusCacheTest {
+
+  private final ParsedTune tune = new ParsedTune("Em", "dorian", new int[] { 0, 40, 71, 40 });
+  private Path source;
+  private ParsedCorpusCache cache;
+
+  @BeforeEach
+  void setUp(@TempDir Path folder) throws IOException {
+    this.source = Files.write(folder.resolve("tune.xml"), "<score-partwise/>".getBytes());
+    this.cache = new ParsedCorpusCache(Files.createDirectory(folder.resolve("parsed")),
+        new FileIo());
+  }
+
+  private void put() throws IOException {
+    this.cache.put(this.source.toString(), Files.readAllBytes(this.source),
+        Files.getLastModifiedTime(this.source).toMillis(), this.tune);
+  }
+
+  private Path entry() {
+    return this.cache.getEntryPath(this.source.toString());
+  }
+
+  @Test
+  void returnsSavedTune() throws IOException {
+    this.put();
+    ParsedTune cached = this.cache.get(this.source.toString());
+    assertNotNull(cached);
+    assertEquals("Em", cached.getKey());
+    assertEquals("dorian", cached.getMode());
+    assertArrayEquals(this.tune.getNotes(), cached.getNotes());
+    assertEquals(1, this.cache.getHits());
+    assertEquals(0, this.cache.getMisses());
+  }
+
+  @Test
+  void missesWithoutEntry() {
+    assertNull(this.cache.get(this.source.toString()));
+    assertEquals(1, this.cache.getMisses());
+  }
+
+  @Test
+  void missesWhenSourceHasChanged() throws IOException {
+    this.put();
+    Files.write(this.source, "<score-partwise></score-partwise>".getBytes());
+    assertNull(this.cache.get(this.source.toString()));
+  }
+
+  @Test
+  void hitsWhenOnlyModificationTimeHasChanged() throws IOException {
+    this.put();
+    FileTime touched = FileTime.fromMillis(
+        Files.getLastModifiedTime(this.source).toMillis() + 60_000);
+    Files.setLastModifiedTime(this.source, touched);
+    assertNotNull(this.cache.get(this.source.toString()));
+    // the entry now has the new time, so the content is not compared any more
+    Files.write(this.source, "<score-timewise/>".getBytes());
+    Files.setLastModifiedTime(this.source, touched);
+    assertNotNull(this.cache.get(this.source.toString()));
+  }
+
+  @Test
+  void missesWhenSavedWithOtherKeyScanMode(@TempDir Path folder) throws IOException {
+    Path parsed = Files.createDirectory(folder.resolve("modes"));
+    String path = this.source.toString();
+    long lastModified = Files.getLastModifiedTime(this.source).toMillis();
+    ParsedCorpusCache firstKey = new ParsedCorpusCache(parsed, new FileIo(), false);
+    firstKey.put(path, Files.readAllBytes(this.source), lastModified, this.tune);
+    ParsedCorpusCache fullScan = new ParsedCorpusCache(parsed, new FileIo(), true);
+    assertNull(fullScan.get(path));
+    assertEquals(1, fullScan.getMisses());
+    assertNotNull(firstKey.get(path));
+    fullScan.put(path, Files.readAllBytes(this.source), lastModified, this.tune);
+    assertNotNull(fullScan.get(path));
+    assertNull(firstKey.get(path));
+  }
+
+  @Test
+  void missesWhenContentWithSameSizeHasChanged() throws IOException {
+    this.put();
+    FileTime original = Files.getLastModifiedTime(this.source);
+    Files.write(this.source, "<score-timewise/>".getBytes());
+    Files.setLastModifiedTime(this.source, FileTime.fromMillis(original.toMillis() + 60_000));
+    assertNull(this.cache.get(this.source.toString()));
+  }
+
+  @Test
+  void discardsCorruptEntry() throws IOException {
+    this.put();
+    byte[] bytes = Files.readAllBytes(this.entry());
+    bytes[bytes.length - 6] ^= 1;
+    Files.write(this.entry(), bytes);
+    assertNull(this.cache.get(this.source.toString()));
+    assertFalse(Files.exists(this.entry()));
+    this.put();
+    assertNotNull(this.cache.get(this.source.toString()));
+  }
+
+  @Test
+  void discardsTruncatedEntry() throws IOException {
+    this.put();
+    byte[] bytes = Files.readAllBytes(this.entry());
+    Files.write(this.entry(), Arrays.copyOf(bytes, bytes.length / 2));
+    assertNull(this.cache.get(this.source.toString()));
+    assertFalse(Files.exists(this.entry()));
+  }
+
+  @Test
+  void filesWithSameNameInDifferentFoldersHaveOwnEntries(@TempDir Path other) {
+    Path otherSource = other.resolve("tune.xml");
+    assertNotEquals(this.cache.getEntryPath(this.source.toString()),
+        this.cache.getEntryPath(otherSource.toString()));
+  }
+
+}
@@ -1,21 +1,33 @@
 package org.juhanir.utils;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.assertj.core.util.Lists;
+import org.audiveris.proxymusic.util.Marshalling.UnmarshallingException;
 import org.juhanir.Constants;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class ScoreParserTest {
 
@@ -146,6 +158,156 @@ public class ScoreParserTest {
       assertTrue(filesPerKey.get("D").get(0).endsWith("alphabet-song.xml"));
     }
 
+    @Test
+    void indexesFilesPerMusicalKey() {
+      List<String> files = new ArrayList<>(this.trainingDataPaths);
+      files.add(this.multiKeyFile);
+      files.add("/not/a/real/path");
+      CorpusIndex index = new CorpusIndex();
+      new ScoreParser().indexCorpus(new FileIo(), files, index);
+      assertEquals(7, index.size());
+      assertEquals(new ScoreParser().collectFilesPerKey(new FileIo(), this.trainingDataPaths),
+          index.getFilesPerKey());
+      assertEquals(null, index.get(this.multiKeyFile));
+    }
+
+    @Test
+    void indexesFilesInParallelAsTheyAreParsed() throws InterruptedException {
+      List<String> files = new ArrayList<>(this.trainingDataPaths);
+      files.add(this.multiKeyFile);
+      files.add("/not/a/real/path");
+      CorpusIndex index = new CorpusIndex();
+      Map<String, String> reported = new HashMap<>();
+      ExecutorService executor = Executors.newFixedThreadPool(3);
+      try {
+        new ScoreParser().indexCorpus(new FileIo(), files, index, null, executor,
+            (filePath, tune) -> {
+              // the file is in the index before it is reported
+              assertEquals(tune, index.get(filePath));
+              reported.put(filePath, tune.getKey());
+            });
+      } finally {
+        executor.shutdownNow();
+      }
+      assertEquals(7, index.size());
+      assertEquals(7, reported.size());
+      Map<String, List<String>> expected =
+          new ScoreParser().collectFilesPerKey(new FileIo(), this.trainingDataPaths);
+      Map<String, List<String>> indexed = index.getFilesPerKey();
+      assertEquals(expected.keySet(), indexed.keySet());
+      for (String key : expected.keySet()) {
+        assertEquals(new HashSet<>(expected.get(key)), new HashSet<>(indexed.get(key)));
+        expected.get(key).forEach(file -> assertEquals(key, reported.get(file)));
+      }
+    }
+
+    @Test
+    void indexCorpusTakesUnchangedFilesFromCache(@TempDir Path folder) throws IOException {
+      ScoreParser parser = new ScoreParser();
+      FileIo reader = new FileIo();
+      CorpusIndex parsed = new CorpusIndex();
+      parser.indexCorpus(reader, this.trainingDataPaths, parsed,
+          new ParsedCorpusCache(folder, reader));
+      // corrupt one entry, it is parsed again
+      ParsedCorpusCache cache = new ParsedCorpusCache(folder, reader);
+      Path corrupt = cache.getEntryPath(this.trainingDataPaths.get(0));
+      Files.write(corrupt, new byte[] { 1, 2, 3 });
+      CorpusIndex cached = new CorpusIndex();
+      parser.indexCorpus(reader, this.trainingDataPaths, cached, cache);
+      assertEquals(this.trainingDataPaths.size() - 1, cache.getHits());
+      assertEquals(1, cache.getMisses());
+      assertEquals(parsed.getFilesPerKey(), cached.getFilesPerKey());
+      for (String file : this.trainingDataPaths) {
+        assertArrayEquals(parsed.get(file).getNotes(), cached.get(file).getNotes());
+        assertEquals(parsed.get(file).getMode(), cached.get(file).getMode());
+      }
+    }
+
+    @Test
+    void quarantinesUnparseableFilesButNotMissingOnes() {
+      List<String> files = new ArrayList<>(this.trainingDataPaths);
+      files.add(this.multiKeyFile);
+      files.add("/not/a/real/path");
+      ParseQuarantine quarantine = new ParseQuarantine(new FileIo());
+      new ScoreParser(true, quarantine).indexCorpus(new FileIo(), files, new CorpusIndex());
+      assertEquals(1, quarantine.size());
+      assertEquals("Only one key is supported", quarantine.getReason(this.multiKeyFile));
+    }
+
+    @Test
+    void skipsQuarantinedFilesWithoutReadingThem() throws InterruptedException {
+      ParseQuarantine quarantine = new ParseQuarantine(new FileIo());
+      quarantine.add(this.multiKeyFile, new IllegalArgumentException("Only one key is supported"));
+      List<String> read = new ArrayList<>();
+      FileIo reader = new FileIo() {
+        @Override
+        public InputStream readFile(String filePath) throws IOException {
+          synchronized (read) {
+            read.add(filePath);
+          }
+          return super.readFile(filePath);
+        }
+      };
+      List<String> files = new ArrayList<>(this.trainingDataPaths);
+      files.add(this.multiKeyFile);
+      ScoreParser parser = new ScoreParser(true, quarantine);
+      assertTrue(parser.isQuarantined(this.multiKeyFile));
+      parser.collectFilesPerKey(reader, files);
+      parser.indexCorpus(reader, files, new CorpusIndex());
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+        parser.indexCorpus(reader, files, new CorpusIndex(), null, executor, (file, tune) -> {
+        });
+      } finally {
+        executor.shutdownNow();
+      }
+      assertEquals(3 * this.trainingDataPaths.size(), read.size());
+      assertTrue(!read.contains(this.multiKeyFile));
+    }
+
+    @Test
+    void quarantinesFilesFailingInParallelIndexing() throws InterruptedException {
+      ParseQuarantine quarantine = new ParseQuarantine(new FileIo());
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+        new ScoreParser(true, quarantine).indexCorpus(new FileIo(),
+            List.of(this.multiKeyFile, this.trainingDataPaths.get(0)), new CorpusIndex(), null,
+            executor, (file, tune) -> {
+            });
+      } finally {
+        executor.shutdownNow();
+      }
+      assertTrue(quarantine.contains(this.multiKeyFile));
+      assertEquals(1, quarantine.size());
+    }
+
+    @Test
+    void parseTuneReturnsKeyModeAndNotesOfOneParse() throws Exception {
+      ScoreParser parser = new ScoreParser();
+      FileIo reader = new FileIo();
+      for (String file : this.trainingDataPaths) {
+        ParsedTune tune;
+        try (InputStream is = reader.readFile(file)) {
+          tune = parser.parseTune(is);
+        }
+        try (InputStream is = reader.readFile(file)) {
+          assertEquals(parser.getKeyForTune(is), tune.getKey());
+        }
+        try (InputStream is = reader.readFile(file)) {
+          assertArrayEquals(parser.parse(is), tune.getNotes());
+        }
+        assertTrue(Constants.modes.contains(tune.getMode()));
+      }
+    }
+
+    @Test
+    void parseTuneThrowsWithMultipleKeys() {
+      ScoreParser parser = new ScoreParser();
+      FileIo reader = new FileIo();
+      assertThrows(IllegalArgumentException.class,
+          () -> parser.parseTune(reader.readFile(this.multiKeyFile)));
+    }
+
     @Test
     void doesNotThrowWithErrors() {
       ScoreParser parser = new ScoreParser();
@@ -184,6 +346,38 @@ public class ScoreParserTest {
           () -> parser.getKeyForTune(reader.readFile(this.multiKeyFile)));
     }
 
+    @Test
+    void firstKeyScanUsesKeyTheTuneStartsIn() throws Exception {
+      ScoreParser parser = new ScoreParser(false);
+      FileIo reader = new FileIo();
+      try (InputStream is = reader.readFile(this.multiKeyFile)) {
+        assertEquals("G", parser.getKeyForTune(is));
+      }
+      try (InputStream is = reader.readFile(this.multiKeyFile)) {
+        ParsedTune tune = parser.parseTune(is);
+        assertEquals("G", tune.getKey());
+        assertArrayEquals(new ScoreParser().parse(reader.readFile(this.multiKeyFile)),
+            tune.getNotes());
+      }
+    }
+
+    @Test
+    void firstKeyScanGroupsFilesLikeFullScan() {
+      FileIo reader = new FileIo();
+      assertEquals(new ScoreParser().collectFilesPerKey(reader, this.trainingDataPaths),
+          new ScoreParser(false).collectFilesPerKey(reader, this.trainingDataPaths));
+    }
+
+    @Test
+    void firstKeyScanStillChecksTheKey() {
+      ScoreParser parser = new ScoreParser(false);
+      FileIo reader = new FileIo();
+      assertThrows(IllegalArgumentException.class,
+          () -> parser.getKeyForTune(reader.readFile(this.fifthsLargeFile)));
+      assertThrows(IllegalArgumentException.class,
+          () -> parser.getKeyForTune(reader.readFile(this.unsupportedModeFile)));
+    }
+
     @Test
     void throwsWhenFifthsValueTooSmall() {
       ScoreParser parser = new ScoreParser();
@@ -208,6 +402,132 @@ public class ScoreParserTest {
           () -> parser.getKeyForTune(reader.readFile(this.unsupportedModeFile)));
     }
 
+    @Test
+    void matchesJaxbReferenceOnAllTestData() throws Exception {
+      ScoreParser parser = new ScoreParser();
+      JaxbScoreReader reference = new JaxbScoreReader();
+      FileIo reader = new FileIo();
+      List<String> files = reader.getAllFilePathsInFolder(
+          new File("src/test/resources").getAbsolutePath(), ".xml");
+      assertEquals(11, files.size());
+      for (String file : files) {
+        try (InputStream expected = reader.readFile(file);
+            InputStream actual = reader.readFile(file)) {
+          assertArrayEquals(reference.parse(expected).stream().mapToInt(Integer::intValue)
+              .toArray(), parser.parse(actual), file);
+        }
+        List<String> keys;
+        try (InputStream expected = reader.readFile(file)) {
+          keys = reference.getKeys(expected);
+        } catch (IllegalArgumentException e) {
+          assertThrows(IllegalArgumentException.class,
+              () -> parser.getKeyForTune(reader.readFile(file)), file);
+          continue;
+        }
+        try (InputStream actual = reader.readFile(file)) {
+          if (keys.size() > 1) {
+            assertThrows(IllegalArgumentException.class, () -> parser.getKeyForTune(actual), file);
+          } else {
+            assertEquals(keys.get(0), parser.getKeyForTune(actual), file);
+          }
+        }
+      }
+    }
+
+  }
+
+  @Nested
+  class StreamingInput {
+
+    private final ScoreParser parser = new ScoreParser();
+
+    private InputStream score(String measures) {
+      String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+          + "<score-partwise version=\"3.1\"><part id=\"P1\">" + measures
+          + "</part></score-partwise>";
+      return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void skipsRestsAndOtherStaves() throws UnmarshallingException {
+      InputStream source = this.score("<measure number=\"1\">"
+          + "<note><pitch><step>C</step><octave>4</octave></pitch></note>"
+          + "<note><rest/></note>"
+          + "<note><pitch><step>E</step><alter>-1</alter><octave>4</octave></pitch>"
+          + "<staff>2</staff></note>"
+          + "<backup><duration>4</duration></backup>"
+          + "<note><pitch><step>F</step><alter>1</alter><octave>4</octave></pitch>"
+          + "<staff>1</staff></note></measure>");
+      assertArrayEquals(new int[] { 36, 42 }, this.parser.parse(source));
+    }
+
+    @Test
+    void keyDefaultsToMajorMode() throws UnmarshallingException {
+      InputStream source = this.score("<measure number=\"1\"><attributes><key>"
+          + "<fifths>-2</fifths></key></attributes></measure>");
+      assertEquals("Bb", this.parser.getKeyForTune(source));
+    }
+
+    @Test
+    void parseTuneKeepsModeOfKey() throws UnmarshallingException {
+      InputStream source = this.score("<measure number=\"1\"><attributes><key>"
+          + "<fifths>2</fifths><mode>dorian</mode></key></attributes>"
+          + "<note><pitch><step>E</step><octave>2</octave></pitch></note></measure>");
+      ParsedTune tune = this.parser.parseTune(source);
+      assertEquals("D", tune.getKey());
+      assertEquals("dorian", tune.getMode());
+      assertArrayEquals(new int[] { 16 }, tune.getNotes());
+    }
+
+    @Test
+    void parseTuneThrowsWithoutKey() {
+      assertThrows(IllegalArgumentException.class, () -> this.parser.parseTune(this.score(
+          "<measure number=\"1\"></measure>")));
+    }
+
+    @Test
+    void firstKeyScanStopsReadingAtKey() throws UnmarshallingException {
+      // the rest of the file is not read, so the missing end tags do not matter
+      String xml = "<score-partwise><part id=\"P1\"><measure number=\"1\"><attributes><key>"
+          + "<fifths>3</fifths><mode>minor</mode></key></attributes><note><pitch><step>C";
+      assertEquals("F#m", new ScoreParser(false).getKeyForTune(
+          new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+      assertThrows(UnmarshallingException.class, () -> this.parser.getKeyForTune(
+          new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void readsNextFileAfterFailedOne() throws UnmarshallingException {
+      // the factories are reused, so a failure must not leave one broken
+      String truncated = "<score-partwise><part id=\"P1\"><measure><note><pitch><step>C";
+      for (String broken : List.of(truncated, "not xml", "")) {
+        assertThrows(UnmarshallingException.class, () -> this.parser.parse(
+            new ByteArrayInputStream(broken.getBytes(StandardCharsets.UTF_8))));
+        assertArrayEquals(new int[] { 36 }, this.parser.parse(this.score("<measure number=\"1\">"
+            + "<note><pitch><step>C</step><octave>4</octave></pitch></note></measure>")));
+      }
+    }
+
+    @Test
+    void throwsWhenNotPartwiseScore() {
+      String xml = "<score-timewise version=\"3.1\"></score-timewise>";
+      assertThrows(UnmarshallingException.class, () -> this.parser.parse(
+          new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void throwsWhenInputIsNotXml() {
+      assertThrows(UnmarshallingException.class, () -> this.parser.parse(
+          new ByteArrayInputStream("not xml".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void throwsWhenScoreIsTruncated() {
+      String xml = "<score-partwise><part id=\"P1\"><measure><note><pitch><step>C</step>";
+      assertThrows(UnmarshallingException.class, () -> this.parser.parse(
+          new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+    }
+
   }
 
 }
@@ -27,6 +27,7 @@ if [ -d "$FOLDER" ]; then
         exit 0
     fi
     rm "$FOLDER"/*
+    rm -rf data/parsed
 fi
 
 mkdir -p "$FOLDER"